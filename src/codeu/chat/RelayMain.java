@@ -15,10 +15,14 @@
 package codeu.chat;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import codeu.chat.common.Secret;
+import codeu.chat.relay.BundleJournal;
 import codeu.chat.relay.Server;
 import codeu.chat.relay.ServerFrontEnd;
 import codeu.chat.util.Logger;
@@ -32,6 +36,12 @@ final class RelayMain {
 
   private static final Logger.Log LOG = Logger.newLog(RelayMain.class);
 
+  // Limits for the bundle journal. Segments roll over at 16 MB and are dropped
+  // once the journal is over 1 GB or the segment is older than a week.
+  private static final long JOURNAL_SEGMENT_BYTES = 16L * 1024 * 1024;
+  private static final long JOURNAL_MAX_BYTES = 1024L * 1024 * 1024;
+  private static final long JOURNAL_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
   public static void main(String[] args) {
 
     Logger.enableConsoleOutput();
@@ -44,13 +54,27 @@ final class RelayMain {
 
     LOG.info("============================= START OF LOG =============================");
 
+    // Arguments are "<port> <team file> [journal directory [--sync]]". Without a
+    // journal directory the relay only keeps history in memory and loses it
+    // when it stops. With "--sync" every batch of bundles is forced to disk
+    // before it can be read, so history also survives the machine stopping at
+    // the cost of slower writes.
     final int myPort = Integer.parseInt(args[0]);
-
-    try (final ConnectionSource source = ServerConnectionSource.forPort(myPort)) {
-
-      // Limit the number of messages that the server tracks to be 1024 and limit the
-      // max number of messages that the relay will send out to be 16.
-      final Server relay = new Server(1024, 16);
+    final File journalDirectory = args.length > 2 ? new File(args[2]) : null;
+    final boolean sync = args.length > 3 && "--sync".equals(args[3]);
+
+    try (final ConnectionSource source = ServerConnectionSource.forPort(myPort);
+         final BundleJournal journal = journalDirectory == null ?
+             null :
+             new BundleJournal(journalDirectory,
+                               JOURNAL_SEGMENT_BYTES,
+                               JOURNAL_MAX_BYTES,
+                               JOURNAL_MAX_AGE_MS,
+                               sync)) {
+
+      // Limit the number of messages that the server keeps in memory to be 1024
+      // and limit the max number of messages that the relay will send out to be 16.
+      final Server relay = new Server(1024, 16, journal);
 
       LOG.info("Relay object created.");
 
@@ -73,6 +97,13 @@ final class RelayMain {
     final Timeline timeline = new Timeline();
     LOG.info("Relay timeline created.");
 
+    // The relay back end is safe to use from many threads so connections are
+    // handled by a pool with a worker per core. The timeline is only used for
+    // reloading the team file.
+    final ExecutorService workers =
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    LOG.info("Relay workers created.");
+
     timeline.scheduleNow(new Runnable() {
       @Override
       public void run() {
@@ -95,7 +126,7 @@ final class RelayMain {
         final Connection connection = source.connect();
         LOG.info("Connection established.");
 
-        timeline.scheduleNow(new Runnable() {
+        workers.execute(new Runnable() {
           @Override
           public void run() {
             try {
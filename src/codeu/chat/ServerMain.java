@@ -17,8 +17,10 @@ package codeu.chat;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Scanner;
 import java.io.BufferedReader;
@@ -29,9 +31,15 @@ import java.io.FileReader;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.common.User;
+import codeu.chat.server.FederatedRelay;
+import codeu.chat.server.HeapMessageStore;
+import codeu.chat.server.LsmMessageStore;
+import codeu.chat.server.MappedMessageStore;
+import codeu.chat.server.MessageStore;
 import codeu.chat.server.NoOpRelay;
 import codeu.chat.server.RemoteRelay;
 import codeu.chat.server.Server;
+import codeu.chat.server.ShardedRelay;
 import codeu.chat.util.Logger;
 import codeu.chat.util.PersistentLog;
 import codeu.chat.util.RemoteAddress;
@@ -52,6 +60,43 @@ final class ServerMain {
   private static File persistentPath = null;
   private static int port = -1;
 
+  // When set, messages are only loaded from the persistent log when their
+  // conversation is first used. Enabled with the "--lazy" flag.
+  private static boolean lazy = false;
+
+  // When set, messages are kept in memory-mapped files in the persistent
+  // directory rather than on the heap. Enabled with the "--mapped" flag.
+  private static boolean mapped = false;
+
+  // When set, messages are kept in a log-structured merge tree in the
+  // persistent directory. Enabled with the "--lsm" flag.
+  private static boolean lsm = false;
+
+  // When positive, the messages of unused conversations are archived to
+  // compressed files once messages take more than this many megabytes of heap.
+  // Set with the "--tiered=<megabytes>" flag.
+  private static long tierBudget = 0;
+
+  // When positive, this share (0 to 1) of client requests is traced to
+  // "trace.log" in the persistent directory. Set with the "--trace=<rate>"
+  // flag. Requests slower than TRACE_SLOW_MS are traced whatever the rate.
+  private static double traceRate = 0;
+
+  private static final long TRACE_SLOW_MS = 250;
+
+  // How long a conversation can go unused before its messages are archived.
+  private static final long TIER_IDLE_MS = 60 * 60 * 1000;  // 1 hour
+
+  // Size of each memory-mapped message segment.
+  private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  // Number of messages held in memory before the LSM tree writes them to disk.
+  private static final int MEMTABLE_LIMIT = 4096;
+
+  // How long a read from several relays waits for the slower ones before
+  // going ahead with what the others sent.
+  private static final long FEDERATION_WAIT_MS = 1000;
+
   public static void main(String[] args) {
 
     Logger.enableConsoleOutput();
@@ -66,14 +111,42 @@ final class ServerMain {
 
     Uuid id = null;
     Secret secret = null;
-    RemoteAddress relayAddress = null;
+    final List<List<RemoteAddress>> relayAddresses = new ArrayList<>();
+
+    // Flags can appear anywhere, everything else is a positional argument.
+    final List<String> positional = new ArrayList<>();
+    for (final String arg : args) {
+      if ("--lazy".equals(arg)) {
+        lazy = true;
+      } else if ("--mapped".equals(arg)) {
+        mapped = true;
+      } else if ("--lsm".equals(arg)) {
+        lsm = true;
+      } else if (arg.startsWith("--trace=")) {
+        traceRate = Double.parseDouble(arg.substring("--trace=".length()));
+      } else if (arg.startsWith("--tiered=")) {
+        tierBudget = Long.parseLong(arg.substring("--tiered=".length())) * 1024 * 1024;
+      } else {
+        positional.add(arg);
+      }
+    }
+    args = positional.toArray(new String[positional.size()]);
 
     try {
       id = Uuid.parse(args[0]);
       secret = Secret.parse(args[1]);
       port = Integer.parseInt(args[2]);
       persistentPath = new File(args[3]);
-      relayAddress = args.length > 4 ? RemoteAddress.parse(args[4]) : null;
+      // Every argument after the persistent directory is a relay, the first
+      // being the one this server writes to. A relay can be a cluster of nodes
+      // given as "host@port,host@port".
+      for (int i = 4; i < args.length; i++) {
+        final List<RemoteAddress> nodes = new ArrayList<>();
+        for (final String address : args[i].split(",")) {
+          nodes.add(RemoteAddress.parse(address.trim()));
+        }
+        relayAddresses.add(nodes);
+      }
     } catch (Exception ex) {
       LOG.error(ex, "Failed to read command arguments");
       System.exit(1);
@@ -86,13 +159,10 @@ final class ServerMain {
       System.exit(1);
     }
 
-    try (
-        final ConnectionSource serverSource = ServerConnectionSource.forPort(port);
-        final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
-    ) {
+    try (final ConnectionSource serverSource = ServerConnectionSource.forPort(port)) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource);
+      runServer(id, secret, serverSource, relays(relayAddresses));
 
     } catch (IOException ex) {
 
@@ -101,22 +171,98 @@ final class ServerMain {
     }
   }
 
+  // RELAYS
+  //
+  // Connect to no relay, one relay, or several independent relays that are
+  // read from together.
+  private static Relay relays(List<List<RemoteAddress>> addresses) {
+
+    if (addresses.isEmpty()) {
+      return new NoOpRelay();
+    }
+
+    if (addresses.size() == 1) {
+      return relay(addresses.get(0));
+    }
+
+    final List<Relay> relays = new ArrayList<>();
+    for (final List<RemoteAddress> relay : addresses) {
+      relays.add(relay(relay));
+    }
+
+    LOG.info("Reading from %d relays", relays.size());
+
+    return new FederatedRelay(relays, FEDERATION_WAIT_MS);
+  }
+
+  // RELAY
+  //
+  // Connect to a single relay, or to a cluster of relay nodes that each own a
+  // share of the conversations.
+  private static Relay relay(List<RemoteAddress> addresses) {
+
+    final List<Relay> nodes = new ArrayList<>();
+    for (final RemoteAddress address : addresses) {
+      nodes.add(new RemoteRelay(
+          new ClientConnectionSource(address.host, address.port),
+          new ClientConnectionSource(address.host,
+                                     address.port,
+                                     RemoteRelay.SUBSCRIPTION_TIMEOUT_MS)));
+    }
+
+    if (nodes.size() == 1) {
+      return nodes.get(0);
+    }
+
+    LOG.info("Using a relay cluster of %d nodes", nodes.size());
+
+    return new ShardedRelay(nodes);
+  }
+
   private static void runServer(Uuid id,
                                 Secret secret,
                                 ConnectionSource serverSource,
-                                ConnectionSource relaySource) {
-
-    final Relay relay = relaySource == null ?
-                        new NoOpRelay() :
-                        new RemoteRelay(relaySource);
+                                Relay relay) {
 
     //name of persistentLog file   -- unique to port
     String persistentFileName = persistentPath + "//persistentLog" + port + ".txt";
 
-    final Server server = new Server(id, secret, relay, persistentFileName);
+    final MessageStore messages;
+
+    try {
+      final File messageDirectory = new File(persistentPath, "messages" + port);
+      messages = lsm ?
+          new LsmMessageStore(messageDirectory, MEMTABLE_LIMIT) :
+          mapped ?
+          new MappedMessageStore(messageDirectory, SEGMENT_SIZE) :
+          new HeapMessageStore();
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to create message store");
+      return;
+    }
+
+    final Server server = new Server(id, secret, relay, persistentFileName, messages);
 
     LOG.info("Created server.");
 
+    if (tierBudget > 0) {
+      try {
+        server.enableTiering(new File(persistentPath, "archive" + port), tierBudget, TIER_IDLE_MS);
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to enable tiering");
+        return;
+      }
+    }
+
+    if (traceRate > 0) {
+      try {
+        server.enableTracing(new File(persistentPath, "trace.log"), traceRate, TRACE_SLOW_MS);
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to enable tracing");
+        return;
+      }
+    }
+
 
 
     //location where persistentLog will be written to
@@ -124,7 +270,9 @@ final class ServerMain {
 
     //reads in the file
     File persistentFile = new File(persistentFileName);
-    PersistentLog.read(persistentFile, server);
+    PersistentLog.read(persistentFile, server, lazy);
+
+    server.startRelay();
 
     while (true) {
 
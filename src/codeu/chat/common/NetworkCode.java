@@ -37,5 +37,11 @@ public final class NetworkCode {
       RELAY_WRITE_REQUEST = 29,
       RELAY_WRITE_RESPONSE = 30,
       SERVER_INFO_REQUEST = 31,
-      SERVER_INFO_RESPONSE = 32;
+      SERVER_INFO_RESPONSE = 32,
+      RELAY_WRITE_BATCH_REQUEST = 33,
+      RELAY_WRITE_BATCH_RESPONSE = 34,
+      RELAY_READ_BATCH_REQUEST = 35,
+      RELAY_READ_BATCH_RESPONSE = 36,
+      RELAY_SUBSCRIBE_REQUEST = 37,
+      RELAY_SUBSCRIBE_RESPONSE = 38;
 }
@@ -14,6 +14,7 @@
 
 package codeu.chat.common;
 
+import java.io.IOException;
 import java.util.Collection;
 
 import codeu.chat.util.Time;
@@ -104,12 +105,33 @@ public interface Relay {
 
   }
 
+  // SUBSCRIBER
+  //
+  // Receives bundles from a subscription as the relay accepts them.
+  interface Subscriber {
+
+    // ON BUNDLES
+    //
+    // Called with the next bundles in order. An empty collection is a heartbeat
+    // that is sent when nothing has been written for a while. Return false to
+    // end the subscription.
+    boolean onBundles(Collection<Bundle> bundles) throws IOException;
+
+  }
+
   // PACK
   //
   // Pack together a uuid, string, and time into a component. This is to make
   // the signature for "write" to be shorter and easier to read.
   Bundle.Component pack(Uuid id, String text, Time time);
 
+  // PACK
+  //
+  // Pack together the three parts of a message so that it can be written as part
+  // of a batch. The relay gives a bundle its id, time, and team when the bundle
+  // is written so until then they are null.
+  Bundle pack(Bundle.Component user, Bundle.Component conversation, Bundle.Component message);
+
   // WRITE
   //
   // Write a single message and all its extra data to the relay server. A message
@@ -123,6 +145,14 @@ public interface Relay {
                 Bundle.Component conversation,
                 Bundle.Component message);
 
+  // WRITE
+  //
+  // Write many messages to the relay at once. Only the user, conversation, and
+  // message of each bundle are used (see "pack"). The team is checked once for
+  // the whole batch. Returns the number of bundles the relay accepted which will
+  // be zero if the team id or secret is wrong.
+  int write(Uuid teamId, Secret teamSecret, Collection<Bundle> bundles);
+
   // READ
   //
   // Read a series of bundles from the relay. Given a Uuid as the starting point
@@ -133,4 +163,25 @@ public interface Relay {
   // was given Uuids.NULL.
   Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range);
 
+  // READ
+  //
+  // Read like above but only get bundles that pass "filter". The relay applies
+  // the filter as it scans so "range" is the number of bundles that pass.
+  Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range, RelayFilter filter);
+
+  // SUBSCRIBE
+  //
+  // Receive every bundle after "root" that passes "filter" and then each new
+  // bundle as it is written, without asking again. Like "read", a root that is
+  // not found starts from the earliest point. This blocks until the subscriber returns false (which
+  // returns true) or the team is rejected (which returns false). If the
+  // subscription breaks an IOException is thrown and the caller can subscribe
+  // again from the last bundle it saw. Relays that can not push bundles throw
+  // UnsupportedOperationException and must be read instead.
+  boolean subscribe(Uuid teamId,
+                    Secret teamSecret,
+                    Uuid root,
+                    RelayFilter filter,
+                    Subscriber subscriber) throws IOException;
+
 }
@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// RELAY DICTIONARY
+//
+// A component serializer for one stream of bundles. The same users and
+// conversations show up in bundle after bundle so the first time a component
+// is written it is sent in full and given the next index. After that only the
+// index is sent.
+//
+// Each entry starts with an integer tag:
+//
+//   - NEW: a full component follows and the reader adds it to its dictionary.
+//   - LITERAL: a full component follows but the dictionary is full so the
+//     reader does not keep it.
+//   - Anything else is the index of a component sent earlier.
+//
+// The writer and the reader must each use their own dictionary and see the
+// same components in the same order, so a dictionary must never be shared
+// between streams.
+public final class RelayDictionary implements Serializer<Relay.Bundle.Component> {
+
+  private static final int NEW = -1;
+  private static final int LITERAL = -2;
+
+  private final Serializer<Relay.Bundle.Component> components;
+  private final int capacity;
+
+  private final Map<Uuid, Integer> written = new HashMap<>();
+  private final List<Relay.Bundle.Component> entries = new ArrayList<>();
+
+  public RelayDictionary(Serializer<Relay.Bundle.Component> components, int capacity) {
+    this.components = components;
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
+
+    final Integer index = written.get(value.id());
+
+    // A component that changed (e.g. a renamed user) is sent again as a new
+    // entry rather than referring to the old text.
+    if (index != null && same(entries.get(index), value)) {
+      Serializers.INTEGER.write(out, index);
+      return;
+    }
+
+    if (entries.size() < capacity) {
+      written.put(value.id(), entries.size());
+      entries.add(value);
+      Serializers.INTEGER.write(out, NEW);
+    } else {
+      Serializers.INTEGER.write(out, LITERAL);
+    }
+
+    components.write(out, value);
+  }
+
+  @Override
+  public Relay.Bundle.Component read(InputStream in) throws IOException {
+
+    final int tag = Serializers.INTEGER.read(in);
+
+    if (tag == NEW || tag == LITERAL) {
+      final Relay.Bundle.Component value = components.read(in);
+      if (tag == NEW) {
+        entries.add(value);
+      }
+      return value;
+    }
+
+    if (tag < 0 || tag >= entries.size()) {
+      throw new IOException(String.format(
+          "Unknown dictionary entry %d (size=%d)",
+          tag,
+          entries.size()));
+    }
+
+    return entries.get(tag);
+  }
+
+  private static boolean same(Relay.Bundle.Component a, Relay.Bundle.Component b) {
+    return a.text().equals(b.text()) && a.time().compareTo(b.time()) == 0;
+  }
+}
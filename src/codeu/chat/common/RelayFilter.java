@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// RELAY FILTER
+//
+// Which bundles a reader wants from the relay. The relay checks bundles against
+// the filter while it scans its history so bundles that would be thrown away
+// are never sent.
+//
+//   - "excludeOwn" skips bundles written by the reader's own team.
+//   - "teams" keeps only bundles from these teams. Empty keeps every team.
+//   - "conversations" keeps only bundles in these conversations. Empty keeps
+//     every conversation.
+public final class RelayFilter {
+
+  public static final RelayFilter ALL = new RelayFilter(
+      false,
+      Collections.<Uuid>emptySet(),
+      Collections.<Uuid>emptySet());
+
+  public static final Serializer<RelayFilter> SERIALIZER = new Serializer<RelayFilter>() {
+
+    @Override
+    public void write(OutputStream out, RelayFilter value) throws IOException {
+
+      Serializers.BOOLEAN.write(out, value.excludeOwn);
+      Serializers.collection(Uuid.SERIALIZER).write(out, value.teams);
+      Serializers.collection(Uuid.SERIALIZER).write(out, value.conversations);
+
+    }
+
+    @Override
+    public RelayFilter read(InputStream in) throws IOException {
+
+      return new RelayFilter(
+          Serializers.BOOLEAN.read(in),
+          Serializers.collection(Uuid.SERIALIZER).read(in),
+          Serializers.collection(Uuid.SERIALIZER).read(in)
+      );
+
+    }
+  };
+
+  public final boolean excludeOwn;
+  public final Set<Uuid> teams;
+  public final Set<Uuid> conversations;
+
+  public RelayFilter(boolean excludeOwn, Collection<Uuid> teams, Collection<Uuid> conversations) {
+
+    this.excludeOwn = excludeOwn;
+    this.teams = Collections.unmodifiableSet(new HashSet<>(teams));
+    this.conversations = Collections.unmodifiableSet(new HashSet<>(conversations));
+
+  }
+
+  // ACCEPTS
+  //
+  // Check if "reader" wants the bundle.
+  public boolean accepts(Uuid reader, Relay.Bundle bundle) {
+
+    if (excludeOwn && Uuid.equals(reader, bundle.team())) {
+      return false;
+    }
+
+    if (!teams.isEmpty() && !teams.contains(bundle.team())) {
+      return false;
+    }
+
+    return conversations.isEmpty() || conversations.contains(bundle.conversation().id());
+  }
+}
@@ -0,0 +1,493 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import codeu.chat.common.Relay;
+import codeu.chat.util.Logger;
+
+// BUNDLE JOURNAL
+//
+// Keeps every bundle the relay accepts on disk so that history outlives the
+// in-memory ring and survives restarts. Bundles are appended in sequence order
+// to segment files named after the first sequence they hold:
+//
+//   bundles-<first sequence>
+//
+// Every record in a segment looks like:
+//
+//   [ int length ][ bundle (length bytes) ]
+//
+// Reads use positional reads on the segment files so recently read and written
+// history is served from the OS page cache. Whole segments are dropped, oldest
+// first, once the journal is over its size limit or a segment's newest bundle
+// is older than the age limit.
+//
+// Appends are written to the OS but not forced to disk, so they survive the
+// relay stopping but not the machine stopping. A journal opened with "sync"
+// forces every segment written since the last "sync" call when it is called
+// again. The relay calls it once for each batch of bundles, before any of them
+// can be read.
+public final class BundleJournal implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(BundleJournal.class);
+
+  private static final String PREFIX = "bundles-";
+
+  private static final class Segment {
+
+    final long first;
+    final File file;
+    final RandomAccessFile data;
+
+    // Where each record starts. Only the first "count" values are used.
+    int[] offsets = new int[64];
+    int count;
+    long size;
+    long newest;
+
+    Segment(long first, File file) throws IOException {
+      this.first = first;
+      this.file = file;
+      this.data = new RandomAccessFile(file, "rw");
+    }
+
+    void add(int offset) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      offsets[count++] = offset;
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final List<Segment> segments = new ArrayList<>();
+
+  private final File directory;
+  private final long segmentBytes;
+  private final long maxBytes;
+  private final long maxAgeMs;
+
+  private final boolean sync;
+
+  // Segments appended to since the last sync.
+  private final List<Segment> unsynced = new ArrayList<>();
+
+  private long totalBytes;
+
+  // BUNDLE JOURNAL
+  //
+  // Open the journal in "directory", recovering whatever is already there.
+  // Segments roll over at "segmentBytes" and are dropped once the journal is
+  // over "maxBytes" or their newest bundle is older than "maxAgeMs".
+  public BundleJournal(File directory,
+                       long segmentBytes,
+                       long maxBytes,
+                       long maxAgeMs) throws IOException {
+    this(directory, segmentBytes, maxBytes, maxAgeMs, false);
+  }
+
+  // BUNDLE JOURNAL
+  //
+  // Open the journal as above. When "sync" is set, "sync" forces appended
+  // bundles to disk.
+  public BundleJournal(File directory,
+                       long segmentBytes,
+                       long maxBytes,
+                       long maxAgeMs,
+                       boolean sync) throws IOException {
+
+    this.sync = sync;
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+    this.maxAgeMs = maxAgeMs;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+
+    recover();
+  }
+
+  // FIRST
+  //
+  // The sequence of the oldest bundle still in the journal.
+  public long first() {
+    lock.readLock().lock();
+    try {
+      return segments.isEmpty() ? next() : segments.get(0).first;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // NEXT
+  //
+  // The sequence the next appended bundle must have.
+  public long next() {
+    lock.readLock().lock();
+    try {
+      if (segments.isEmpty()) {
+        return 0;
+      }
+      final Segment last = segments.get(segments.size() - 1);
+      return last.first + last.count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // APPEND
+  //
+  // Write the bundle with the given sequence to the end of the journal. Appends
+  // must be made one at a time and in sequence order.
+  //
+  // A failed append leaves the journal as it was before the call. Its
+  // sequence is then missing and the next append starts a new segment after
+  // the gap, so one failed write never stops later writes.
+  public void append(long sequence, Relay.Bundle bundle) throws IOException {
+
+    final byte[] bytes = encode(bundle);
+
+    lock.writeLock().lock();
+    try {
+
+      Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+      if (last != null && last.first + last.count > sequence) {
+        throw new IllegalStateException(String.format(
+            "Journal expected sequence %d but got %d", last.first + last.count, sequence));
+      }
+
+      final boolean gap = last != null && last.first + last.count != sequence;
+
+      if (gap) {
+        LOG.warning("Journal is missing bundles %d to %d",
+                    last.first + last.count, sequence - 1);
+      }
+
+      final boolean created = last == null || gap || last.size + 4 + bytes.length > segmentBytes;
+
+      if (created) {
+        last = new Segment(sequence, new File(directory, String.format("%s%020d", PREFIX, sequence)));
+        segments.add(last);
+      }
+
+      final ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+      record.putInt(bytes.length);
+      record.put(bytes);
+      record.flip();
+
+      final FileChannel channel = last.data.getChannel();
+      long position = last.size;
+      try {
+        while (record.hasRemaining()) {
+          position += channel.write(record, position);
+        }
+      } catch (IOException ex) {
+        undo(last, created);
+        throw ex;
+      }
+
+      last.add((int) last.size);
+      last.size = position;
+      last.newest = bundle.time().inMs();
+      totalBytes += 4 + bytes.length;
+
+      if (sync && !unsynced.contains(last)) {
+        unsynced.add(last);
+      }
+
+      retain();
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // SYNC
+  //
+  // Force every bundle appended since the last call to disk. Does nothing
+  // unless the journal was opened with "sync".
+  public void sync() throws IOException {
+
+    lock.writeLock().lock();
+    try {
+      for (final Segment segment : unsynced) {
+        // Segments dropped since they were written have nothing to keep.
+        if (segments.contains(segment)) {
+          segment.data.getChannel().force(false);
+        }
+      }
+      unsynced.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // READ
+  //
+  // Get the bundle with the given sequence. Returns null if it is not in the
+  // journal.
+  public Relay.Bundle read(long sequence) throws IOException {
+
+    lock.readLock().lock();
+    try {
+
+      final Segment segment = find(sequence);
+
+      if (segment == null) {
+        return null;
+      }
+
+      final FileChannel channel = segment.data.getChannel();
+      final int offset = segment.offsets[(int) (sequence - segment.first)];
+
+      final ByteBuffer length = ByteBuffer.allocate(4);
+      readFully(channel, length, offset);
+      length.flip();
+
+      final ByteBuffer bytes = ByteBuffer.allocate(length.getInt());
+      readFully(channel, bytes, offset + 4);
+
+      return ServerFrontEnd.BUNDLE_SERIALIZER.read(new ByteArrayInputStream(bytes.array()));
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      for (final Segment segment : segments) {
+        segment.data.close();
+      }
+      segments.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private Segment find(long sequence) {
+
+    // Segments are in sequence order so binary search for the last one that
+    // starts at or before the sequence.
+    int low = 0;
+    int high = segments.size() - 1;
+    Segment found = null;
+
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final Segment segment = segments.get(middle);
+      if (segment.first <= sequence) {
+        found = segment;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+
+    return (found != null && sequence < found.first + found.count) ? found : null;
+  }
+
+  // Take back a record that was only partly written. A segment that was made
+  // for it is removed, otherwise the segment is cut back to where the record
+  // started.
+  private void undo(Segment segment, boolean created) {
+
+    if (created) {
+      segments.remove(segments.size() - 1);
+      try {
+        segment.data.close();
+      } catch (IOException ex) {
+        LOG.warning("Could not close journal segment %s", segment.file);
+      }
+      if (!segment.file.delete()) {
+        LOG.warning("Could not remove journal segment %s", segment.file);
+      }
+      return;
+    }
+
+    try {
+      segment.data.getChannel().truncate(segment.size);
+    } catch (IOException ex) {
+      // The record is not in the offsets so it is never read. If the cut did
+      // not work the tail is cut off when the journal is next recovered.
+      LOG.warning("Could not cut partial record from journal segment %s", segment.file);
+    }
+  }
+
+  // Drop the oldest segments while the journal is too big or too old. The
+  // segment being written to is always kept.
+  private void retain() {
+
+    final long cutoff = System.currentTimeMillis() - maxAgeMs;
+
+    while (segments.size() > 1) {
+
+      final Segment oldest = segments.get(0);
+
+      if (totalBytes <= maxBytes && oldest.newest >= cutoff) {
+        break;
+      }
+
+      segments.remove(0);
+      totalBytes -= oldest.size;
+
+      try {
+        oldest.data.close();
+      } catch (IOException ex) {
+        LOG.warning("Could not close journal segment %s", oldest.file);
+      }
+
+      if (!oldest.file.delete()) {
+        LOG.warning("Could not remove journal segment %s", oldest.file);
+      }
+
+      LOG.info("Dropped journal segment %s (bundles=%d)", oldest.file, oldest.count);
+    }
+  }
+
+  private void recover() throws IOException {
+
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(PREFIX);
+      }
+    });
+
+    if (files == null) {
+      return;
+    }
+
+    // The names are zero padded so they sort in sequence order.
+    Arrays.sort(files);
+
+    for (final File file : files) {
+
+      final long first;
+      try {
+        first = Long.parseLong(file.getName().substring(PREFIX.length()));
+      } catch (NumberFormatException ex) {
+        LOG.warning("Skipping unknown journal file %s", file);
+        continue;
+      }
+
+      final Segment segment = new Segment(first, file);
+
+      if (!segments.isEmpty()) {
+        final Segment previous = segments.get(segments.size() - 1);
+        if (previous.first + previous.count > first) {
+          // Overlapping segments mean the files can not be trusted to be in
+          // order so start over from here.
+          LOG.warning("Journal overlap before %s, dropping older segments", file);
+          for (final Segment dropped : segments) {
+            dropped.data.close();
+          }
+          segments.clear();
+          totalBytes = 0;
+        } else if (previous.first + previous.count != first) {
+          // Bundles that failed to be written. Reads skip over them.
+          LOG.warning("Journal gap before %s", file);
+        }
+      }
+
+      scan(segment);
+
+      segments.add(segment);
+      totalBytes += segment.size;
+    }
+
+    LOG.info("Recovered relay journal (segments=%d first=%d next=%d)",
+             segments.size(), first(), next());
+  }
+
+  // Rebuild a segment's offsets from its records. A record that was only
+  // partly written when the relay stopped is cut off.
+  private static void scan(Segment segment) throws IOException {
+
+    final FileChannel channel = segment.data.getChannel();
+    final long end = channel.size();
+    final ByteBuffer length = ByteBuffer.allocate(4);
+
+    long position = 0;
+    int last = -1;
+
+    while (position + 4 <= end) {
+
+      length.clear();
+      readFully(channel, length, position);
+      length.flip();
+
+      final int size = length.getInt();
+
+      if (size < 0 || position + 4 + size > end) {
+        break;
+      }
+
+      last = (int) position;
+      segment.add(last);
+      position += 4 + size;
+    }
+
+    if (position < end) {
+      LOG.warning("Cutting partial record from journal segment %s", segment.file);
+      channel.truncate(position);
+    }
+
+    segment.size = position;
+
+    if (last >= 0) {
+      final ByteBuffer bytes = ByteBuffer.allocate((int) (position - last - 4));
+      readFully(channel, bytes, last + 4);
+      segment.newest = ServerFrontEnd.BUNDLE_SERIALIZER
+          .read(new ByteArrayInputStream(bytes.array())).time().inMs();
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of journal segment");
+      }
+    }
+  }
+
+  private static byte[] encode(Relay.Bundle bundle) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ServerFrontEnd.BUNDLE_SERIALIZER.write(out, bundle);
+    return out.toByteArray();
+  }
+}
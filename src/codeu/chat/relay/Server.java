@@ -14,19 +14,28 @@
 
 package codeu.chat.relay;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
-import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 
@@ -34,16 +43,19 @@ public final class Server implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(Server.class);
 
-  private static final class Component implements Relay.Bundle.Component {
+  private static final class Component implements Relay.Bundle.Component,
+                                                  ServerFrontEnd.Encoded {
 
     private final Uuid id;
     private final String text;
     private final Time time;
+    private final byte[] encoded;
 
     public Component(Uuid id, String text, Time time) {
       this.id = id;
       this.text = text;
       this.time = time;
+      this.encoded = ServerFrontEnd.encodeComponent(id, text, time);
     }
 
     @Override
@@ -55,9 +67,12 @@ public final class Server implements Relay {
     @Override
     public Time time() { return time; }
 
+    @Override
+    public byte[] encoded() { return encoded; }
+
   }
 
-  private static final class Bundle implements Relay.Bundle {
+  private static final class Bundle implements Relay.Bundle, ServerFrontEnd.Encoded {
 
     private final Uuid id;
     private final Time time;
@@ -65,6 +80,7 @@ public final class Server implements Relay {
     private final Component user;
     private final Component conversation;
     private final Component message;
+    private final byte[] head;
 
     public Bundle(Uuid id,
                   Time time,
@@ -80,6 +96,10 @@ public final class Server implements Relay {
       this.conversation = conversation;
       this.message = message;
 
+      // Bundles that are only packed have nothing to encode until the relay
+      // gives them an id.
+      this.head = id == null ? null : ServerFrontEnd.encodeHead(id, time, team);
+
     }
 
     @Override
@@ -100,16 +120,88 @@ public final class Server implements Relay {
     @Override
     public Component message() { return message; }
 
+    @Override
+    public byte[] encoded() { return head; }
+
+  }
+
+  // HISTORY
+  //
+  // The most recent bundles in a ring of "maxHistory" slots. Each bundle has a
+  // sequence number and the bundle with sequence "n" is always in slot
+  // "n % maxHistory". This lets a read jump straight to the bundle after its
+  // root instead of walking the whole history.
+  //
+  // Writers never lock. A writer claims the next sequence and fills its slot.
+  // Readers only look at published sequences so every read sees an unbroken
+  // run of history even while writes are happening. How a sequence gets
+  // published depends on whether there is a journal:
+  //
+  //   - Without a journal a writer marks its sequence as filled and then
+  //     publishes every filled sequence it can, in order. A writer that is
+  //     behind one still being filled leaves it to that writer, so no writer
+  //     waits for another (see "publish").
+  //
+  //   - With a journal the writer hands its bundle to the journal thread and
+  //     waits for it to be published. The journal thread is the only one that
+  //     writes to the journal or publishes, so appends are in order without
+  //     writers queuing behind each other on the disk, and it publishes a
+  //     whole batch of bundles after writing them (see "Journaler").
+  private final AtomicReferenceArray<Relay.Bundle> history;
+  private final AtomicLong claimed;    // next sequence to hand out
+  private final AtomicLong published;  // all sequences below are readable
+
+  // Which sequences are filled, by "sequence % FILLED". Only used without a
+  // journal.
+  private static final int FILLED = 4096;
+  private final AtomicLongArray filled = new AtomicLongArray(FILLED);
+
+  // Every published bundle is also in the journal (when there is one) so that
+  // history older than the ring can still be read.
+  private final BundleJournal journal;
+
+  // Bundles waiting for the journal thread, which is started by the first
+  // write.
+  private final BlockingQueue<Staged> unjournaled = new LinkedBlockingQueue<>();
+  private final AtomicBoolean journaling = new AtomicBoolean(false);
+
+  // Sequences that the journal thread failed to write. Their writers report
+  // the failure and take them out.
+  private final Set<Long> failed =
+      Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  private static final class Staged {
+
+    final long sequence;
+    final Relay.Bundle bundle;  // null when the sequence has no bundle
+
+    Staged(long sequence, Relay.Bundle bundle) {
+      this.sequence = sequence;
+      this.bundle = bundle;
+    }
   }
 
-  private final Queue<Relay.Bundle> history = new LinkedList<>();
-  private final Map<Uuid, Secret> teamSecrets = new HashMap<>();
+  // Subscribers wait on "arrivals" for new bundles. Writers only take the lock
+  // to wake them when someone is waiting.
+  private final Object arrivals = new Object();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  // How long a subscription can go without a bundle before a heartbeat is
+  // sent so that both ends know the connection is still alive.
+  public static final long HEARTBEAT_MS = 10000;
+
+  private final ConcurrentMap<Uuid, Secret> teamSecrets = new ConcurrentHashMap<>();
+
+  // Users and conversations repeat in bundle after bundle so every bundle that
+  // has the same one shares a single encoded copy of it. The cache is cleared
+  // when it gets too big rather than tracking which entries are still used.
+  private final ConcurrentMap<Uuid, Component> interned = new ConcurrentHashMap<>();
+  private static final int MAX_INTERNED = 65536;
 
   private final int maxHistory;
   private final int maxRead;
 
-  // Okay, some reasoning behind why I'm using a statically initialized linear
-  // generator for the ids for the relay server.
+  // Okay, some reasoning behind why bundle ids are just the sequence numbers.
   //
   //   Point A : The ids only need to be uniqiue for a single run time of the
   //             relay. Ids from the relay are only used as a position into its
@@ -117,15 +209,15 @@ public final class Server implements Relay {
   //
   //   Point B : The chance that the history would be so long that an id could
   //             be reused and appear along side's twin is way too small. The
-  //             range for the ids is 1 to MAX INT (32 bit signed). This means
+  //             range for the ids is 2 to MAX INT (32 bit signed). This means
   //             that there would need to be 2147483646 messages in memory. If
   //             each message was 160 bytes long the relay server would need
   //             over 319 GB of ram.
   //
-  // As a side note, the ids start at 1 and not 0 to avoid the first id from
-  // matching the NULL id which is defined as (null, 0);
-
- private final Uuid.Generator idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  // As a side note, the ids start at 2 (what the linear generator the relay used
+  // to use started at) and not 0 to avoid the first id from matching the NULL
+  // id which is defined as (null, 0);
+  private static final int FIRST_ID = 2;
 
   // SERVER
   //
@@ -134,8 +226,29 @@ public final class Server implements Relay {
   //   - Keep "maxRead" small enough to avoid any one client from connecting to
   //     the server for too long.
   public Server(int maxHistory, int maxRead) {
+    this(maxHistory, maxRead, null);
+  }
+
+  // SERVER
+  //
+  // Create a server that keeps its history in "journal" as well as in memory.
+  // The sequence picks up where the journal left off so bundle ids from before
+  // a restart stay valid. "maxHistory" is then only how many bundles are kept
+  // in memory for fast reads.
+  public Server(int maxHistory, int maxRead, BundleJournal journal) {
     this.maxHistory = Math.max(0, maxHistory);
     this.maxRead = Math.max(0, maxRead);
+    this.history = new AtomicReferenceArray<>(this.maxHistory);
+    this.journal = journal;
+
+    final long next = journal == null ? 0 : journal.next();
+    this.claimed = new AtomicLong(next);
+    this.published = new AtomicLong(next);
+
+    // No sequence is filled yet, and 0 is a sequence.
+    for (int i = 0; i < FILLED; i++) {
+      filled.set(i, -1);
+    }
   }
 
   // ADD TEAM
@@ -147,11 +260,9 @@ public final class Server implements Relay {
 
     LOG.info("Adding team to relay %s", id);
 
-    final boolean open = teamSecrets.get(id) == null;
-
-    if (open) {
-      teamSecrets.put(id, secret);
-    }
+    // The team file may be reloaded while the relay is serving so only the
+    // first secret for a team can ever win.
+    final boolean open = teamSecrets.putIfAbsent(id, secret) == null;
 
     LOG.info(open ?
              "Adding team was successful" :
@@ -165,6 +276,13 @@ public final class Server implements Relay {
     return new Component(id, text, time);
   }
 
+  @Override
+  public Relay.Bundle pack(Relay.Bundle.Component user,
+                           Relay.Bundle.Component conversation,
+                           Relay.Bundle.Component message) {
+    return new Bundle(null, null, null, user, conversation, message);
+  }
+
   @Override
   public boolean write(Uuid teamId,
                        Secret teamSecret,
@@ -181,17 +299,7 @@ public final class Server implements Relay {
           conversation.id(),
           message.id());
 
-      if (history.size() >= maxHistory) {
-         history.remove();
-      }
-
-      return history.offer(new Bundle(
-          idGenerator.make(),
-          Time.now(),
-          teamId,
-          user,
-          conversation,
-          message));
+      return append(teamId, user, conversation, message);
     } else {
 
       LOG.warning(
@@ -205,8 +313,43 @@ public final class Server implements Relay {
     }
   }
 
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+
+    if (!authenticate(teamId, teamSecret)) {
+
+      LOG.warning(
+          "Unauthorized batch write attempt to server team=%s size=%d",
+          teamId,
+          bundles.size());
+
+      return 0;
+    }
+
+    LOG.info("Writing batch to server team=%s size=%d", teamId, bundles.size());
+
+    int written = 0;
+
+    for (final Relay.Bundle bundle : bundles) {
+      if (append(teamId, bundle.user(), bundle.conversation(), bundle.message())) {
+        written++;
+      }
+    }
+
+    return written;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+    return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       RelayFilter filter) {
 
     final Collection<Relay.Bundle> found = new ArrayList<>();
 
@@ -217,19 +360,7 @@ public final class Server implements Relay {
           range,
           maxRead);
 
-      for (final Relay.Bundle message : history) {
-
-        // Only add a message if there is room. We cannot stop
-        // searching in case we see the root later on.
-        if (found.size() < Math.min(range, maxRead)) {
-          found.add(message);
-        }
-
-        // If the start is found, drop all previous messages.
-        if (message.id().equals(root)) {
-          found.clear();
-        }
-      }
+      scan(teamId, after(root), Math.min(range, maxRead), filter, found);
 
       LOG.info(
           "Read request complete requested=%d fullfilled=%d",
@@ -246,6 +377,392 @@ public final class Server implements Relay {
     return found;
   }
 
+  @Override
+  public boolean subscribe(Uuid teamId,
+                           Secret teamSecret,
+                           Uuid root,
+                           RelayFilter filter,
+                           Subscriber subscriber) throws IOException {
+
+    if (!authenticate(teamId, teamSecret)) {
+      LOG.info("Unauthroized attempt to subscribe to server team=%s", teamId);
+      return false;
+    }
+
+    LOG.info("Subscription started team=%s root=%s", teamId, root);
+
+    // Start with a heartbeat so the subscriber knows it was accepted even when
+    // there is nothing to send yet.
+    if (!subscriber.onBundles(new ArrayList<Relay.Bundle>())) {
+      return true;
+    }
+
+    // Track the scan position rather than the last bundle sent so that bundles
+    // the filter skipped are not scanned again.
+    long next = after(root);
+
+    try {
+      while (true) {
+
+        final Collection<Relay.Bundle> page = new ArrayList<>();
+        next = scan(teamId, next, maxRead, filter, page);
+
+        if (!page.isEmpty()) {
+          if (!subscriber.onBundles(page)) {
+            break;
+          }
+        } else if (!await(next, HEARTBEAT_MS) &&
+                   !subscriber.onBundles(new ArrayList<Relay.Bundle>())) {
+          break;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    LOG.info("Subscription ended team=%s", teamId);
+
+    return true;
+  }
+
+  // SCAN
+  //
+  // Add up to "limit" bundles that pass the filter to "found", starting at the
+  // sequence "from" (or the oldest bundle if "from" is no longer in the
+  // history). Returns the sequence to continue scanning from.
+  private long scan(Uuid reader,
+                    long from,
+                    int limit,
+                    RelayFilter filter,
+                    Collection<Relay.Bundle> found) {
+
+    final long end = published.get();
+    final long cached = Math.max(0, end - history.length());
+
+    long next = Math.max(from, oldest(end));
+
+    for (; next < end && found.size() < limit; next++) {
+
+      Relay.Bundle bundle = next >= cached ? history.get(slot(next)) : null;
+
+      // A writer may have reused the slot since "end" was read, or the
+      // bundle was written before a restart. Either way it is only in the
+      // journal now.
+      if (bundle == null || sequence(bundle.id()) != next) {
+        bundle = fromJournal(next);
+      }
+
+      if (bundle != null && filter.accepts(reader, bundle)) {
+        found.add(bundle);
+      }
+    }
+
+    return next;
+  }
+
+  // AWAIT
+  //
+  // Wait until the bundle with sequence "next" (or a later one if it has fallen
+  // out of the history) has been published. Returns false if it was not after
+  // "timeoutMs".
+  private boolean await(long next, long timeoutMs) throws InterruptedException {
+
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+
+    // Count this waiter before checking so that a writer that publishes after
+    // the check is sure to see it and wake it.
+    waiting.incrementAndGet();
+
+    try {
+      synchronized (arrivals) {
+        while (published.get() <= next) {
+          final long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
+          }
+          arrivals.wait(remaining);
+        }
+        return true;
+      }
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  // Get the sequence to start reading from after "root". If the root is not in
+  // the history start from the oldest bundle.
+  private long after(Uuid rootId) {
+
+    final long end = published.get();
+    final long oldest = oldest(end);
+    final long root = sequence(rootId);
+
+    return (root >= oldest && root < end) ? root + 1 : oldest;
+  }
+
+  private long oldest(long end) {
+    final long cached = Math.max(0, end - history.length());
+    return journal == null ? cached : Math.min(cached, journal.first());
+  }
+
+  // Add a bundle to the end of the history, replacing the oldest bundle if the
+  // history is full.
+  private boolean append(Uuid team,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+
+    // Everything that can fail is done before a sequence is claimed. Once a
+    // sequence is claimed it must be published or every later writer would
+    // wait for it forever.
+    final Component userComponent = intern(user);
+    final Component conversationComponent = intern(conversation);
+    final Component messageComponent = encode(message);
+
+    final long sequence = claimed.getAndIncrement();
+    final boolean fits = sequence <= Integer.MAX_VALUE - FIRST_ID;
+
+    Relay.Bundle bundle = null;
+
+    try {
+
+      // Encode the bundle once here so that reads only copy bytes.
+      bundle = !fits ? null : new Bundle(
+          new Uuid(FIRST_ID + (int) sequence),
+          Time.now(),
+          team,
+          userComponent,
+          conversationComponent,
+          messageComponent);
+
+      if (fits && history.length() > 0) {
+
+        // Only replace an older bundle. If this writer was slow enough for a
+        // later writer to wrap around to the same slot, its bundle is already
+        // out of the history.
+        final int slot = slot(sequence);
+        Relay.Bundle current = history.get(slot);
+        while ((current == null || sequence(current.id()) < sequence) &&
+               !history.compareAndSet(slot, current, bundle)) {
+          current = history.get(slot);
+        }
+      }
+
+    } finally {
+
+      // Every claimed sequence is published, even one without a bundle, or
+      // the sequences after it could never be read.
+      if (journal == null) {
+        publish(sequence);
+      } else {
+        journal(sequence, bundle);
+      }
+    }
+
+    if (!fits) {
+      LOG.error("Relay has run out of bundle ids");
+    }
+
+    // A bundle that did not make it into the journal is not in the history
+    // either, so the writer must send it again.
+    return fits && !failed.remove(sequence);
+  }
+
+  // PUBLISH
+  //
+  // Mark "sequence" as filled and then move "published" over every filled
+  // sequence after it. If an earlier sequence is still being filled this stops
+  // there and the writer filling it publishes this one too, so the only wait is
+  // when flags have wrapped all the way around to a sequence that is still not
+  // published.
+  private void publish(long sequence) {
+
+    awaitPublished(sequence - FILLED);
+
+    filled.set(flag(sequence), sequence);
+
+    for (long next = published.get();
+         filled.get(flag(next)) == next;
+         next = published.get()) {
+      published.compareAndSet(next, next + 1);
+    }
+
+    wake();
+  }
+
+  // JOURNAL
+  //
+  // Hand a bundle to the journal thread and wait for it to be published.
+  private void journal(long sequence, Relay.Bundle bundle) {
+
+    if (journaling.compareAndSet(false, true)) {
+      final Thread thread = new Thread(new Journaler(), "relay-journal");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    unjournaled.add(new Staged(sequence, bundle));
+
+    awaitPublished(sequence);
+  }
+
+  // JOURNALER
+  //
+  // Takes every bundle handed to it so far, appends the ones that are next in
+  // sequence to the journal, syncs the journal, and then publishes them all at
+  // once. Bundles that arrive ahead of a slower writer's are held until the gap
+  // is filled. A bundle that fails to be written is still published, as a gap,
+  // so that the ones after it are not held up.
+  private final class Journaler implements Runnable {
+
+    private final TreeMap<Long, Staged> ahead = new TreeMap<>();
+    private final List<Staged> taken = new ArrayList<>();
+
+    @Override
+    public void run() {
+
+      long next = published.get();
+
+      while (true) {
+
+        try {
+          taken.add(unjournaled.take());
+        } catch (InterruptedException ex) {
+          return;
+        }
+
+        unjournaled.drainTo(taken);
+
+        for (final Staged staged : taken) {
+          ahead.put(staged.sequence, staged);
+        }
+        taken.clear();
+
+        final long first = next;
+        final List<Staged> written = new ArrayList<>();
+
+        for (Staged staged = ahead.remove(next); staged != null; staged = ahead.remove(next)) {
+          try {
+            if (staged.bundle != null) {
+              journal.append(staged.sequence, staged.bundle);
+              written.add(staged);
+            }
+          } catch (Exception ex) {
+            LOG.error(ex, "Failed to journal bundle %d", staged.sequence);
+            fail(staged);
+          }
+          next++;
+        }
+
+        try {
+          journal.sync();
+        } catch (IOException ex) {
+          // The bundles may still be read from the journal, but their writers
+          // can not be told they are safe. Readers drop the copies that come
+          // from writing them again by their message ids.
+          LOG.error(ex, "Failed to sync journal bundles %d to %d", first, next - 1);
+          for (final Staged staged : written) {
+            fail(staged);
+          }
+        }
+
+        if (next != first) {
+          published.set(next);
+          wake();
+        }
+      }
+    }
+  }
+
+  // Take a bundle the journal failed to write out of the history so that it is
+  // never read, and let its writer know.
+  private void fail(Staged staged) {
+    if (history.length() > 0) {
+      history.compareAndSet(slot(staged.sequence), staged.bundle, null);
+    }
+    failed.add(staged.sequence);
+  }
+
+  // Wait, without giving up on an interrupt, until "sequence" is published.
+  private void awaitPublished(long sequence) {
+
+    boolean interrupted = false;
+
+    while (published.get() <= sequence) {
+      try {
+        await(sequence, HEARTBEAT_MS);
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void wake() {
+    if (waiting.get() > 0) {
+      synchronized (arrivals) {
+        arrivals.notifyAll();
+      }
+    }
+  }
+
+  private Component intern(Relay.Bundle.Component component) {
+
+    final Component current = interned.get(component.id());
+
+    if (current != null &&
+        current.text().equals(component.text()) &&
+        current.time().compareTo(component.time()) == 0) {
+      return current;
+    }
+
+    if (interned.size() >= MAX_INTERNED) {
+      interned.clear();
+    }
+
+    final Component encoded = encode(component);
+    interned.put(encoded.id(), encoded);
+
+    return encoded;
+  }
+
+  private static Component encode(Relay.Bundle.Component component) {
+    return component instanceof Component ?
+        (Component) component :
+        new Component(component.id(), component.text(), component.time());
+  }
+
+  private Relay.Bundle fromJournal(long sequence) {
+
+    if (journal == null) {
+      return null;
+    }
+
+    try {
+      return journal.read(sequence);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read bundle %d from the journal", sequence);
+      return null;
+    }
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence % history.length());
+  }
+
+  private static int flag(long sequence) {
+    return (int) (sequence % FILLED);
+  }
+
+  // Get the sequence of a bundle from its id. Ids that could not have come from
+  // this relay map to -1.
+  private static long sequence(Uuid id) {
+    return (id == null || id.root() != null) ? -1 : (long) id.id() - FIRST_ID;
+  }
+
   private boolean authenticate(Uuid id, Secret secret) {
     return id != null && secret != null && secret.equals(teamSecrets.get(id));
   }
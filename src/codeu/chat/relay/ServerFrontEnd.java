@@ -14,13 +14,20 @@
 
 package codeu.chat.relay;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayDictionary;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
@@ -33,6 +40,17 @@ public final class ServerFrontEnd {
 
   private final static Logger.Log LOG = Logger.newLog(ServerFrontEnd.class);
 
+  // ENCODED
+  //
+  // Something the relay serialized once, when it was written, so that sending
+  // it to a reader is only a copy. For a component the bytes are the whole
+  // component. For a bundle they are its id, time and team. A bundle's
+  // components are kept on their own so that streams can still send them
+  // through a dictionary.
+  interface Encoded {
+    byte[] encoded();
+  }
+
   private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
       new Serializer<Relay.Bundle.Component>() {
 
@@ -57,54 +75,113 @@ public final class ServerFrontEnd {
 
     @Override
     public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Serializers.STRING.write(out, value.text());
-      Time.SERIALIZER.write(out, value.time());
+      if (value instanceof Encoded) {
+        out.write(((Encoded) value).encoded());
+      } else {
+        Uuid.SERIALIZER.write(out, value.id());
+        Serializers.STRING.write(out, value.text());
+        Time.SERIALIZER.write(out, value.time());
+      }
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
-
-    @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
-
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+  static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER = bundles(COMPONENT_SERIALIZER);
+
+  // The user and conversation of a bundle repeat far more often than its
+  // message so streams of bundles send those two through a dictionary.
+  private static final int DICTIONARY_SIZE = 4096;
+
+  private static Serializer<Relay.Bundle> bundles(
+      final Serializer<Relay.Bundle.Component> components) {
+
+    return new Serializer<Relay.Bundle>() {
+
+      @Override
+      public Relay.Bundle read(InputStream in) throws IOException {
+
+        final Uuid id = Uuid.SERIALIZER.read(in);
+        final Time time = Time.SERIALIZER.read(in);
+        final Uuid team = Uuid.SERIALIZER.read(in);
+        final Relay.Bundle.Component user = components.read(in);
+        final Relay.Bundle.Component conversation = components.read(in);
+        final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+
+        return new Relay.Bundle() {
+          @Override
+          public Uuid id() { return id; }
+          @Override
+          public Time time() { return time; }
+          @Override
+          public Uuid team() { return team; }
+          @Override
+          public Relay.Bundle.Component user() { return user; }
+          @Override
+          public Relay.Bundle.Component conversation() { return conversation; }
+          @Override
+          public Relay.Bundle.Component message() { return message; }
+        };
+      }
+
+      @Override
+      public void write(OutputStream out, Relay.Bundle value) throws IOException {
+        // Bundles that have not been written to the relay yet have no head.
+        final byte[] head = value instanceof Encoded ? ((Encoded) value).encoded() : null;
+        if (head != null) {
+          out.write(head);
+        } else {
+          Uuid.SERIALIZER.write(out, value.id());
+          Time.SERIALIZER.write(out, value.time());
+          Uuid.SERIALIZER.write(out, value.team());
+        }
+        components.write(out, value.user());
+        components.write(out, value.conversation());
+        COMPONENT_SERIALIZER.write(out, value.message());
+      }
+    };
+  }
 
-      return new Relay.Bundle() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public Time time() { return time; }
-        @Override
-        public Uuid team() { return team; }
-        @Override
-        public Relay.Bundle.Component user() { return user; }
-        @Override
-        public Relay.Bundle.Component conversation() { return conversation; }
-        @Override
-        public Relay.Bundle.Component message() { return message; }
-      };
+  // ENCODE COMPONENT
+  //
+  // Serialize a component the same way COMPONENT_SERIALIZER does.
+  static byte[] encodeComponent(Uuid id, String text, Time time) {
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Uuid.SERIALIZER.write(out, id);
+      Serializers.STRING.write(out, text);
+      Time.SERIALIZER.write(out, time);
+      return out.toByteArray();
+    } catch (IOException ex) {
+      // Writing to a byte array does not fail.
+      throw new IllegalStateException(ex);
     }
+  }
 
-    @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
+  // ENCODE HEAD
+  //
+  // Serialize the part of a bundle that comes before its components the same
+  // way BUNDLE_SERIALIZER does.
+  static byte[] encodeHead(Uuid id, Time time, Uuid team) {
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Uuid.SERIALIZER.write(out, id);
+      Time.SERIALIZER.write(out, time);
+      Uuid.SERIALIZER.write(out, team);
+      return out.toByteArray();
+    } catch (IOException ex) {
+      // Writing to a byte array does not fail.
+      throw new IllegalStateException(ex);
     }
-  };
+  }
+
+  // The most bundles a batch read will send over one connection. The back end
+  // is read one page (its "maxRead") at a time until the batch is full.
+  private static final int MAX_BATCH_READ = 1024;
 
   private final Relay backEnd;
 
+  // Every subscription gets its own thread for as long as it lasts.
+  private final ExecutorService subscriptions = Executors.newCachedThreadPool();
+
   public ServerFrontEnd(Relay backEnd) {
     this.backEnd = backEnd;
   }
@@ -116,6 +193,9 @@ public final class ServerFrontEnd {
     switch (Serializers.INTEGER.read(connection.in())) {
       case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection); break;
       case NetworkCode.RELAY_WRITE_REQUEST: handleWriteMessage(connection); break;
+      case NetworkCode.RELAY_READ_BATCH_REQUEST: handleReadBatch(connection); break;
+      case NetworkCode.RELAY_WRITE_BATCH_REQUEST: handleWriteBatch(connection); break;
+      case NetworkCode.RELAY_SUBSCRIBE_REQUEST: handleSubscribe(connection); break;
     }
 
     LOG.info("Handling Connection - end");
@@ -176,4 +256,141 @@ public final class ServerFrontEnd {
 
     LOG.info("Handling Write Message - end");
   }
+
+  private void handleReadBatch(Connection connection) throws IOException {
+
+    LOG.info("Handling Read Batch - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final int range = Math.min(Serializers.INTEGER.read(connection.in()), MAX_BATCH_READ);
+    final RelayFilter filter = RelayFilter.SERIALIZER.read(connection.in());
+
+    LOG.info(
+        "Reading batch team=%s root=%s range=%d",
+        teamId,
+        root,
+        range);
+
+    final List<Relay.Bundle> result = new ArrayList<>();
+
+    // Keep reading pages until the batch is full or there is nothing newer.
+    Uuid next = root;
+    while (result.size() < range) {
+
+      final Collection<Relay.Bundle> page =
+          backEnd.read(teamId, teamSecret, next, range - result.size(), filter);
+
+      if (page.isEmpty()) {
+        break;
+      }
+
+      for (final Relay.Bundle bundle : page) {
+        result.add(bundle);
+        next = bundle.id();
+      }
+    }
+
+    LOG.info("Reading batch result.size=%d", result.size());
+
+    final RelayDictionary dictionary = new RelayDictionary(COMPONENT_SERIALIZER, DICTIONARY_SIZE);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_BATCH_RESPONSE);
+    Serializers.collection(bundles(dictionary)).write(connection.out(), result);
+
+    LOG.info("Handling Read Batch - end");
+  }
+
+  private void handleWriteBatch(Connection connection) throws IOException {
+
+    LOG.info("Handling Write Batch - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final int size = Serializers.INTEGER.read(connection.in());
+
+    final List<Relay.Bundle> bundles = new ArrayList<>(Math.max(0, size));
+    final RelayDictionary dictionary = new RelayDictionary(COMPONENT_SERIALIZER, DICTIONARY_SIZE);
+
+    for (int i = 0; i < size; i++) {
+      final Relay.Bundle.Component user = dictionary.read(connection.in());
+      final Relay.Bundle.Component conversation = dictionary.read(connection.in());
+      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(connection.in());
+      bundles.add(backEnd.pack(user, conversation, message));
+    }
+
+    LOG.info("Writing batch team=%s size=%d", teamId, bundles.size());
+
+    final int written = backEnd.write(teamId, teamSecret, bundles);
+
+    LOG.info("Writing batch written=%d", written);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_RESPONSE);
+    Serializers.INTEGER.write(connection.out(), written);
+
+    LOG.info("Handling Write Batch - end");
+  }
+
+  // A subscription holds its connection for as long as the team server stays
+  // connected, so it is run on its own thread rather than the caller's.
+  private void handleSubscribe(final Connection connection) throws IOException {
+
+    LOG.info("Handling Subscribe - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final RelayFilter filter = RelayFilter.SERIALIZER.read(connection.in());
+
+    LOG.info("Subscribing team=%s root=%s", teamId, root);
+
+    subscriptions.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+
+          // Write the response and the accepted flag in the first callback so
+          // a rejected team only gets "false".
+          final boolean[] started = { false };
+
+          // One dictionary for the whole subscription so a user or
+          // conversation is only sent in full once per connection.
+          final Serializer<Collection<Relay.Bundle>> frames = Serializers.collection(
+              bundles(new RelayDictionary(COMPONENT_SERIALIZER, DICTIONARY_SIZE)));
+
+          final boolean accepted = backEnd.subscribe(teamId, teamSecret, root, filter, new Relay.Subscriber() {
+            @Override
+            public boolean onBundles(Collection<Relay.Bundle> bundles) throws IOException {
+              if (!started[0]) {
+                Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+                Serializers.BOOLEAN.write(connection.out(), true);
+                started[0] = true;
+              }
+              frames.write(connection.out(), bundles);
+              return true;
+            }
+          });
+
+          if (!accepted) {
+            Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+            Serializers.BOOLEAN.write(connection.out(), false);
+          }
+
+        } catch (IOException ex) {
+          LOG.info("Subscription closed team=%s (%s)", teamId, ex.toString());
+        } catch (Exception ex) {
+          LOG.error(ex, "Unexpected error in subscription team=%s", teamId);
+        }
+
+        try {
+          connection.close();
+        } catch (IOException ex) {
+          LOG.error(ex, "Exception while closing subscription.");
+        }
+
+        LOG.info("Handling Subscribe - end");
+      }
+    });
+  }
 }
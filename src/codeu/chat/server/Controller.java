@@ -14,7 +14,13 @@
 
 package codeu.chat.server;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
@@ -79,7 +85,7 @@ public final class Controller implements RawController, BasicController {
 
       } else {
         final Message lastMessage = model.messageById().first(foundConversation.lastMessage);
-        lastMessage.next = message.id;
+        model.link(lastMessage, message.id);
       }
 
       // If the first message points to NULL it means that the conversation was empty and that
@@ -99,6 +105,91 @@ public final class Controller implements RawController, BasicController {
     return message;
   }
 
+  // NEW MESSAGES
+  //
+  // Add a run of messages to the end of one conversation. The conversation and
+  // its last message are looked up once for the whole run rather than once per
+  // message. Each message's "next" and "previous" are ignored. Messages whose
+  // author is unknown or whose id is in use are skipped. Returns the messages
+  // that were added, in order.
+  public List<Message> newMessages(Uuid conversation, List<Message> messages) {
+    return addChain(conversation, newChain(messages));
+  }
+
+  // NEW CHAIN
+  //
+  // The first half of "newMessages": make the messages of a run that can be
+  // added, without adding them. This only reads from the model so chains for
+  // different conversations can be made on several threads at once as long as
+  // nothing changes the model meanwhile.
+  List<Message> newChain(List<Message> messages) {
+
+    final List<Message> chain = new ArrayList<>(messages.size());
+    final Map<Uuid, Boolean> authors = new HashMap<>();
+    final Set<Uuid> ids = new HashSet<>();
+
+    for (final Message candidate : messages) {
+
+      Boolean known = authors.get(candidate.author);
+      if (known == null) {
+        known = model.userById().first(candidate.author) != null;
+        authors.put(candidate.author, known);
+      }
+
+      if (!known || !isIdFree(candidate.id) || !ids.add(candidate.id)) {
+        continue;
+      }
+
+      chain.add(new Message(candidate.id,
+                            Uuid.NULL,
+                            Uuid.NULL,
+                            candidate.creation,
+                            candidate.author,
+                            candidate.content));
+    }
+
+    return chain;
+  }
+
+  // ADD CHAIN
+  //
+  // The second half of "newMessages": add a chain made by "newChain" to the end
+  // of its conversation. The ids in the chain must still be free. Returns the
+  // messages that were added, which is all of them unless the conversation is
+  // gone.
+  List<Message> addChain(Uuid conversation, List<Message> chain) {
+
+    final ConversationPayload foundConversation = model.conversationPayloadById().first(conversation);
+
+    if (foundConversation == null) {
+      return new ArrayList<>();
+    }
+
+    Message last = Uuid.equals(foundConversation.lastMessage, Uuid.NULL) ?
+        null :
+        model.messageById().first(foundConversation.lastMessage);
+
+    for (final Message message : chain) {
+
+      model.add(message);
+
+      if (last != null) {
+        model.link(last, message.id);
+      }
+
+      if (Uuid.equals(foundConversation.firstMessage, Uuid.NULL)) {
+        foundConversation.firstMessage = message.id;
+      }
+      foundConversation.lastMessage = message.id;
+
+      last = message;
+    }
+
+    LOG.info("Messages added: %d to %s", chain.size(), conversation);
+
+    return chain;
+  }
+
   @Override
   public User newUser(Uuid id, String name, Time creationTime) {
 
@@ -0,0 +1,177 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codeu.chat.util.Logger;
+import codeu.chat.util.Uuid;
+
+// CONVERSATION HYDRATOR
+//
+// Loads a conversation's messages from the transaction log the first time the
+// conversation is used. At startup a lazy replay only loads users and
+// conversation headers and records where each conversation's messages are in
+// the log. Until a conversation is touched its messages cost nothing but their
+// offsets.
+//
+// The log is append-only so the recorded offsets stay valid while the server
+// keeps writing to it. Messages written after startup are already in the model
+// and are never deferred.
+public final class ConversationHydrator {
+
+  private final static Logger.Log LOG = Logger.newLog(ConversationHydrator.class);
+
+  private final Map<Uuid, long[]> pending = new HashMap<>();
+
+  private final Model model;
+  private final LogReplay replay;
+
+  private File log;
+
+  public ConversationHydrator(Model model) {
+    this.model = model;
+    this.replay = new LogReplay(model, 1);
+  }
+
+  // LOAD
+  //
+  // Lazily replay the log. Users and conversations are loaded now and messages
+  // are loaded when their conversation is hydrated. Returns the last relay
+  // cursor in the log, or null if there is none.
+  public Uuid load(File file) throws IOException {
+    log = file;
+    final LogReplay replay = new LogReplay(model);
+    replay.replay(file, this);
+    return replay.cursor();
+  }
+
+  // DEFER
+  //
+  // Record where the messages for a conversation are in the log. The offsets
+  // must be in the order the messages should be added.
+  void defer(Uuid conversation, long[] offsets) {
+    final long[] existing = pending.get(conversation);
+    if (existing == null) {
+      pending.put(conversation, offsets);
+    } else {
+      final long[] joined = new long[existing.length + offsets.length];
+      System.arraycopy(existing, 0, joined, 0, existing.length);
+      System.arraycopy(offsets, 0, joined, existing.length, offsets.length);
+      pending.put(conversation, joined);
+    }
+  }
+
+  // IS PENDING
+  //
+  // Check if there are any conversations whose messages have not been loaded.
+  public boolean isPending() {
+    return !pending.isEmpty();
+  }
+
+  // HYDRATE
+  //
+  // Make sure that all messages for the conversation are in the model. This is
+  // cheap when the conversation has already been hydrated or was never
+  // deferred. Returns true if messages were loaded by this call.
+  public boolean hydrate(Uuid conversation) {
+
+    final long[] offsets = pending.remove(conversation);
+
+    if (offsets == null) {
+      return false;
+    }
+
+    final long start = System.currentTimeMillis();
+
+    final List<LogReplay.Entry> entries = new ArrayList<>(offsets.length);
+
+    try (final RandomAccessFile file = new RandomAccessFile(log, "r")) {
+      for (final long offset : offsets) {
+        final LogReplay.Entry entry = LogReplay.decode(readLine(file.getChannel(), offset), offset);
+        if (entry != null) {
+          entries.add(entry);
+        }
+      }
+    } catch (IOException ex) {
+      // Leave the conversation pending so that the next use can try again.
+      pending.put(conversation, offsets);
+      LOG.error(ex, "Failed to hydrate conversation %s", conversation);
+      return false;
+    }
+
+    final int added = replay.apply(conversation, entries);
+
+    LOG.info(
+        "Hydrated conversation %s (messages=%d) in %d ms",
+        conversation,
+        added,
+        System.currentTimeMillis() - start);
+
+    return true;
+  }
+
+  // HYDRATE ALL
+  //
+  // Load every conversation that is still pending. This is the fallback for
+  // when a message is asked for by id without its conversation being used
+  // first.
+  public void hydrateAll() {
+    for (final Uuid conversation : new ArrayList<>(pending.keySet())) {
+      hydrate(conversation);
+    }
+  }
+
+  private static String readLine(FileChannel channel, long offset) throws IOException {
+
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    final ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    long position = offset;
+
+    while (true) {
+
+      buffer.clear();
+
+      final int read = channel.read(buffer, position);
+
+      if (read <= 0) {
+        break;
+      }
+
+      position += read;
+      buffer.flip();
+
+      while (buffer.hasRemaining()) {
+        final byte next = buffer.get();
+        if (next == '\n') {
+          return LogReplay.toLine(line);
+        }
+        line.write(next);
+      }
+    }
+
+    return LogReplay.toLine(line);
+  }
+}
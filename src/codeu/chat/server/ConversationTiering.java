@@ -0,0 +1,408 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.BloomFilter;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+
+// CONVERSATION TIERING
+//
+// Moves the messages of conversations that nobody is using out of the model
+// and into compressed archive files, and brings them back the next time the
+// conversation is used. Users, conversation headers, and payloads always stay
+// in the model so only the messages are ever archived.
+//
+// A conversation is archived when it has not been used for "idle" ms or when
+// the messages that are in the model go over the heap budget (least recently
+// used first). Message sizes are rough estimates and are only used to decide
+// when to archive.
+//
+// For each archived conversation a bloom filter of its message ids is kept so
+// that a message asked for by id can be found without reading every archive.
+//
+// The archives are scratch space. The transaction log is still the durable
+// record, so any old archives are removed when tiering is enabled.
+public final class ConversationTiering {
+
+  private final static Logger.Log LOG = Logger.newLog(ConversationTiering.class);
+
+  private static final String SUFFIX = ".gz";
+
+  // What a message costs beyond its content: the message, its ids and time, and
+  // a link in each of the model's message stores.
+  private static final long MESSAGE_OVERHEAD = 256;
+
+  private static final class Resident {
+    long bytes;
+    long lastUse;
+  }
+
+  private static final class Archived {
+    final long bytes;
+    final BloomFilter ids;
+
+    Archived(long bytes, BloomFilter ids) {
+      this.bytes = bytes;
+      this.ids = ids;
+    }
+  }
+
+  // In access order so that iterating starts at the least recently used.
+  private final LinkedHashMap<Uuid, Resident> resident = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Uuid, Archived> archived = new HashMap<>();
+
+  private final Model model;
+
+  private File directory;
+  private long budget;
+  private long idle;
+  private long residentBytes;
+
+  public ConversationTiering(Model model) {
+    this.model = model;
+  }
+
+  // ENABLE
+  //
+  // Start tracking conversations. Until this is called every other method does
+  // nothing. The budget is in bytes and idle is in ms.
+  public void enable(File directory, long budget, long idle) throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create archive directory " + directory);
+    }
+
+    final File[] old = directory.listFiles();
+    if (old != null) {
+      for (final File file : old) {
+        if (file.getName().endsWith(SUFFIX) && !file.delete()) {
+          LOG.warning("Could not remove old archive %s", file);
+        }
+      }
+    }
+
+    this.directory = directory;
+    this.budget = budget;
+    this.idle = idle;
+  }
+
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  // ADMIT ALL
+  //
+  // Start tracking every conversation in the model as if it had just been used
+  // and then archive down to the budget. This is called after the model is
+  // rebuilt from the log.
+  public void admitAll() {
+
+    if (!isEnabled()) {
+      return;
+    }
+
+    for (final ConversationPayload payload : model.conversationPayloadById().all()) {
+      if (!resident.containsKey(payload.id) && !archived.containsKey(payload.id)) {
+        final Resident entry = new Resident();
+        entry.bytes = measure(payload.id);
+        entry.lastUse = System.currentTimeMillis();
+        resident.put(payload.id, entry);
+        residentBytes += entry.bytes;
+      }
+    }
+
+    trim(null);
+  }
+
+  // TOUCH
+  //
+  // Mark a conversation as used. If it was archived its messages are put back
+  // in the model before this returns.
+  public void touch(Uuid conversation) {
+
+    if (!isEnabled() || model.conversationPayloadById().first(conversation) == null) {
+      return;
+    }
+
+    if (archived.containsKey(conversation)) {
+      restore(conversation);
+    }
+
+    residentEntry(conversation).lastUse = System.currentTimeMillis();
+
+    trim(conversation);
+  }
+
+  // GREW
+  //
+  // Account for a message that was just added to a conversation.
+  public void grew(Uuid conversation, Message message) {
+
+    if (!isEnabled() || message == null) {
+      return;
+    }
+
+    final long bytes = estimate(message);
+
+    residentEntry(conversation).bytes += bytes;
+    residentBytes += bytes;
+
+    trim(conversation);
+  }
+
+  // REMEASURE
+  //
+  // Forget what is known about a conversation's size. This is needed when its
+  // messages were added without going through "grew" (for example when it was
+  // hydrated from the log).
+  public void remeasure(Uuid conversation) {
+
+    if (!isEnabled()) {
+      return;
+    }
+
+    final Resident entry = resident.remove(conversation);
+
+    if (entry != null) {
+      residentBytes -= entry.bytes;
+    }
+  }
+
+  // LOCATE
+  //
+  // Restore any archived conversation that may hold the message. Returns true
+  // if the message is in the model afterwards.
+  public boolean locate(Uuid message) {
+
+    if (!isEnabled()) {
+      return false;
+    }
+
+    final List<Uuid> candidates = new ArrayList<>();
+    for (final Map.Entry<Uuid, Archived> entry : archived.entrySet()) {
+      if (entry.getValue().ids.mightContain(message)) {
+        candidates.add(entry.getKey());
+      }
+    }
+
+    for (final Uuid conversation : candidates) {
+      touch(conversation);
+      if (model.messageById().first(message) != null) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // ARCHIVE IDLE
+  //
+  // Archive every conversation that has not been used for longer than the idle
+  // time.
+  public void archiveIdle() {
+
+    if (!isEnabled()) {
+      return;
+    }
+
+    final long cutoff = System.currentTimeMillis() - idle;
+
+    final List<Uuid> cold = new ArrayList<>();
+    for (final Map.Entry<Uuid, Resident> entry : resident.entrySet()) {
+      if (entry.getValue().lastUse >= cutoff) {
+        // Everything after this was used more recently.
+        break;
+      }
+      cold.add(entry.getKey());
+    }
+
+    for (final Uuid conversation : cold) {
+      archive(conversation);
+    }
+  }
+
+  public long residentBytes() {
+    return residentBytes;
+  }
+
+  public int archived() {
+    return archived.size();
+  }
+
+  // Archive the least recently used conversations until the resident messages
+  // fit in the budget. The conversation that is being used is never archived.
+  private void trim(Uuid keep) {
+
+    if (residentBytes <= budget) {
+      return;
+    }
+
+    final List<Uuid> order = new ArrayList<>(resident.keySet());
+
+    for (final Uuid conversation : order) {
+      if (residentBytes <= budget) {
+        break;
+      }
+      if (!Uuid.equals(conversation, keep)) {
+        archive(conversation);
+      }
+    }
+  }
+
+  private Resident residentEntry(Uuid conversation) {
+
+    Resident entry = resident.get(conversation);
+
+    if (entry == null) {
+      entry = new Resident();
+      entry.bytes = measure(conversation);
+      entry.lastUse = System.currentTimeMillis();
+      resident.put(conversation, entry);
+      residentBytes += entry.bytes;
+    }
+
+    return entry;
+  }
+
+  private void archive(Uuid conversation) {
+
+    final Resident entry = resident.get(conversation);
+    final List<Message> messages = chain(conversation);
+
+    if (messages.isEmpty()) {
+      // Nothing to save. Keep tracking it so that it will not be measured again.
+      return;
+    }
+
+    final File file = file(conversation);
+
+    try (final OutputStream out = new GZIPOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      Serializers.collection(Message.SERIALIZER).write(out, messages);
+    } catch (IOException ex) {
+      // Keep the messages in the model. Nothing has been removed yet.
+      file.delete();
+      LOG.error(ex, "Failed to archive conversation %s", conversation);
+      return;
+    }
+
+    final BloomFilter ids = new BloomFilter(messages.size());
+
+    for (final Message message : messages) {
+      ids.add(message.id);
+      model.remove(message);
+    }
+
+    resident.remove(conversation);
+    residentBytes -= entry.bytes;
+    archived.put(conversation, new Archived(entry.bytes, ids));
+
+    LOG.info("Archived conversation %s (messages=%d)", conversation, messages.size());
+  }
+
+  private void restore(Uuid conversation) {
+
+    final File file = file(conversation);
+    final Collection<Message> messages;
+
+    try (final InputStream in = new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      messages = Serializers.collection(Message.SERIALIZER).read(in);
+    } catch (IOException ex) {
+      // Leave it archived so that the next use can try again.
+      LOG.error(ex, "Failed to restore conversation %s", conversation);
+      return;
+    }
+
+    // Some stores resolve "next" when a message is added, which only works if
+    // the next message is already there, so every message is added before
+    // the chain is linked back together.
+    for (final Message message : messages) {
+      model.add(message);
+    }
+    for (final Message message : messages) {
+      model.link(message, message.next);
+    }
+
+    if (!file.delete()) {
+      LOG.warning("Could not remove archive %s", file);
+    }
+
+    final Archived entry = archived.remove(conversation);
+
+    final Resident restored = new Resident();
+    restored.bytes = entry.bytes;
+    restored.lastUse = System.currentTimeMillis();
+    resident.put(conversation, restored);
+    residentBytes += restored.bytes;
+
+    LOG.info("Restored conversation %s (messages=%d)", conversation, messages.size());
+  }
+
+  private List<Message> chain(Uuid conversation) {
+
+    final List<Message> messages = new ArrayList<>();
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation);
+
+    if (payload == null) {
+      return messages;
+    }
+
+    for (Message current = model.messageById().first(payload.firstMessage);
+         current != null;
+         current = model.messageById().first(current.next)) {
+      messages.add(current);
+    }
+
+    return messages;
+  }
+
+  private long measure(Uuid conversation) {
+    long bytes = 0;
+    for (final Message message : chain(conversation)) {
+      bytes += estimate(message);
+    }
+    return bytes;
+  }
+
+  private File file(Uuid conversation) {
+    return new File(directory, conversation.toString().replaceAll("[^0-9A-Za-z.]", "_") + SUFFIX);
+  }
+
+  private static long estimate(Message message) {
+    return MESSAGE_OVERHEAD + 2L * message.content.length();
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Relay;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// CURSOR BUNDLE
+//
+// A bundle read from another relay under a new id. Relays that read from more
+// than one relay give each bundle the cursor for all of them as its id so that
+// a server can pick up from any bundle it has seen.
+final class CursorBundle implements Relay.Bundle {
+
+  private final Uuid id;
+  final Relay.Bundle bundle;
+
+  CursorBundle(Uuid id, Relay.Bundle bundle) {
+    this.id = id;
+    this.bundle = bundle;
+  }
+
+  @Override
+  public Uuid id() { return id; }
+
+  @Override
+  public Time time() { return bundle.time(); }
+
+  @Override
+  public Uuid team() { return bundle.team(); }
+
+  @Override
+  public Relay.Bundle.Component user() { return bundle.user(); }
+
+  @Override
+  public Relay.Bundle.Component conversation() { return bundle.conversation(); }
+
+  @Override
+  public Relay.Bundle.Component message() { return bundle.message(); }
+}
@@ -0,0 +1,438 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// FEDERATED RELAY
+//
+// Reads from several independent relays (e.g. one per region) as if they were
+// one. This server's own messages are only written to the first relay, its
+// home relay. Every relay is read from its own cursor and the id of a bundle
+// from this relay is a cursor for all of them.
+//
+// Relays are read at the same time and a read only waits "waitMs" for them.
+// A relay that has not answered by then is left to finish in the background
+// and what it returns is merged into a later read, so a slow relay never holds
+// back the others. A read's bundles are merged by time and a message that came
+// from more than one relay is only passed on once per read. Copies that arrive
+// in different reads are left for the server's ingest, which remembers the
+// messages it applied recently.
+public final class FederatedRelay implements Relay {
+
+  private final static Logger.Log LOG = Logger.newLog(FederatedRelay.class);
+
+  private static final long MIN_BACKOFF_MS = 250;
+  private static final long MAX_BACKOFF_MS = 30000;
+
+  private final List<Relay> relays;
+  private final long waitMs;
+
+  private final ExecutorService readers = Executors.newCachedThreadPool();
+
+  // The read still running for each relay and the cursor it started from.
+  private final List<Future<Collection<Relay.Bundle>>> pending = new ArrayList<>();
+  private final List<Uuid> pendingFrom = new ArrayList<>();
+
+  public FederatedRelay(List<Relay> relays, long waitMs) {
+
+    this.relays = new ArrayList<>(relays);
+    this.waitMs = waitMs;
+
+    for (int i = 0; i < this.relays.size(); i++) {
+      pending.add(null);
+      pendingFrom.add(null);
+    }
+  }
+
+  @Override
+  public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+    return relays.get(0).pack(id, text, time);
+  }
+
+  @Override
+  public Relay.Bundle pack(Relay.Bundle.Component user,
+                           Relay.Bundle.Component conversation,
+                           Relay.Bundle.Component message) {
+    return relays.get(0).pack(user, conversation, message);
+  }
+
+  @Override
+  public boolean write(Uuid teamId,
+                       Secret teamSecret,
+                       Relay.Bundle.Component user,
+                       Relay.Bundle.Component conversation,
+                       Relay.Bundle.Component message) {
+    return relays.get(0).write(teamId, teamSecret, user, conversation, message);
+  }
+
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+    return relays.get(0).write(teamId, teamSecret, bundles);
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+    return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+  }
+
+  // READ
+  //
+  // Start a read on every relay that does not already have one running, wait
+  // up to "waitMs" for them, and merge whatever has come back. This is meant to
+  // be called by one reader at a time.
+  @Override
+  public synchronized Collection<Relay.Bundle> read(final Uuid teamId,
+                                                    final Secret teamSecret,
+                                                    Uuid root,
+                                                    final int range,
+                                                    final RelayFilter filter) {
+
+    final Uuid[] cursors = cursors(root);
+
+    for (int relay = 0; relay < relays.size(); relay++) {
+
+      // A read that started from somewhere else (the caller went back to an
+      // older cursor) is no use any more.
+      if (pending.get(relay) != null && !Uuid.equals(pendingFrom.get(relay), cursors[relay])) {
+        pending.get(relay).cancel(true);
+        pending.set(relay, null);
+      }
+
+      if (pending.get(relay) == null) {
+        final Relay target = relays.get(relay);
+        final Uuid from = cursors[relay];
+        pendingFrom.set(relay, from);
+        pending.set(relay, readers.submit(new Callable<Collection<Relay.Bundle>>() {
+          @Override
+          public Collection<Relay.Bundle> call() {
+            return target.read(teamId, teamSecret, from, range, filter);
+          }
+        }));
+      }
+    }
+
+    final long deadline = System.currentTimeMillis() + waitMs;
+    final List<List<Relay.Bundle>> reads = empty();
+
+    for (int relay = 0; relay < relays.size(); relay++) {
+
+      final Future<Collection<Relay.Bundle>> future = pending.get(relay);
+
+      try {
+        final long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        reads.set(relay, new ArrayList<>(future.get(remaining, TimeUnit.MILLISECONDS)));
+        pending.set(relay, null);
+      } catch (TimeoutException ex) {
+        LOG.info("Relay %d is slow, merging its bundles later", relay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException ex) {
+        LOG.error(ex.getCause(), "Failed to read from relay %d", relay);
+        pending.set(relay, null);
+      }
+    }
+
+    return merge(cursors, reads);
+  }
+
+  // SUBSCRIBE
+  //
+  // Subscribe to every relay on its own thread. Each relay is followed on its
+  // own: when its subscription breaks it subscribes again from its own cursor
+  // after a backoff, and a relay that can not push bundles is polled instead.
+  // This only returns once the subscriber asks to stop (or the calling thread
+  // is interrupted).
+  @Override
+  public boolean subscribe(final Uuid teamId,
+                           final Secret teamSecret,
+                           final Uuid root,
+                           final RelayFilter filter,
+                           final Subscriber subscriber) throws IOException {
+
+    final Uuid[] cursors = cursors(root);
+    final boolean[] open = { true };
+
+    final List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < relays.size(); i++) {
+
+      final int relay = i;
+
+      final Subscriber forward = new Subscriber() {
+        @Override
+        public boolean onBundles(Collection<Relay.Bundle> bundles) throws IOException {
+          synchronized (cursors) {
+
+            if (!open[0]) {
+              return false;
+            }
+
+            final List<List<Relay.Bundle>> reads = empty();
+            reads.set(relay, new ArrayList<>(bundles));
+
+            open[0] = subscriber.onBundles(merge(cursors, reads));
+            return open[0];
+          }
+        }
+      };
+
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          follow(relay, teamId, teamSecret, filter, cursors, open, forward);
+        }
+      };
+
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (final Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        synchronized (cursors) {
+          open[0] = false;
+        }
+        for (final Thread other : threads) {
+          other.interrupt();
+        }
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    return true;
+  }
+
+  // Keep one relay's bundles coming until the subscription is closed.
+  private void follow(int relay,
+                      Uuid teamId,
+                      Secret teamSecret,
+                      RelayFilter filter,
+                      Uuid[] cursors,
+                      boolean[] open,
+                      Subscriber forward) {
+
+    final Relay target = relays.get(relay);
+    boolean push = true;
+    long backoff = MIN_BACKOFF_MS;
+
+    while (isOpen(cursors, open)) {
+
+      final Uuid from;
+      synchronized (cursors) {
+        from = cursors[relay];
+      }
+
+      try {
+
+        if (push) {
+          if (!target.subscribe(teamId, teamSecret, from, filter, forward)) {
+            LOG.error("Relay %d rejected the subscription", relay);
+          }
+        } else {
+          final Collection<Relay.Bundle> bundles = target.read(teamId, teamSecret, from, 1024, filter);
+          forward.onBundles(bundles);
+          if (!bundles.isEmpty()) {
+            backoff = MIN_BACKOFF_MS;
+            continue;
+          }
+        }
+
+      } catch (UnsupportedOperationException ex) {
+        LOG.info("Relay %d does not support subscriptions, polling it instead", relay);
+        push = false;
+        continue;
+      } catch (IOException ex) {
+        LOG.warning("Subscription to relay %d broke (%s)", relay, ex.toString());
+      } catch (Exception ex) {
+        LOG.error(ex, "Unexpected error following relay %d", relay);
+      }
+
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException ex) {
+        return;
+      }
+
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+    }
+  }
+
+  private static boolean isOpen(Object lock, boolean[] open) {
+    synchronized (lock) {
+      return open[0];
+    }
+  }
+
+  // Merge bundles from the relays by time, dropping messages that came from
+  // more than one relay, and give each bundle the cursor for every relay as its
+  // id. Each relay's bundles stay in the order the relay gave them and time
+  // only decides between the relays' next bundles, so a relay's cursor never
+  // moves back or past a bundle even when its clock is off. A dropped bundle
+  // still moves its relay's cursor, so if the last bundles were dropped the
+  // last bundle kept is given the final cursor.
+  private List<Relay.Bundle> merge(Uuid[] cursors, List<List<Relay.Bundle>> reads) {
+
+    final int[] heads = new int[reads.size()];
+    final List<Relay.Bundle> result = new ArrayList<>();
+    final Set<Uuid> messages = new HashSet<>();
+
+    boolean trailing = false;
+
+    for (int relay = earliest(reads, heads); relay >= 0; relay = earliest(reads, heads)) {
+
+      final Relay.Bundle bundle = reads.get(relay).get(heads[relay]++);
+      cursors[relay] = bundle.id();
+
+      if (messages.add(bundle.message().id())) {
+        result.add(new CursorBundle(encode(cursors), bundle));
+        trailing = false;
+      } else {
+        trailing = true;
+      }
+    }
+
+    if (trailing) {
+      final int last = result.size() - 1;
+      result.set(last, new CursorBundle(encode(cursors), ((CursorBundle) result.get(last)).bundle));
+    }
+
+    return result;
+  }
+
+  // Get the relay whose next bundle is the oldest, or -1 when every relay's
+  // bundles have been taken. Ties go to the lower relay.
+  private static int earliest(List<List<Relay.Bundle>> reads, int[] heads) {
+
+    int earliest = -1;
+    Time time = null;
+
+    for (int relay = 0; relay < reads.size(); relay++) {
+      if (heads[relay] < reads.get(relay).size()) {
+        final Time head = reads.get(relay).get(heads[relay]).time();
+        if (time == null || head.compareTo(time) < 0) {
+          earliest = relay;
+          time = head;
+        }
+      }
+    }
+
+    return earliest;
+  }
+
+  // No bundles from any relay yet.
+  private List<List<Relay.Bundle>> empty() {
+    final List<List<Relay.Bundle>> reads = new ArrayList<>(relays.size());
+    for (int relay = 0; relay < relays.size(); relay++) {
+      reads.add(new ArrayList<Relay.Bundle>());
+    }
+    return reads;
+  }
+
+  // A cursor for all of the relays is a chain of ids: the number of relays and
+  // then, for each relay, the length of its cursor followed by the cursor.
+  private static Uuid encode(Uuid[] cursors) {
+
+    Uuid id = new Uuid(cursors.length);
+
+    for (final Uuid cursor : cursors) {
+
+      final List<Integer> chain = chain(cursor);
+      id = new Uuid(id, chain.size());
+
+      for (final int link : chain) {
+        id = new Uuid(id, link);
+      }
+    }
+
+    return id;
+  }
+
+  // Split a cursor into the cursor for each relay. Anything that is not a
+  // cursor for this many relays (e.g. NULL) starts every relay from its oldest
+  // bundle.
+  private Uuid[] cursors(Uuid root) {
+
+    final Uuid[] cursors = new Uuid[relays.size()];
+    for (int i = 0; i < cursors.length; i++) {
+      cursors[i] = Uuid.NULL;
+    }
+
+    final List<Integer> chain = chain(root);
+
+    if (chain.isEmpty() || chain.get(0) != cursors.length) {
+      return cursors;
+    }
+
+    final Uuid[] parsed = new Uuid[cursors.length];
+    int index = 1;
+
+    for (int relay = 0; relay < parsed.length; relay++) {
+
+      if (index >= chain.size()) {
+        return cursors;
+      }
+
+      final int length = chain.get(index++);
+
+      if (length < 0 || index + length > chain.size()) {
+        return cursors;
+      }
+
+      Uuid cursor = null;
+      for (int i = 0; i < length; i++) {
+        cursor = new Uuid(cursor, chain.get(index++));
+      }
+
+      parsed[relay] = cursor == null ? Uuid.NULL : cursor;
+    }
+
+    return index == chain.size() ? parsed : cursors;
+  }
+
+  // The ids of a chain from the root down.
+  private static List<Integer> chain(Uuid id) {
+    final List<Integer> chain = new ArrayList<>();
+    for (Uuid current = id; current != null; current = current.root()) {
+      chain.add(current.id());
+    }
+    Collections.reverse(chain);
+    return chain;
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.Store;
+import codeu.chat.util.store.StoreAccessor;
+
+// HEAP MESSAGE STORE
+//
+// Keeps every message on the heap in three stores (by id, time, and text). This
+// is the default and is what the model has always done.
+public final class HeapMessageStore implements MessageStore {
+
+  private final Store<Uuid, Message> messageById = new Store<>(Model.UUID_COMPARE);
+  private final Store<Time, Message> messageByTime = new Store<>(Model.TIME_COMPARE);
+  private final Store<String, Message> messageByText = new Store<>(Model.STRING_COMPARE);
+
+  @Override
+  public void add(Message message) {
+    messageById.insert(message.id, message);
+    messageByTime.insert(message.creation, message);
+    messageByText.insert(message.content, message);
+  }
+
+  @Override
+  public void link(Message message, Uuid next) {
+    // The stores hold the same instance that is given out so there is nothing
+    // else to update.
+    message.next = next;
+  }
+
+  @Override
+  public void remove(Message message) {
+    messageById.remove(message.id, message);
+    messageByTime.remove(message.creation, message);
+    messageByText.remove(message.content, message);
+  }
+
+  @Override
+  public StoreAccessor<Uuid, Message> byId() {
+    return messageById;
+  }
+
+  @Override
+  public StoreAccessor<Time, Message> byTime() {
+    return messageByTime;
+  }
+
+  @Override
+  public StoreAccessor<String, Message> byText() {
+    return messageByText;
+  }
+}
@@ -0,0 +1,256 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import codeu.chat.util.store.StoreAccessor;
+
+// LOCATION INDEX
+//
+// An ordered index from keys to where records are in a file, kept in primitive
+// arrays. Each entry is a long key and a long location, so an entry costs 16 to
+// 32 bytes (blocks are between half full and full) instead of a map entry, a
+// store link and a boxed location.
+//
+// Every key is reduced to a long by "key". Keys that reduce to the same long
+// are told apart by "compare", which may read the record at a location to get
+// its full key. Entries with the same long come back in the order they were
+// added rather than in the order of their full keys.
+//
+// Entries are kept sorted in blocks of up to BLOCK entries, so adding or
+// removing an entry only moves part of one block. Like Store, this is not safe
+// to change while it is being read.
+abstract class LocationIndex<KEY> implements StoreAccessor<KEY, Long> {
+
+  private static final int BLOCK = 1024;
+
+  private static final class Block {
+
+    final long[] keys = new long[BLOCK];
+    final long[] locations = new long[BLOCK];
+    int size;
+
+    void insert(int at, long key, long location) {
+      System.arraycopy(keys, at, keys, at + 1, size - at);
+      System.arraycopy(locations, at, locations, at + 1, size - at);
+      keys[at] = key;
+      locations[at] = location;
+      size++;
+    }
+
+    void remove(int at) {
+      System.arraycopy(keys, at + 1, keys, at, size - at - 1);
+      System.arraycopy(locations, at + 1, locations, at, size - at - 1);
+      size--;
+    }
+
+    // Move the upper half of this block to a new block.
+    Block split() {
+      final Block upper = new Block();
+      upper.size = size / 2;
+      size -= upper.size;
+      System.arraycopy(keys, size, upper.keys, 0, upper.size);
+      System.arraycopy(locations, size, upper.locations, 0, upper.size);
+      return upper;
+    }
+
+    // The first entry with a key of at least "key" or, when "after" is set,
+    // more than "key".
+    int search(long key, boolean after) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (keys[middle] < key || (after && keys[middle] == key)) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+
+  private final List<Block> blocks = new ArrayList<>();
+
+  // Reduce a key to a long. This must keep the order of the keys.
+  protected abstract long key(KEY key);
+
+  // Compare a key with the full key of the record at "location" when both
+  // reduce to the same long.
+  protected abstract int compare(KEY key, long location);
+
+  public void insert(KEY key, long location) {
+
+    final long reduced = key(key);
+
+    if (blocks.isEmpty()) {
+      blocks.add(new Block());
+    }
+
+    // The last block that starts at or before the key, so the entry goes after
+    // any entries with the same key.
+    final int index = Math.max(0, block(reduced, true) - 1);
+    Block block = blocks.get(index);
+
+    if (block.size == BLOCK) {
+      final Block upper = block.split();
+      blocks.add(index + 1, upper);
+      if (upper.keys[0] <= reduced) {
+        block = upper;
+      }
+    }
+
+    block.insert(block.search(reduced, true), reduced, location);
+  }
+
+  public void remove(KEY key, long location) {
+
+    final long reduced = key(key);
+
+    for (int index = Math.max(0, block(reduced, false) - 1); index < blocks.size(); index++) {
+
+      final Block block = blocks.get(index);
+
+      for (int i = block.search(reduced, false); i < block.size && block.keys[i] == reduced; i++) {
+        if (block.locations[i] == location) {
+          block.remove(i);
+          if (block.size == 0) {
+            blocks.remove(index);
+          }
+          return;
+        }
+      }
+
+      if (block.size > 0 && block.keys[block.size - 1] > reduced) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public Long first(KEY key) {
+    final Iterator<Long> found = between(key, key).iterator();
+    return found.hasNext() ? found.next() : null;
+  }
+
+  @Override
+  public Iterable<Long> all() { return between(null, null); }
+
+  @Override
+  public Iterable<Long> at(KEY key) { return between(key, key); }
+
+  @Override
+  public Iterable<Long> after(KEY start) { return between(start, null); }
+
+  @Override
+  public Iterable<Long> before(KEY end) { return between(null, end); }
+
+  @Override
+  public Iterable<Long> range(KEY start, KEY end) { return between(start, end); }
+
+  // The first block whose first key is at least "key" or, when "after" is set,
+  // more than "key". The block before it may still end with the key.
+  private int block(long key, boolean after) {
+    int low = 0;
+    int high = blocks.size();
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      final long first = blocks.get(middle).keys[0];
+      if (first < key || (after && first == key)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  // Every location whose key is from "start" to "end", both included. A null
+  // bound is open.
+  private Iterable<Long> between(final KEY start, final KEY end) {
+
+    final long low = start == null ? Long.MIN_VALUE : key(start);
+    final long high = end == null ? Long.MAX_VALUE : key(end);
+
+    return new Iterable<Long>() {
+      @Override
+      public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+
+          private int index = start == null ? 0 : Math.max(0, block(low, false) - 1);
+          private int position = start == null ? 0 : search(index, low);
+          private Long next = advance();
+
+          @Override
+          public boolean hasNext() { return next != null; }
+
+          @Override
+          public Long next() {
+            if (next == null) {
+              throw new NoSuchElementException();
+            }
+            final Long current = next;
+            next = advance();
+            return current;
+          }
+
+          @Override
+          public void remove() { throw new UnsupportedOperationException(); }
+
+          private Long advance() {
+
+            while (index < blocks.size()) {
+
+              final Block block = blocks.get(index);
+
+              if (position >= block.size) {
+                index++;
+                position = 0;
+                continue;
+              }
+
+              final long key = block.keys[position];
+              final long location = block.locations[position];
+              position++;
+
+              if (key > high) {
+                return null;
+              }
+
+              // Entries that share a bound's long may still be outside it.
+              if ((start != null && key == low && compare(start, location) > 0) ||
+                  (end != null && key == high && compare(end, location) < 0)) {
+                continue;
+              }
+
+              return location;
+            }
+
+            return null;
+          }
+        };
+      }
+    };
+  }
+
+  private int search(int index, long key) {
+    return index < blocks.size() ? blocks.get(index).search(key, false) : 0;
+  }
+}
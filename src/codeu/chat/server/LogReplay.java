@@ -0,0 +1,578 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// LOG REPLAY
+//
+// Rebuilds the model from the transaction log written by PersistentLog. The
+// log is read a block at a time and replayed in batches of lines, so the heap
+// a replay needs does not grow with the log: each batch's messages are in the
+// model's message store before the next batch is read. Every batch goes
+// through three stages:
+//
+//   1. Its lines are decoded in parallel chunks.
+//   2. Users and then conversations are applied in log order. There are few of
+//      them and messages depend on them, so this stage is serial. They go
+//      straight into the model, with the same checks the controller makes,
+//      so that replaying does not log a line for every entry.
+//   3. Messages are partitioned by conversation and each conversation's chain
+//      is built on a fork-join pool. Messages keep the order they have in the
+//      log within their conversation. The finished chains are then committed
+//      to the model in a single pass, each one carrying on from the last
+//      message its conversation had.
+//
+// The log is written in order so a message's author and conversation always
+// come before it, in the same batch or an earlier one.
+//
+// In lazy mode stage 3 does not build any messages. Instead the position of
+// each message in the log is handed to a ConversationHydrator which will load
+// a conversation's messages the first time that conversation is used.
+//
+// Nothing is logged per entry; a single summary with the replay throughput is
+// logged at the end.
+public final class LogReplay {
+
+  private final static Logger.Log LOG = Logger.newLog(LogReplay.class);
+
+  // The number of lines a single decode task will handle before splitting.
+  private static final int DECODE_CHUNK = 1024;
+
+  // The number of lines replayed at a time.
+  private static final int BATCH = 16 * 1024;
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  static final class Entry {
+
+    static final int USER = 0;
+    static final int CONVERSATION = 1;
+    static final int MESSAGE = 2;
+    static final int CURSOR = 3;
+
+    final int type;
+    final Uuid id;
+    final Uuid owner;         // author of a message or owner of a conversation
+    final Uuid conversation;  // only set for messages
+    final Time time;
+    final String text;
+    final long offset;        // where the entry's line starts in the log
+
+    Entry(int type, Uuid id, Uuid owner, Uuid conversation, Time time, String text, long offset) {
+      this.type = type;
+      this.id = id;
+      this.owner = owner;
+      this.conversation = conversation;
+      this.time = time;
+      this.text = text;
+      this.offset = offset;
+    }
+  }
+
+  private final Model model;
+  private final int parallelism;
+
+  private int deferred;
+  private int users;
+  private int conversations;
+  private int messages;
+  private int skipped;
+  private Uuid cursor;
+
+  public LogReplay(Model model) {
+    this(model, Runtime.getRuntime().availableProcessors());
+  }
+
+  public LogReplay(Model model, int parallelism) {
+    this.model = model;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  // REPLAY
+  //
+  // Read the full log and apply it to the model. Lines that cannot be decoded
+  // and entries that cannot be applied (missing author, id already in use) are
+  // skipped and counted.
+  public void replay(File file) throws IOException {
+    replay(file, null);
+  }
+
+  // REPLAY LAZILY
+  //
+  // Read the full log but only apply users and conversations. Messages are left
+  // in the log and the hydrator is told where to find them.
+  public void replay(File file, ConversationHydrator hydrator) throws IOException {
+
+    final long start = System.currentTimeMillis();
+
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    final List<String> lines = new ArrayList<>(BATCH);
+    final long[] offsets = new long[BATCH];
+
+    long total = 0;
+    long decoding = 0;
+
+    try (final Lines log = new Lines(file)) {
+
+      while (log.next(lines, offsets) > 0) {
+
+        final long batch = System.currentTimeMillis();
+
+        // STAGE 1 : decode
+
+        final Entry[] entries = new Entry[lines.size()];
+        pool.invoke(new DecodeTask(lines, offsets, entries, 0, entries.length));
+
+        decoding += System.currentTimeMillis() - batch;
+        total += entries.length;
+
+        apply(pool, entries, hydrator);
+      }
+
+      final long end = System.currentTimeMillis();
+      final long elapsed = Math.max(1, end - start);
+
+      LOG.info(
+          "Replayed %d lines (users=%d conversations=%d messages=%d deferred=%d skipped=%d) " +
+          "in %d ms (decode=%d ms apply=%d ms threads=%d) %d entries/s",
+          total,
+          users,
+          conversations,
+          messages,
+          deferred,
+          skipped,
+          elapsed,
+          decoding,
+          elapsed - decoding,
+          parallelism,
+          total * 1000L / elapsed);
+
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public int users() { return users; }
+
+  public int conversations() { return conversations; }
+
+  public int messages() { return messages; }
+
+  public int deferred() { return deferred; }
+
+  public int skipped() { return skipped; }
+
+  // CURSOR
+  //
+  // The last relay cursor in the log, or null if the log has none.
+  public Uuid cursor() { return cursor; }
+
+  // APPLY CONVERSATION
+  //
+  // Build and commit the chain for a single conversation on the calling thread.
+  // This is used by the hydrator when it loads a conversation on demand.
+  int apply(Uuid conversation, List<Entry> entries) {
+    final ChainTask task = new ChainTask(conversation, entries);
+    task.build();
+    commit(task);
+    return task.chain.size();
+  }
+
+  // Apply one batch of decoded entries.
+  private void apply(ForkJoinPool pool, Entry[] entries, ConversationHydrator hydrator) {
+
+    // STAGE 2 : users and conversations
+
+    final Map<Uuid, List<Entry>> byConversation = new LinkedHashMap<>();
+    final Set<Uuid> messageIds = new HashSet<>();
+
+    for (final Entry entry : entries) {
+      if (entry == null) {
+        skipped++;
+      } else if (entry.type == Entry.USER) {
+        if (isIdInUse(entry.id)) {
+          skipped++;
+        } else {
+          model.add(new User(entry.id, entry.text, entry.time));
+          users++;
+        }
+      } else if (entry.type == Entry.CONVERSATION) {
+        if (model.userById().first(entry.owner) == null || isIdInUse(entry.id)) {
+          skipped++;
+        } else {
+          model.add(new ConversationHeader(entry.id, entry.owner, entry.time, entry.text));
+          conversations++;
+        }
+      } else if (entry.type == Entry.CURSOR) {
+        // Only the newest cursor matters.
+        cursor = entry.id;
+      } else if (messageIds.add(entry.id)) {
+        partition(byConversation, entry);
+      } else {
+        // The first use of an id wins, the same as when the log was written.
+        // Ids used in an earlier batch are already in the model and are
+        // rejected when the chain is built.
+        skipped++;
+      }
+    }
+
+    // STAGE 3 : messages
+
+    if (hydrator != null) {
+      defer(hydrator, byConversation);
+    } else {
+      apply(pool, byConversation);
+    }
+  }
+
+  private void apply(ForkJoinPool pool, Map<Uuid, List<Entry>> byConversation) {
+
+    final List<ChainTask> tasks = new ArrayList<>(byConversation.size());
+    for (final Map.Entry<Uuid, List<Entry>> partition : byConversation.entrySet()) {
+      tasks.add(new ChainTask(partition.getKey(), partition.getValue()));
+    }
+
+    pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+
+    for (final ChainTask task : tasks) {
+      commit(task);
+    }
+  }
+
+  private void defer(ConversationHydrator hydrator, Map<Uuid, List<Entry>> byConversation) {
+
+    for (final Map.Entry<Uuid, List<Entry>> partition : byConversation.entrySet()) {
+
+      final List<Entry> entries = partition.getValue();
+
+      if (model.conversationPayloadById().first(partition.getKey()) == null) {
+        skipped += entries.size();
+        continue;
+      }
+
+      final long[] positions = new long[entries.size()];
+      for (int i = 0; i < positions.length; i++) {
+        positions[i] = entries.get(i).offset;
+      }
+
+      hydrator.defer(partition.getKey(), positions);
+      deferred += positions.length;
+    }
+  }
+
+  private void partition(Map<Uuid, List<Entry>> byConversation, Entry entry) {
+    List<Entry> chain = byConversation.get(entry.conversation);
+    if (chain == null) {
+      chain = new ArrayList<>();
+      byConversation.put(entry.conversation, chain);
+    }
+    chain.add(entry);
+  }
+
+  // Add a finished chain to the model. This is the only part of stage 3 that
+  // writes to the model and so it is done on the calling thread.
+  private void commit(ChainTask task) {
+
+    skipped += task.rejected;
+
+    if (task.chain.isEmpty()) {
+      return;
+    }
+
+    Message previous = task.last;
+
+    for (final Message message : task.chain) {
+      model.add(message);
+      if (previous != null) {
+        model.link(previous, message.id);
+      }
+      previous = message;
+    }
+
+    final Message first = task.chain.get(0);
+    final Message last = task.chain.get(task.chain.size() - 1);
+
+    task.payload.firstMessage =
+        Uuid.equals(task.payload.firstMessage, Uuid.NULL) ?
+        first.id :
+        task.payload.firstMessage;
+
+    task.payload.lastMessage = last.id;
+
+    messages += task.chain.size();
+  }
+
+  // LINES
+  //
+  // Reads the log a block at a time and splits it into lines, keeping the
+  // offset where each line starts. This does the line splitting itself as
+  // BufferedReader does not report positions.
+  private static final class Lines implements Closeable {
+
+    private final InputStream in;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    private int position;
+    private int limit;
+    private long offset;  // where block[position] is in the log
+    private long start;   // where the line being read starts
+
+    Lines(File file) throws IOException {
+      this.in = new FileInputStream(file);
+    }
+
+    // Replace the contents of "lines" with up to "offsets.length" more lines of
+    // the log and fill in where each one starts. Returns how many were read,
+    // which is zero once the whole log has been read.
+    int next(List<String> lines, long[] offsets) throws IOException {
+
+      lines.clear();
+
+      while (lines.size() < offsets.length) {
+
+        if (position == limit) {
+          position = 0;
+          limit = Math.max(0, in.read(block));
+          if (limit == 0) {
+            // The last line may not end with a line break.
+            if (line.size() > 0) {
+              offsets[lines.size()] = start;
+              lines.add(toLine(line));
+              line.reset();
+            }
+            break;
+          }
+        }
+
+        int end = position;
+        while (end < limit && block[end] != '\n') {
+          end++;
+        }
+
+        line.write(block, position, end - position);
+        offset += end - position;
+        position = end;
+
+        if (end < limit) {
+          offsets[lines.size()] = start;
+          lines.add(toLine(line));
+          line.reset();
+          position++;
+          offset++;
+          start = offset;
+        }
+      }
+
+      return lines.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  // Lines are written with PrintWriter and so use the platform's line separator
+  // and charset. Drop the carriage return if there is one.
+  static String toLine(ByteArrayOutputStream bytes) {
+    final String line = bytes.toString();
+    return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+  }
+
+  // DECODE
+  //
+  // Turn a single line of the log into an entry. Returns null if the line is
+  // not a valid log entry. The last field of every command is free text and
+  // may contain spaces.
+  static Entry decode(String line, long offset) {
+
+    try {
+
+      final String[] command = line.trim().split("\\s+", 2);
+
+      switch (command[0]) {
+
+        case "U-ADD": {
+          final String[] args = command[1].split("\\s+", 3);
+          return new Entry(Entry.USER,
+                           Uuid.parse(args[0]),
+                           null,
+                           null,
+                           Time.fromMs(Long.parseLong(args[1])),
+                           args[2],
+                           offset);
+        }
+
+        case "C-ADD": {
+          final String[] args = command[1].split("\\s+", 4);
+          return new Entry(Entry.CONVERSATION,
+                           Uuid.parse(args[0]),
+                           Uuid.parse(args[1]),
+                           null,
+                           Time.fromMs(Long.parseLong(args[2])),
+                           args[3],
+                           offset);
+        }
+
+        case "M-ADD": {
+          final String[] args = command[1].split("\\s+", 5);
+          return new Entry(Entry.MESSAGE,
+                           Uuid.parse(args[0]),
+                           Uuid.parse(args[1]),
+                           Uuid.parse(args[2]),
+                           Time.fromMs(Long.parseLong(args[3])),
+                           args[4],
+                           offset);
+        }
+
+        case "R-SEEN": {
+          return new Entry(Entry.CURSOR,
+                           Uuid.parse(command[1].trim()),
+                           null,
+                           null,
+                           null,
+                           null,
+                           offset);
+        }
+
+        default:
+          return null;
+      }
+
+    } catch (Exception ex) {
+      // Bad ids, bad times and missing fields all mean the line is not usable.
+      return null;
+    }
+  }
+
+  private static final class DecodeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> lines;
+    private final long[] offsets;
+    private final Entry[] entries;
+    private final int start;
+    private final int end;
+
+    DecodeTask(List<String> lines, long[] offsets, Entry[] entries, int start, int end) {
+      this.lines = lines;
+      this.offsets = offsets;
+      this.entries = entries;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= DECODE_CHUNK) {
+        for (int i = start; i < end; i++) {
+          entries[i] = decode(lines.get(i), offsets[i]);
+        }
+      } else {
+        final int middle = (start + end) >>> 1;
+        invokeAll(new DecodeTask(lines, offsets, entries, start, middle),
+                  new DecodeTask(lines, offsets, entries, middle, end));
+      }
+    }
+  }
+
+  // CHAIN TASK
+  //
+  // Builds the messages for a single conversation in log order. The messages are
+  // linked together when they are committed. This only reads
+  // from the model (which is not written to while chain tasks run) so many of
+  // these can run at once.
+  private final class ChainTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Uuid conversation;
+    private final Collection<Entry> entries;
+
+    final List<Message> chain = new ArrayList<>();
+    ConversationPayload payload;
+    Message last;
+    int rejected;
+
+    ChainTask(Uuid conversation, Collection<Entry> entries) {
+      this.conversation = conversation;
+      this.entries = entries;
+    }
+
+    @Override
+    protected void compute() {
+      build();
+    }
+
+    void build() {
+
+      payload = model.conversationPayloadById().first(conversation);
+
+      if (payload == null) {
+        rejected = entries.size();
+        return;
+      }
+
+      last = model.messageById().first(payload.lastMessage);
+
+      for (final Entry entry : entries) {
+
+        if (model.userById().first(entry.owner) == null || isIdInUse(entry.id)) {
+          rejected++;
+          continue;
+        }
+
+        chain.add(new Message(entry.id, Uuid.NULL, Uuid.NULL, entry.time, entry.owner, entry.text));
+      }
+    }
+  }
+
+  private boolean isIdInUse(Uuid id) {
+    return model.messageById().first(id) != null ||
+           model.conversationById().first(id) != null ||
+           model.userById().first(id) != null;
+  }
+}
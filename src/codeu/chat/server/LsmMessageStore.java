@@ -0,0 +1,1246 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.BloomFilter;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.Store;
+import codeu.chat.util.store.StoreAccessor;
+
+// LSM MESSAGE STORE
+//
+// A log-structured merge tree for messages. New messages go into a memtable
+// (the same Stores the heap store uses). When the memtable is full it is
+// written to disk as a run sorted by id and a new memtable is started. Each run
+// keeps a Bloom filter and a sparse index of its ids on the heap so that a
+// lookup touches at most one small part of the file for each run that might
+// have the id. After its records a run has a time index: the position of every
+// record sorted by creation time, in fixed size entries that are binary
+// searched on disk.
+//
+// Runs are organized in levels. Level 0 holds runs as they are flushed, and
+// every other level holds a single run that is about ten times larger than the
+// level above it. A background timeline merges level 0 into level 1 when
+// level 0 has too many runs and merges a level into the next when it grows too
+// large.
+//
+// Runs are never changed. Changing a message (which only happens through
+// "link") writes a new version of it to the memtable and removing one writes a
+// tombstone. Lookups check the memtable, then level 0 from newest to oldest,
+// then each level in order, and the first version found wins. Merges keep only
+// the newest version and drop tombstones once no level below could still hold
+// the message.
+//
+// Walking messages by id or by time is a lazy merge of the memtable and each
+// run, with every run read in order from the first key in range, so only one
+// record per run is on the heap at a time. An iterator holds its runs' files
+// open until it reaches its end, or until it is collected if it is dropped
+// early.
+//
+// Adding, linking and removing must come from one thread at a time. Lookups
+// may come from any thread as long as nothing is being changed at the same
+// time. The transaction log is still the durable record, so the runs are
+// scratch space: any old ones are removed when the store is opened and the
+// tree is rebuilt by replaying the log on every start.
+public final class LsmMessageStore implements MessageStore, Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(LsmMessageStore.class);
+
+  private static final String PREFIX = "run-";
+
+  // Number of records between entries in a run's sparse index.
+  private static final int SPARSE = 16;
+
+  // A time index entry is the creation time and the position of a record.
+  private static final int TIME_ENTRY = 8 + 8;
+
+  // Number of time index entries read from disk at once.
+  private static final int TIME_BATCH = 256;
+
+  // Level 0 is merged into level 1 when it has this many runs.
+  private static final int LEVEL_ZERO_RUNS = 4;
+
+  // Each level may be this many times larger than the level above it.
+  private static final int LEVEL_RATIO = 10;
+
+  private static final Comparator<Message> BY_TIME = new Comparator<Message>() {
+    @Override
+    public int compare(Message a, Message b) {
+      final int order = Model.TIME_COMPARE.compare(a.creation, b.creation);
+      return order == 0 ? Model.UUID_COMPARE.compare(a.id, b.id) : order;
+    }
+  };
+
+  private static final Comparator<Message> BY_ID = new Comparator<Message>() {
+    @Override
+    public int compare(Message a, Message b) {
+      return Model.UUID_COMPARE.compare(a.id, b.id);
+    }
+  };
+
+  // VERSION
+  //
+  // A message as the tree holds it, or a tombstone saying it was removed.
+  private static final class Version {
+
+    final Message message;
+    final boolean removed;
+
+    Version(Message message, boolean removed) {
+      this.message = message;
+      this.removed = removed;
+    }
+  }
+
+  private final File directory;
+  private final int memtableLimit;
+
+  private Store<Uuid, Message> memtableById = new Store<>(Model.UUID_COMPARE);
+  private Store<Time, Message> memtableByTime = new Store<>(Model.TIME_COMPARE);
+
+  // Messages removed since the last flush that a run may still hold.
+  private TreeMap<Uuid, Message> memtableRemoved = new TreeMap<>(Model.UUID_COMPARE);
+
+  private int memtableSize = 0;
+
+  // Each level is a list of runs with the newest first. Guarded by "lock" so
+  // that the compactor can swap runs while others are reading.
+  private final List<List<Run>> levels = new ArrayList<>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Timeline compactor = new Timeline();
+  private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+  private int nextRun = 0;
+
+  private final StoreAccessor<Uuid, Message> byId = new IdAccessor();
+  private final StoreAccessor<Time, Message> byTime = new TimeAccessor();
+
+  public LsmMessageStore(File directory, int memtableLimit) throws IOException {
+
+    this.directory = directory;
+    this.memtableLimit = Math.max(1, memtableLimit);
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create message directory " + directory);
+    }
+
+    final File[] old = directory.listFiles();
+    if (old != null) {
+      for (final File file : old) {
+        if (file.getName().startsWith(PREFIX) && !file.delete()) {
+          LOG.warning("Could not remove old run %s", file);
+        }
+      }
+    }
+
+    levels.add(new ArrayList<Run>());
+  }
+
+  @Override
+  public void add(Message message) {
+    put(message);
+  }
+
+  @Override
+  public void link(Message message, Uuid next) {
+
+    final Message inMemory = memtableById.first(message.id);
+
+    if (inMemory != null) {
+      inMemory.next = next;
+    } else {
+      final Message stored = find(message.id);
+      if (stored != null) {
+        put(new Message(stored.id, next, stored.previous, stored.creation, stored.author, stored.content));
+      }
+    }
+
+    message.next = next;
+  }
+
+  // REMOVE
+  //
+  // Drop a message from the memtable and, if a run may still hold it, hide it
+  // behind a tombstone.
+  @Override
+  public void remove(Message message) {
+
+    final Message inMemory = memtableById.first(message.id);
+
+    if (inMemory != null) {
+      memtableById.remove(inMemory.id, inMemory);
+      memtableByTime.remove(inMemory.creation, inMemory);
+    }
+
+    if (findOnDisk(message.id) != null) {
+      memtableRemoved.put(message.id, message);
+      memtableSize++;
+      if (memtableSize >= memtableLimit) {
+        flush();
+      }
+    }
+  }
+
+  @Override
+  public StoreAccessor<Uuid, Message> byId() {
+    return byId;
+  }
+
+  @Override
+  public StoreAccessor<Time, Message> byTime() {
+    return byTime;
+  }
+
+  @Override
+  public StoreAccessor<String, Message> byText() {
+    throw new UnsupportedOperationException("LSM messages are not indexed by text");
+  }
+
+  // CLOSE
+  //
+  // Stop the background compactor and release all runs.
+  @Override
+  public void close() throws IOException {
+
+    compactor.stop();
+    compactor.join();
+
+    lock.writeLock().lock();
+    try {
+      for (final List<Run> level : levels) {
+        for (final Run run : level) {
+          run.close();
+        }
+        level.clear();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // RUNS
+  //
+  // The number of runs at each level. This is mostly useful for tests and for
+  // logging.
+  public int[] runs() {
+    lock.readLock().lock();
+    try {
+      final int[] runs = new int[levels.size()];
+      for (int i = 0; i < runs.length; i++) {
+        runs[i] = levels.get(i).size();
+      }
+      return runs;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void put(Message message) {
+
+    memtableRemoved.remove(message.id);
+    memtableById.insert(message.id, message);
+    memtableByTime.insert(message.creation, message);
+    memtableSize++;
+
+    if (memtableSize >= memtableLimit) {
+      flush();
+    }
+  }
+
+  private void flush() {
+
+    final NavigableMap<Uuid, Version> versions = new TreeMap<>(Model.UUID_COMPARE);
+    for (final Message message : memtableById.all()) {
+      versions.put(message.id, new Version(message, false));
+    }
+    for (final Message message : memtableRemoved.values()) {
+      versions.put(message.id, new Version(message, true));
+    }
+
+    if (!versions.isEmpty()) {
+
+      final Run run;
+
+      try {
+        run = write(0, versions.values().iterator(), versions.size(), true);
+      } catch (IOException ex) {
+        // Keep using the memtable. It will try to flush again on the next add.
+        LOG.error(ex, "Failed to flush memtable");
+        return;
+      }
+
+      lock.writeLock().lock();
+      try {
+        levels.get(0).add(0, run);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    memtableById = new Store<>(Model.UUID_COMPARE);
+    memtableByTime = new Store<>(Model.TIME_COMPARE);
+    memtableRemoved = new TreeMap<>(Model.UUID_COMPARE);
+    memtableSize = 0;
+
+    if (compacting.compareAndSet(false, true)) {
+      compactor.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (compactOnce()) {
+              // keep going until every level is within its limit
+            }
+          } catch (IOException ex) {
+            LOG.error(ex, "Failed to compact runs");
+          } finally {
+            compacting.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  private Message find(Uuid id) {
+
+    final Message inMemory = memtableById.first(id);
+
+    if (inMemory != null) {
+      return inMemory;
+    }
+
+    return memtableRemoved.containsKey(id) ? null : findOnDisk(id);
+  }
+
+  private Message findOnDisk(Uuid id) {
+
+    lock.readLock().lock();
+
+    try {
+      for (final List<Run> level : levels) {
+        for (final Run run : level) {
+          final Version found = run.find(id);
+          if (found != null) {
+            return found.removed ? null : found.message;
+          }
+        }
+      }
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read message %s", id);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return null;
+  }
+
+  // SCAN
+  //
+  // How to read one run for a walk. Returns null when the run has nothing in
+  // range.
+  private interface Scan {
+    Source open(Run run) throws IOException;
+  }
+
+  // WALK
+  //
+  // Start a lazy walk, in "order", over the newest version of every message
+  // from the memtable and the runs that "scan" reads.
+  private Walk walk(Iterable<Message> inMemory, Scan scan, Comparator<Message> order) {
+
+    final List<Source> sources = new ArrayList<>();
+    sources.add(source(inMemory));
+
+    lock.readLock().lock();
+
+    try {
+      for (final List<Run> level : levels) {
+        for (final Run run : level) {
+          final Source source = scan.open(run);
+          if (source != null) {
+            sources.add(source);
+          }
+        }
+      }
+      return new Walk(new Merge(sources, order), memtableRemoved);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to scan runs");
+      close(sources);
+      return new Walk(null, memtableRemoved);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Walk messages with an id from "start" to "end" (either may be null for no
+  // bound) in order of their ids.
+  private Iterable<Message> byIds(final Uuid start, final Uuid end) {
+    return new Iterable<Message>() {
+      @Override
+      public Iterator<Message> iterator() {
+
+        final Iterable<Message> inMemory =
+            start == null && end == null ? memtableById.all() :
+            start == null ? memtableById.before(end) :
+            end == null ? memtableById.after(start) :
+            memtableById.range(start, end);
+
+        return walk(inMemory, new Scan() {
+          @Override
+          public Source open(Run run) throws IOException {
+            return run.count == 0 ? null : new IdScanner(run, start, end);
+          }
+        }, BY_ID);
+      }
+    };
+  }
+
+  // Walk messages created from "start" to "end" (either may be null for no
+  // bound) in order of their creation time. Links never change the creation
+  // time, so runs outside the range can not hold a newer version of a message
+  // inside it and are skipped.
+  private Iterable<Message> byTimes(final Time start, final Time end) {
+    return new Iterable<Message>() {
+      @Override
+      public Iterator<Message> iterator() {
+
+        final Iterable<Message> inMemory =
+            start == null && end == null ? memtableByTime.all() :
+            start == null ? memtableByTime.before(end) :
+            end == null ? memtableByTime.after(start) :
+            memtableByTime.range(start, end);
+
+        return walk(inMemory, new Scan() {
+          @Override
+          public Source open(Run run) throws IOException {
+            return run.overlaps(start, end) ? new TimeScanner(run, start, end) : null;
+          }
+        }, BY_TIME);
+      }
+    };
+  }
+
+  private static void close(Collection<Source> sources) {
+    for (final Source source : sources) {
+      source.close();
+    }
+  }
+
+  // COMPACT ONCE
+  //
+  // Do at most one merge. Returns true if a merge was done so that the caller
+  // can check again.
+  private boolean compactOnce() throws IOException {
+
+    final List<Run> inputs = new ArrayList<>();
+    final int target;
+    final boolean bottom;
+
+    lock.readLock().lock();
+    try {
+      final List<Run> zero = levels.get(0);
+      if (zero.size() >= LEVEL_ZERO_RUNS) {
+        inputs.addAll(zero);
+        if (levels.size() > 1) {
+          inputs.addAll(levels.get(1));
+        }
+        target = 1;
+      } else {
+        int found = -1;
+        long limit = (long) memtableLimit * LEVEL_ZERO_RUNS;
+        for (int i = 1; i < levels.size() && found < 0; i++) {
+          limit *= LEVEL_RATIO;
+          if (count(levels.get(i)) > limit) {
+            found = i;
+          }
+        }
+        if (found < 0) {
+          return false;
+        }
+        inputs.addAll(levels.get(found));
+        if (levels.size() > found + 1) {
+          inputs.addAll(levels.get(found + 1));
+        }
+        target = found + 1;
+      }
+      // Nothing below the target means nothing older for a tombstone to hide.
+      bottom = levels.size() <= target + 1;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    final long start = System.currentTimeMillis();
+    final Run output = merge(target, inputs, !bottom);
+
+    lock.writeLock().lock();
+    try {
+      for (final List<Run> level : levels) {
+        level.removeAll(inputs);
+      }
+      while (levels.size() <= target) {
+        levels.add(new ArrayList<Run>());
+      }
+      if (output.count > 0) {
+        levels.get(target).add(0, output);
+      } else {
+        output.close();
+        output.file.delete();
+      }
+      for (final Run run : inputs) {
+        run.close();
+        run.file.delete();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    LOG.info(
+        "Compacted %d runs into level %d (messages=%d) in %d ms",
+        inputs.size(),
+        target,
+        output.count,
+        System.currentTimeMillis() - start);
+
+    return true;
+  }
+
+  private static long count(Collection<Run> runs) {
+    long count = 0;
+    for (final Run run : runs) {
+      count += run.count;
+    }
+    return count;
+  }
+
+  // MERGE
+  //
+  // Merge runs (given newest first) into a single run. When more than one run
+  // has the same id, the version from the newest run is kept. Tombstones are
+  // only kept when asked to.
+  private Run merge(int level, List<Run> inputs, boolean keepRemoved) throws IOException {
+
+    final List<Source> sources = new ArrayList<>();
+    long expected = 0;
+
+    try {
+
+      for (final Run run : inputs) {
+        sources.add(new IdScanner(run, null, null));
+        expected += run.count;
+      }
+
+      return write(level,
+                   new Merge(sources, BY_ID),
+                   (int) Math.min(Integer.MAX_VALUE, expected),
+                   keepRemoved);
+
+    } catch (IllegalStateException ex) {
+      throw new IOException("Failed to merge runs", ex.getCause());
+    } finally {
+      close(sources);
+    }
+  }
+
+  // WRITE
+  //
+  // Write versions, which must be sorted by id, to a new run and then write
+  // the run's time index after them.
+  private Run write(int level,
+                    Iterator<Version> versions,
+                    int expected,
+                    boolean keepRemoved) throws IOException {
+
+    final File file = new File(directory, String.format("%s%08d", PREFIX, nextRun()));
+
+    final NavigableMap<Uuid, Long> sparse = new TreeMap<>(Model.UUID_COMPARE);
+    final BloomFilter bloom = new BloomFilter(expected);
+
+    long[] times = new long[Math.max(16, expected)];
+    long[] positions = new long[times.length];
+
+    Time minTime = null;
+    Time maxTime = null;
+    int count = 0;
+    long position = 0;
+
+    try (final DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+      while (versions.hasNext()) {
+
+        final Version version = versions.next();
+
+        if (version.removed && !keepRemoved) {
+          continue;
+        }
+
+        final Message message = version.message;
+
+        bytes.reset();
+        Message.SERIALIZER.write(bytes, message);
+
+        if (count % SPARSE == 0) {
+          sparse.put(message.id, position);
+        }
+
+        bloom.add(message.id);
+
+        minTime = minTime == null || message.creation.compareTo(minTime) < 0 ? message.creation : minTime;
+        maxTime = maxTime == null || message.creation.compareTo(maxTime) > 0 ? message.creation : maxTime;
+
+        if (count == times.length) {
+          times = Arrays.copyOf(times, count * 2);
+          positions = Arrays.copyOf(positions, count * 2);
+        }
+        times[count] = message.creation.inMs();
+        positions[count] = position;
+
+        out.writeInt(version.removed ? ~bytes.size() : bytes.size());
+        bytes.writeTo(out);
+
+        position += 4 + bytes.size();
+        count++;
+      }
+
+      sortByTime(times, positions, count);
+
+      for (int i = 0; i < count; i++) {
+        out.writeLong(times[i]);
+        out.writeLong(positions[i]);
+      }
+    }
+
+    return new Run(file, sparse, bloom, count, position, minTime, maxTime);
+  }
+
+  // Sort the time index entries by time. The sort is stable so entries with the
+  // same time stay in the order of their ids.
+  private static void sortByTime(long[] times, long[] positions, int count) {
+
+    long[] fromTimes = times;
+    long[] fromPositions = positions;
+    long[] toTimes = new long[count];
+    long[] toPositions = new long[count];
+
+    for (int width = 1; width < count; width *= 2) {
+
+      for (int low = 0; low < count; low += 2 * width) {
+
+        final int middle = Math.min(low + width, count);
+        final int high = Math.min(low + 2 * width, count);
+
+        int left = low;
+        int right = middle;
+
+        for (int to = low; to < high; to++) {
+          final int from =
+              right >= high || (left < middle && fromTimes[left] <= fromTimes[right]) ? left++ : right++;
+          toTimes[to] = fromTimes[from];
+          toPositions[to] = fromPositions[from];
+        }
+      }
+
+      final long[] swapTimes = fromTimes;
+      final long[] swapPositions = fromPositions;
+      fromTimes = toTimes;
+      fromPositions = toPositions;
+      toTimes = swapTimes;
+      toPositions = swapPositions;
+    }
+
+    if (fromTimes != times) {
+      System.arraycopy(fromTimes, 0, times, 0, count);
+      System.arraycopy(fromPositions, 0, positions, 0, count);
+    }
+  }
+
+  private synchronized int nextRun() {
+    return nextRun++;
+  }
+
+  private static Message decode(byte[] bytes) throws IOException {
+    return Message.SERIALIZER.read(new ByteArrayInputStream(bytes));
+  }
+
+  // A record's header is its length, flipped for a tombstone.
+  private static int length(int header) {
+    return header < 0 ? ~header : header;
+  }
+
+  private static int header(FileChannel channel, long position) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(4);
+    readFully(channel, header, position);
+    header.flip();
+    return header.getInt();
+  }
+
+  private static Version read(FileChannel channel, long position, int header) throws IOException {
+    final ByteBuffer record = ByteBuffer.allocate(length(header));
+    readFully(channel, record, position + 4);
+    return new Version(decode(record.array()), header < 0);
+  }
+
+  // Positional reads do not move the channel so many threads can do this at
+  // once.
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    final long start = position - buffer.position();
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, start + buffer.position());
+      if (read < 0) {
+        throw new EOFException("Run ended early");
+      }
+    }
+  }
+
+  // RUN
+  //
+  // A sorted, immutable file of records and its time index, along with the
+  // parts of it that are kept on the heap.
+  private static final class Run {
+
+    final File file;
+    final NavigableMap<Uuid, Long> sparse;
+    final BloomFilter bloom;
+    final long count;
+    final long size;  // where the records end and the time index starts
+    final Time minTime;
+    final Time maxTime;
+
+    private final RandomAccessFile random;
+
+    Run(File file,
+        NavigableMap<Uuid, Long> sparse,
+        BloomFilter bloom,
+        long count,
+        long size,
+        Time minTime,
+        Time maxTime) throws IOException {
+
+      this.file = file;
+      this.sparse = sparse;
+      this.bloom = bloom;
+      this.count = count;
+      this.size = size;
+      this.minTime = minTime;
+      this.maxTime = maxTime;
+      this.random = new RandomAccessFile(file, "r");
+    }
+
+    boolean overlaps(Time start, Time end) {
+      return count > 0 &&
+             (start == null || maxTime.compareTo(start) >= 0) &&
+             (end == null || minTime.compareTo(end) <= 0);
+    }
+
+    // Where to start reading to find "id".
+    long seek(Uuid id) {
+      final Map.Entry<Uuid, Long> floor = sparse.floorEntry(id);
+      return floor == null ? 0 : floor.getValue();
+    }
+
+    Version find(Uuid id) throws IOException {
+
+      if (!bloom.mightContain(id) || sparse.floorEntry(id) == null) {
+        return null;
+      }
+
+      final FileChannel channel = random.getChannel();
+
+      long position = seek(id);
+
+      for (int i = 0; i < SPARSE && position < size; i++) {
+
+        final int header = header(channel, position);
+        final Version version = read(channel, position, header);
+        final int order = Model.UUID_COMPARE.compare(version.message.id, id);
+
+        if (order == 0) {
+          return version;
+        } else if (order > 0) {
+          return null;
+        }
+
+        position += 4 + length(header);
+      }
+
+      return null;
+    }
+
+    void close() {
+      try {
+        random.close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close run %s", file);
+      }
+    }
+  }
+
+  // SOURCE
+  //
+  // Versions in order from one part of the tree. Returns null at the end.
+  private interface Source {
+    Version next() throws IOException;
+    void close();
+  }
+
+  private static Source source(final Iterable<Message> messages) {
+    final Iterator<Message> iterator = messages.iterator();
+    return new Source() {
+      @Override
+      public Version next() {
+        return iterator.hasNext() ? new Version(iterator.next(), false) : null;
+      }
+
+      @Override
+      public void close() { }
+    };
+  }
+
+  // ID SCANNER
+  //
+  // Reads a run's records in order of their ids, from "start" to "end" (either
+  // may be null for no bound). The sparse index gives where to start reading.
+  private static final class IdScanner implements Source {
+
+    private final DataInputStream in;
+    private final Uuid start;
+    private final Uuid end;
+    private final long limit;
+    private long position;
+
+    IdScanner(Run run, Uuid start, Uuid end) throws IOException {
+
+      this.start = start;
+      this.end = end;
+      this.limit = run.size;
+      this.position = start == null ? 0 : run.seek(start);
+
+      final FileInputStream file = new FileInputStream(run.file);
+      file.getChannel().position(position);
+      this.in = new DataInputStream(new BufferedInputStream(file));
+    }
+
+    @Override
+    public Version next() throws IOException {
+
+      while (position < limit) {
+
+        final int header = in.readInt();
+        final byte[] bytes = new byte[length(header)];
+        in.readFully(bytes);
+        position += 4 + bytes.length;
+
+        final Message message = decode(bytes);
+
+        if (start != null && Model.UUID_COMPARE.compare(message.id, start) < 0) {
+          continue;
+        }
+
+        if (end != null && Model.UUID_COMPARE.compare(message.id, end) > 0) {
+          position = limit;
+          return null;
+        }
+
+        return new Version(message, header < 0);
+      }
+
+      return null;
+    }
+
+    @Override
+    public void close() {
+      try {
+        in.close();
+      } catch (IOException ex) {
+        // Nothing more can be done.
+      }
+    }
+  }
+
+  // TIME SCANNER
+  //
+  // Reads a run's records in order of their creation time, from "start" to
+  // "end" (either may be null for no bound), by following its time index.
+  private static final class TimeScanner implements Source {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long index;
+    private final long count;
+    private final long endMs;
+    private final ByteBuffer entries = ByteBuffer.allocate(TIME_ENTRY * TIME_BATCH);
+    private long entry;
+
+    TimeScanner(Run run, Time start, Time end) throws IOException {
+
+      this.file = new RandomAccessFile(run.file, "r");
+      this.channel = file.getChannel();
+      this.index = run.size;
+      this.count = run.count;
+      this.endMs = end == null ? Long.MAX_VALUE : end.inMs();
+      this.entry = start == null ? 0 : first(start.inMs());
+
+      entries.limit(0);
+    }
+
+    // The first entry created at or after "ms".
+    private long first(long ms) throws IOException {
+
+      final ByteBuffer time = ByteBuffer.allocate(8);
+
+      long low = 0;
+      long high = count;
+
+      while (low < high) {
+        final long middle = (low + high) >>> 1;
+        time.clear();
+        readFully(channel, time, index + middle * TIME_ENTRY);
+        time.flip();
+        if (time.getLong() < ms) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+
+      return low;
+    }
+
+    @Override
+    public Version next() throws IOException {
+
+      if (entry >= count) {
+        return null;
+      }
+
+      if (!entries.hasRemaining()) {
+        entries.clear();
+        entries.limit((int) Math.min(entries.capacity(), (count - entry) * TIME_ENTRY));
+        readFully(channel, entries, index + entry * TIME_ENTRY);
+        entries.flip();
+      }
+
+      final long time = entries.getLong();
+      final long position = entries.getLong();
+      entry++;
+
+      if (time > endMs) {
+        entry = count;
+        return null;
+      }
+
+      return read(channel, position, header(channel, position));
+    }
+
+    @Override
+    public void close() {
+      try {
+        file.close();
+      } catch (IOException ex) {
+        // Nothing more can be done.
+      }
+    }
+  }
+
+  // CURSOR
+  //
+  // A source's position in a merge.
+  private static final class Cursor {
+
+    final int rank;
+    final Source source;
+    Version current;
+
+    Cursor(int rank, Source source) {
+      this.rank = rank;
+      this.source = source;
+    }
+
+    boolean advance() throws IOException {
+      current = source.next();
+      return current != null;
+    }
+  }
+
+  // MERGE
+  //
+  // Merges sources (given newest first) in "order", giving only the newest
+  // version of each message. Every version of a message has the same id and
+  // creation time so its versions meet in the merge one after another, newest
+  // first. The sources are closed once the merge reaches its end. A source
+  // that fails to read throws IllegalStateException.
+  private static final class Merge implements Iterator<Version> {
+
+    private final List<Source> sources;
+    private final PriorityQueue<Cursor> cursors;
+    private Uuid last = null;
+
+    Merge(List<Source> sources, final Comparator<Message> order) throws IOException {
+
+      this.sources = sources;
+      this.cursors = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor a, Cursor b) {
+          final int compared = order.compare(a.current.message, b.current.message);
+          return compared == 0 ? Integer.compare(a.rank, b.rank) : compared;
+        }
+      });
+
+      for (int i = 0; i < sources.size(); i++) {
+        final Cursor cursor = new Cursor(i, sources.get(i));
+        if (cursor.advance()) {
+          cursors.add(cursor);
+        }
+      }
+
+      if (cursors.isEmpty()) {
+        close();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      skipOlder();
+      return !cursors.isEmpty();
+    }
+
+    @Override
+    public Version next() {
+
+      skipOlder();
+
+      if (cursors.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+
+      final Cursor cursor = cursors.poll();
+      final Version version = cursor.current;
+      last = version.message.id;
+      advance(cursor);
+      return version;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    void close() {
+      LsmMessageStore.close(sources);
+    }
+
+    private void skipOlder() {
+      while (!cursors.isEmpty() && last != null && Uuid.equals(cursors.peek().current.message.id, last)) {
+        advance(cursors.poll());
+      }
+    }
+
+    private void advance(Cursor cursor) {
+      try {
+        if (cursor.advance()) {
+          cursors.add(cursor);
+        } else if (cursors.isEmpty()) {
+          close();
+        }
+      } catch (IOException ex) {
+        cursors.clear();
+        close();
+        throw new IllegalStateException(ex);
+      }
+    }
+  }
+
+  // WALK
+  //
+  // The messages of a merge that are still in the store: tombstones, and older
+  // versions of messages removed since the last flush, are skipped.
+  private static final class Walk implements Iterator<Message>, Closeable {
+
+    private final Merge merge;
+    private final Map<Uuid, Message> removed;
+    private Message next;
+
+    Walk(Merge merge, Map<Uuid, Message> removed) {
+      this.merge = merge;
+      this.removed = removed;
+      this.next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Message next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      final Message current = next;
+      next = advance();
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      if (merge != null) {
+        merge.close();
+      }
+      next = null;
+    }
+
+    private Message advance() {
+
+      try {
+        while (merge != null && merge.hasNext()) {
+          final Version version = merge.next();
+          if (!version.removed && !removed.containsKey(version.message.id)) {
+            return version.message;
+          }
+        }
+      } catch (IllegalStateException ex) {
+        LOG.error(ex.getCause(), "Failed to scan runs");
+      }
+
+      return null;
+    }
+  }
+
+  // ID ACCESSOR
+  //
+  // Single lookups go through the memtable and the runs. Anything that walks
+  // many ids merges the memtable with every run, starting each run where the
+  // sparse index says the first id in range is.
+  private final class IdAccessor implements StoreAccessor<Uuid, Message> {
+
+    @Override
+    public Message first(Uuid id) {
+      return find(id);
+    }
+
+    @Override
+    public Iterable<Message> all() {
+      return byIds(null, null);
+    }
+
+    @Override
+    public Iterable<Message> at(Uuid id) {
+      final Message found = find(id);
+      return found == null ?
+          Collections.<Message>emptyList() :
+          Collections.singletonList(found);
+    }
+
+    @Override
+    public Iterable<Message> after(Uuid start) {
+      return byIds(start, null);
+    }
+
+    @Override
+    public Iterable<Message> before(Uuid end) {
+      return byIds(null, end);
+    }
+
+    @Override
+    public Iterable<Message> range(Uuid start, Uuid end) {
+      return byIds(start, end);
+    }
+  }
+
+  // TIME ACCESSOR
+  //
+  // Runs track the range of creation times they hold so a time lookup only
+  // reads the runs that overlap it, and each of those from the first entry of
+  // its time index in range.
+  private final class TimeAccessor implements StoreAccessor<Time, Message> {
+
+    @Override
+    public Message first(Time time) {
+      final Walk found = (Walk) at(time).iterator();
+      try {
+        return found.hasNext() ? found.next() : null;
+      } finally {
+        found.close();
+      }
+    }
+
+    @Override
+    public Iterable<Message> all() {
+      return byTimes(null, null);
+    }
+
+    @Override
+    public Iterable<Message> at(Time time) {
+      return byTimes(time, time);
+    }
+
+    @Override
+    public Iterable<Message> after(Time start) {
+      return byTimes(start, null);
+    }
+
+    @Override
+    public Iterable<Message> before(Time end) {
+      return byTimes(null, end);
+    }
+
+    @Override
+    public Iterable<Message> range(Time start, Time end) {
+      return byTimes(start, end);
+    }
+  }
+}
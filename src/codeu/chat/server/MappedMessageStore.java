@@ -0,0 +1,330 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.StoreAccessor;
+
+// MAPPED MESSAGE STORE
+//
+// Keeps messages in memory-mapped segment files instead of on the heap. Each
+// message is appended to the current segment once, already serialized, and the
+// heap only holds an index from id (and creation time) to where the message is.
+// The indexes are LocationIndexes of primitive arrays, so a message costs a few
+// dozen bytes of heap whatever its size.
+// A lookup decodes a fresh copy of the message straight from the mapped region
+// so the OS decides what history stays in memory.
+//
+// Every record in a segment looks like:
+//
+//   [ int length ][ long next ][ message (length bytes) ]
+//
+// The message is written with Message.SERIALIZER. Its "next" value is not
+// known when it is written, so the record keeps the location of the next
+// message in a fixed slot that "link" overwrites in place.
+//
+// The segments are scratch space. The transaction log is still the durable
+// record, so any old segments are removed when the store is opened and the
+// store is rebuilt by replaying the log on every start.
+public final class MappedMessageStore implements MessageStore {
+
+  private final static Logger.Log LOG = Logger.newLog(MappedMessageStore.class);
+
+  private static final int HEADER = 4 + 8;
+  private static final long NO_LOCATION = -1;
+
+  private static final String PREFIX = "segment-";
+
+  private final File directory;
+  private final int segmentSize;
+
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+  private MappedByteBuffer current;
+
+  // Ids are indexed by their last link. Ids that share it (e.g. from different
+  // servers) are told apart by reading the full id from the record.
+  private final LocationIndex<Uuid> locationById = new LocationIndex<Uuid>() {
+
+    @Override
+    protected long key(Uuid id) {
+      return id.id();
+    }
+
+    @Override
+    protected int compare(Uuid id, long location) {
+      try {
+        return Model.UUID_COMPARE.compare(id, readId(location));
+      } catch (IOException ex) {
+        throw new IllegalStateException("Corrupt message record at " + location, ex);
+      }
+    }
+  };
+
+  private final LocationIndex<Time> locationByTime = new LocationIndex<Time>() {
+
+    @Override
+    protected long key(Time time) {
+      return time.inMs();
+    }
+
+    @Override
+    protected int compare(Time time, long location) {
+      return 0;
+    }
+  };
+
+  private final StoreAccessor<Uuid, Message> byId = new Decoded<>(locationById);
+  private final StoreAccessor<Time, Message> byTime = new Decoded<>(locationByTime);
+
+  public MappedMessageStore(File directory, int segmentSize) throws IOException {
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create message directory " + directory);
+    }
+
+    final File[] old = directory.listFiles();
+    if (old != null) {
+      for (final File file : old) {
+        if (file.getName().startsWith(PREFIX) && !file.delete()) {
+          LOG.warning("Could not remove old segment %s", file);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void add(Message message) {
+
+    final byte[] bytes;
+
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Message.SERIALIZER.write(out, new Message(message.id,
+                                                Uuid.NULL,
+                                                message.previous,
+                                                message.creation,
+                                                message.author,
+                                                message.content));
+      bytes = out.toByteArray();
+    } catch (IOException ex) {
+      // Writing to a byte array does not fail.
+      throw new IllegalStateException(ex);
+    }
+
+    final Long next = locationById.first(message.next);
+
+    if (current == null || current.remaining() < HEADER + bytes.length) {
+      current = map(Math.max(segmentSize, HEADER + bytes.length));
+      segments.add(current);
+    }
+
+    final long location = location(segments.size() - 1, current.position());
+
+    current.putInt(bytes.length);
+    current.putLong(next == null ? NO_LOCATION : next);
+    current.put(bytes);
+
+    locationById.insert(message.id, location);
+    locationByTime.insert(message.creation, location);
+  }
+
+  @Override
+  public void link(Message message, Uuid next) {
+
+    final Long from = locationById.first(message.id);
+    final Long to = locationById.first(next);
+
+    if (from != null) {
+      segments.get(segment(from)).putLong(offset(from) + 4, to == null ? NO_LOCATION : to);
+    }
+
+    message.next = next;
+  }
+
+  @Override
+  public void remove(Message message) {
+
+    final Long location = locationById.first(message.id);
+
+    if (location == null) {
+      return;
+    }
+
+    locationById.remove(message.id, location);
+    locationByTime.remove(message.creation, location);
+
+    // The record stays in its segment. Segments are never compacted so the
+    // space is only given back when the store is opened again.
+  }
+
+  @Override
+  public StoreAccessor<Uuid, Message> byId() {
+    return byId;
+  }
+
+  @Override
+  public StoreAccessor<Time, Message> byTime() {
+    return byTime;
+  }
+
+  @Override
+  public StoreAccessor<String, Message> byText() {
+    throw new UnsupportedOperationException("Mapped messages are not indexed by text");
+  }
+
+  private MappedByteBuffer map(int size) {
+
+    final File file = new File(directory, String.format("%s%05d", PREFIX, segments.size()));
+
+    try (final RandomAccessFile segment = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the file is closed.
+      return segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Could not map message segment " + file, ex);
+    }
+  }
+
+  private Message read(long location) {
+
+    // Work on a duplicate so that concurrent readers do not share a position.
+    final ByteBuffer record = segments.get(segment(location)).duplicate();
+    record.position(offset(location));
+
+    final int length = record.getInt();
+    final long next = record.getLong();
+
+    record.limit(record.position() + length);
+
+    try {
+
+      final Message stored = Message.SERIALIZER.read(new BufferInputStream(record));
+
+      return new Message(stored.id,
+                         next == NO_LOCATION ? Uuid.NULL : readId(next),
+                         stored.previous,
+                         stored.creation,
+                         stored.author,
+                         stored.content);
+
+    } catch (IOException ex) {
+      throw new IllegalStateException("Corrupt message record at " + location, ex);
+    }
+  }
+
+  // The id is the first thing in a serialized message so the next message's id
+  // can be read without decoding the rest of it.
+  private Uuid readId(long location) throws IOException {
+    final ByteBuffer record = segments.get(segment(location)).duplicate();
+    record.position(offset(location) + HEADER);
+    return Uuid.SERIALIZER.read(new BufferInputStream(record));
+  }
+
+  private static long location(int segment, int offset) {
+    return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+  }
+
+  private static int segment(long location) {
+    return (int) (location >>> 32);
+  }
+
+  private static int offset(long location) {
+    return (int) location;
+  }
+
+  private static final class BufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+  }
+
+  // DECODED
+  //
+  // Turns an index of locations into an accessor of messages by decoding each
+  // message as it is reached.
+  private final class Decoded<KEY> implements StoreAccessor<KEY, Message> {
+
+    private final StoreAccessor<KEY, Long> locations;
+
+    Decoded(StoreAccessor<KEY, Long> locations) {
+      this.locations = locations;
+    }
+
+    @Override
+    public Message first(KEY key) {
+      final Long location = locations.first(key);
+      return location == null ? null : read(location);
+    }
+
+    @Override
+    public Iterable<Message> all() { return decode(locations.all()); }
+
+    @Override
+    public Iterable<Message> at(KEY key) { return decode(locations.at(key)); }
+
+    @Override
+    public Iterable<Message> after(KEY start) { return decode(locations.after(start)); }
+
+    @Override
+    public Iterable<Message> before(KEY end) { return decode(locations.before(end)); }
+
+    @Override
+    public Iterable<Message> range(KEY start, KEY end) { return decode(locations.range(start, end)); }
+
+    private Iterable<Message> decode(final Iterable<Long> found) {
+      return new Iterable<Message>() {
+        @Override
+        public Iterator<Message> iterator() {
+          final Iterator<Long> iterator = found.iterator();
+          return new Iterator<Message>() {
+            @Override
+            public boolean hasNext() { return iterator.hasNext(); }
+
+            @Override
+            public Message next() { return read(iterator.next()); }
+
+            @Override
+            public void remove() { throw new UnsupportedOperationException(); }
+          };
+        }
+      };
+    }
+  }
+}
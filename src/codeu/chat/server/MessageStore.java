@@ -0,0 +1,65 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.store.StoreAccessor;
+
+// MESSAGE STORE
+//
+// Where the model keeps its messages. Users and conversations are few and always
+// stay on the heap, but messages grow with history so how they are kept can be
+// swapped out.
+//
+// Messages returned by a store should be treated as read only. Some stores hand
+// out a fresh copy on every lookup, so changing a message must go through "link".
+public interface MessageStore {
+
+  // ADD
+  //
+  // Add a new message. The message's id must not already be in the store.
+  void add(Message message);
+
+  // LINK
+  //
+  // Set the "next" value of a message that is already in the store. The given
+  // message is updated too so that callers holding it see the change.
+  void link(Message message, Uuid next);
+
+  // REMOVE
+  //
+  // Drop a message from every index. Stores that can not forget a message
+  // will throw UnsupportedOperationException.
+  void remove(Message message);
+
+  // BY ID
+  //
+  // Look up messages by their id.
+  StoreAccessor<Uuid, Message> byId();
+
+  // BY TIME
+  //
+  // Look up messages by their creation time.
+  StoreAccessor<Time, Message> byTime();
+
+  // BY TEXT
+  //
+  // Look up messages by their content. Stores that do not keep messages on the
+  // heap may not support this and will throw UnsupportedOperationException.
+  StoreAccessor<String, Message> byText();
+
+}
@@ -28,7 +28,7 @@ import codeu.chat.util.store.StoreAccessor;
 
 public final class Model {
 
-  private static final Comparator<Uuid> UUID_COMPARE = new Comparator<Uuid>() {
+  static final Comparator<Uuid> UUID_COMPARE = new Comparator<Uuid>() {
 
     @Override
     public int compare(Uuid a, Uuid b) {
@@ -44,14 +44,14 @@ public final class Model {
     }
   };
 
-  private static final Comparator<Time> TIME_COMPARE = new Comparator<Time>() {
+  static final Comparator<Time> TIME_COMPARE = new Comparator<Time>() {
     @Override
     public int compare(Time a, Time b) {
       return a.compareTo(b);
     }
   };
 
-  private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
+  static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
 
   private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
   private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
@@ -63,9 +63,15 @@ public final class Model {
 
   private final Store<Uuid, ConversationPayload> conversationPayloadById = new Store<>(UUID_COMPARE);
 
-  private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
+  private final MessageStore messages;
+
+  public Model() {
+    this(new HeapMessageStore());
+  }
+
+  public Model(MessageStore messages) {
+    this.messages = messages;
+  }
 
   public void add(User user) {
     userById.insert(user.id, user);
@@ -109,20 +115,35 @@ public final class Model {
   }
 
   public void add(Message message) {
-    messageById.insert(message.id, message);
-    messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+    messages.add(message);
+  }
+
+  // LINK
+  //
+  // Point a message that is already in the model at the message that follows
+  // it. Messages must not be changed directly as the message store may have
+  // given out a copy.
+  public void link(Message message, Uuid next) {
+    messages.link(message, next);
+  }
+
+  // REMOVE
+  //
+  // Drop a message from the model. Whatever linked to it is left alone so
+  // the caller must remove the whole chain or put the message back later.
+  public void remove(Message message) {
+    messages.remove(message);
   }
 
   public StoreAccessor<Uuid, Message> messageById() {
-    return messageById;
+    return messages.byId();
   }
 
   public StoreAccessor<Time, Message> messageByTime() {
-    return messageByTime;
+    return messages.byTime();
   }
 
   public StoreAccessor<String, Message> messageByText() {
-    return messageByText;
+    return messages.byText();
   }
 }
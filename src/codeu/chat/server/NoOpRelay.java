@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -46,6 +47,32 @@ public final class NoOpRelay implements Relay {
     };
   }
 
+  @Override
+  public Relay.Bundle pack(final Relay.Bundle.Component user,
+                           final Relay.Bundle.Component conversation,
+                           final Relay.Bundle.Component message) {
+
+    return new Relay.Bundle() {
+      @Override
+      public Uuid id() { return null; }
+
+      @Override
+      public Time time() { return null; }
+
+      @Override
+      public Uuid team() { return null; }
+
+      @Override
+      public Relay.Bundle.Component user() { return user; }
+
+      @Override
+      public Relay.Bundle.Component conversation() { return conversation; }
+
+      @Override
+      public Relay.Bundle.Component message() { return message; }
+    };
+  }
+
   @Override
   public boolean write(Uuid teamId,
                        Secret teamSecret,
@@ -56,6 +83,11 @@ public final class NoOpRelay implements Relay {
     return true;
   }
 
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+    return bundles.size();
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId,
                                        Secret teamSecret,
@@ -64,4 +96,24 @@ public final class NoOpRelay implements Relay {
 
     return new ArrayList<Relay.Bundle>();
   }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       RelayFilter filter) {
+
+    return new ArrayList<Relay.Bundle>();
+  }
+
+  @Override
+  public boolean subscribe(Uuid teamId,
+                           Secret teamSecret,
+                           Uuid root,
+                           RelayFilter filter,
+                           Subscriber subscriber) {
+    // Nothing is ever written to this relay so a subscription would wait forever.
+    throw new UnsupportedOperationException("The no op relay does not push bundles");
+  }
 }
@@ -0,0 +1,271 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.Relay;
+import codeu.chat.common.User;
+import codeu.chat.util.PersistentLog;
+import codeu.chat.util.Uuid;
+
+// RELAY INGEST
+//
+// Applies bundles from the relay to the model a batch at a time. A batch is
+// first grouped by conversation, which does not touch the model and so can be
+// done on whichever thread received the bundles. Applying a group happens on
+// the thread that owns the model, in three steps like LogReplay:
+//
+//   1. Every user and conversation in the group is looked up (or created) once
+//      no matter how many bundles share it. This changes the model so it is
+//      serial.
+//   2. Each conversation's chain (the messages that can be added, in the order
+//      the relay sent them) is made on a fork-join pool. This only reads from
+//      the model so every conversation is done at once.
+//   3. The chains are added to the model one after another.
+//
+// Everything that is added is written to the transaction log the same way as
+// if a client had added it so that it survives a restart. The ids of recently
+// applied messages are remembered so that bundles the relay sends again (e.g.
+// after a subscription reconnects) are dropped before any lookups are done.
+// Bundles that were not applied are not remembered.
+final class RelayIngest {
+
+  // GROUP
+  //
+  // The bundles of one read from the relay, grouped by conversation in the
+  // order each conversation first appears.
+  static final class Group {
+
+    final Map<Uuid, List<Relay.Bundle>> conversations = new LinkedHashMap<>();
+    final int size;
+    final Uuid last;
+
+    Group(Collection<Relay.Bundle> bundles) {
+
+      Uuid last = null;
+
+      for (final Relay.Bundle bundle : bundles) {
+
+        List<Relay.Bundle> run = conversations.get(bundle.conversation().id());
+        if (run == null) {
+          run = new ArrayList<>();
+          conversations.put(bundle.conversation().id(), run);
+        }
+
+        run.add(bundle);
+        last = bundle.id();
+      }
+
+      this.size = bundles.size();
+      this.last = last;
+    }
+  }
+
+  private final Model model;
+  private final Controller controller;
+  private final Set<Uuid> recent;
+  private final ForkJoinPool pool = new ForkJoinPool();
+
+  RelayIngest(Model model, Controller controller, final int maxRecent) {
+    this.model = model;
+    this.controller = controller;
+    this.recent = Collections.newSetFromMap(new LinkedHashMap<Uuid, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Uuid, Boolean> eldest) {
+        return size() > maxRecent;
+      }
+    });
+  }
+
+  // APPLY
+  //
+  // Add everything in the group that the model does not have yet. Returns the
+  // messages that were added by conversation.
+  Map<Uuid, List<Message>> apply(Group group) {
+
+    // STEP 1 : users and conversations
+
+    final Map<Uuid, User> users = new HashMap<>();
+    final Set<Uuid> ids = new HashSet<>();
+    final List<ChainTask> tasks = new ArrayList<>(group.conversations.size());
+
+    for (final Map.Entry<Uuid, List<Relay.Bundle>> entry : group.conversations.entrySet()) {
+
+      final List<Relay.Bundle> bundles = entry.getValue();
+      final List<Message> messages = new ArrayList<>(bundles.size());
+
+      for (final Relay.Bundle bundle : bundles) {
+
+        // A message sent twice in one group (even in two conversations) is
+        // only tried once.
+        if (recent.contains(bundle.message().id()) || !ids.add(bundle.message().id())) {
+          continue;
+        }
+
+        final User user = user(users, bundle.user());
+
+        if (user == null) {
+          continue;
+        }
+
+        final Relay.Bundle.Component message = bundle.message();
+        messages.add(new Message(message.id(),
+                                 Uuid.NULL,
+                                 Uuid.NULL,
+                                 message.time(),
+                                 user.id,
+                                 message.text()));
+      }
+
+      if (messages.isEmpty()) {
+        continue;
+      }
+
+      // As the relay does not tell us who made the conversation - the first
+      // person who has a message in the conversation will get ownership over
+      // this server's copy of the conversation.
+      final ConversationHeader conversation =
+          conversation(bundles.get(0).conversation(), messages.get(0).author);
+
+      if (conversation != null) {
+        tasks.add(new ChainTask(conversation, messages));
+      }
+    }
+
+    // STEP 2 : chains
+
+    if (tasks.size() == 1) {
+      tasks.get(0).compute();
+    } else if (tasks.size() > 1) {
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    }
+
+    // STEP 3 : commit
+
+    final Map<Uuid, List<Message>> added = new LinkedHashMap<>();
+
+    for (final ChainTask task : tasks) {
+
+      final ConversationHeader conversation = task.conversation;
+      final List<Message> run = controller.addChain(conversation.id, task.chain);
+
+      for (final Message message : run) {
+        // Only what was added is remembered. A bundle that could not be
+        // applied (e.g. its user could not be made) is tried again if the
+        // relay sends it again.
+        recent.add(message.id);
+        PersistentLog.writeQueue("M-ADD " +
+                                 message.id.toString() + " " +
+                                 message.author.toString() + " " +
+                                 conversation.id.toString() + " " +
+                                 message.creation.inMs() + " " +
+                                 message.content);
+      }
+
+      added.put(conversation.id, run);
+    }
+
+    return added;
+  }
+
+  private User user(Map<Uuid, User> users, Relay.Bundle.Component relayUser) {
+
+    User user = users.get(relayUser.id());
+
+    if (user == null) {
+      user = model.userById().first(relayUser.id());
+    }
+
+    if (user == null) {
+      user = controller.newUser(relayUser.id(), relayUser.text(), relayUser.time());
+      if (user != null) {
+        PersistentLog.writeQueue("U-ADD " +
+                                 user.id.toString() + " " +
+                                 user.creation.inMs() + " " +
+                                 user.name);
+      }
+    }
+
+    if (user != null) {
+      users.put(user.id, user);
+    }
+
+    return user;
+  }
+
+  private ConversationHeader conversation(Relay.Bundle.Component relayConversation, Uuid owner) {
+
+    ConversationHeader conversation = model.conversationById().first(relayConversation.id());
+
+    if (conversation == null) {
+      conversation = controller.newConversation(relayConversation.id(),
+                                                relayConversation.text(),
+                                                owner,
+                                                relayConversation.time());
+      if (conversation != null) {
+        PersistentLog.writeQueue("C-ADD " +
+                                 conversation.id.toString() + " " +
+                                 conversation.owner.toString() + " " +
+                                 conversation.creation.inMs() + " " +
+                                 conversation.title);
+      }
+    }
+
+    return conversation;
+  }
+
+  // CHAIN TASK
+  //
+  // Makes the chain for one conversation of a group.
+  private final class ChainTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    final ConversationHeader conversation;
+    private final List<Message> messages;
+
+    List<Message> chain;
+
+    ChainTask(ConversationHeader conversation, List<Message> messages) {
+      this.conversation = conversation;
+      this.messages = messages;
+    }
+
+    @Override
+    protected void compute() {
+      chain = controller.newChain(messages);
+    }
+  }
+}
@@ -0,0 +1,309 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Tracer;
+import codeu.chat.util.Uuid;
+
+// RELAY OUTBOX
+//
+// Sends bundles to the relay in batches from its own thread. Bundles are packed
+// when their message is created and queued here so the server never waits on
+// the relay. A batch is sent once it has "batchSize" bundles or its first
+// bundle has waited "maxDelayMs", whichever comes first, so a burst of messages
+// costs a few round trips instead of one per message.
+//
+// If the relay does not take the whole batch, the rest is sent again after a
+// delay that doubles on every failure (up to "maxBackoffMs"). After
+// "maxAttempts" sends in a row where the relay takes nothing (a relay that
+// keeps rejecting the team will never take it) the rest of the batch is given
+// up on: each bundle is written to the log as undelivered and counted, and
+// the outbox moves on to the next batch. The queue is bounded. When the relay
+// has been down long enough for it to fill, new bundles are dropped and
+// counted rather than holding up the server.
+//
+// Nothing is sent until "start" is called.
+//
+// A bundle offered while a request is being traced keeps that trace, and the
+// log lines for sending its batch list the ids of the traces in it. This is
+// how a trace in the trace file is matched to when its message reached the
+// relay.
+public final class RelayOutbox {
+
+  private final static Logger.Log LOG = Logger.newLog(RelayOutbox.class);
+
+  private static final long MIN_BACKOFF_MS = 100;
+
+  private static final class Pending {
+
+    final Relay.Bundle bundle;
+    final Tracer.Trace trace;  // null when the message was not traced
+
+    Pending(Relay.Bundle bundle, Tracer.Trace trace) {
+      this.bundle = bundle;
+      this.trace = trace;
+    }
+  }
+
+  private final Relay relay;
+  private final Uuid team;
+  private final Secret secret;
+
+  private final BlockingQueue<Pending> queue;
+  private final int batchSize;
+  private final long maxDelayMs;
+  private final long maxBackoffMs;
+  private final int maxAttempts;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong undelivered = new AtomicLong();
+
+  private volatile boolean running = true;
+
+  private final Thread sender = new Thread() {
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          final List<Pending> batch = nextBatch();
+          if (!batch.isEmpty()) {
+            send(batch);
+          }
+        } catch (InterruptedException ex) {
+          // Woken up to stop. The loop will check "running".
+        } catch (Exception ex) {
+          LOG.error(ex, "Unexpected error in the relay outbox");
+        }
+      }
+    }
+  };
+
+  public RelayOutbox(Relay relay,
+                     Uuid team,
+                     Secret secret,
+                     int capacity,
+                     int batchSize,
+                     long maxDelayMs,
+                     long maxBackoffMs,
+                     int maxAttempts) {
+
+    this.relay = relay;
+    this.team = team;
+    this.secret = secret;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.batchSize = batchSize;
+    this.maxDelayMs = maxDelayMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  // START
+  //
+  // Start sending queued bundles on the outbox's own thread.
+  public void start() {
+    sender.start();
+  }
+
+  // OFFER
+  //
+  // Queue a bundle to be sent. Returns false if the queue is full and the
+  // bundle was dropped.
+  public boolean offer(Relay.Bundle bundle) {
+
+    final Tracer.Trace trace = Tracer.current();
+
+    if (queue.offer(new Pending(bundle, trace))) {
+      return true;
+    }
+
+    dropped.incrementAndGet();
+    LOG.warning("Relay outbox is full, dropping message %s (trace=%s)",
+                bundle.message().id(),
+                trace == null ? "-" : trace.label());
+
+    return false;
+  }
+
+  // DEPTH
+  //
+  // The number of bundles waiting to be sent.
+  public int depth() {
+    return queue.size();
+  }
+
+  public long sent() {
+    return sent.get();
+  }
+
+  public long dropped() {
+    return dropped.get();
+  }
+
+  public long retries() {
+    return retries.get();
+  }
+
+  // UNDELIVERED
+  //
+  // The number of bundles given up on after the relay refused them
+  // "maxAttempts" times.
+  public long undelivered() {
+    return undelivered.get();
+  }
+
+  // STOP
+  //
+  // Stop sending. Anything still in the queue is not sent. This is a blocking
+  // call.
+  public void stop() {
+    running = false;
+    sender.interrupt();
+    while (true) {
+      try {
+        sender.join();
+        break;
+      } catch (InterruptedException ex) {
+        // Do nothing - allow this to try again.
+      }
+    }
+  }
+
+  private List<Pending> nextBatch() throws InterruptedException {
+
+    final List<Pending> batch = new ArrayList<>(batchSize);
+
+    final Pending first = queue.take();
+    batch.add(first);
+
+    final long deadline = System.currentTimeMillis() + maxDelayMs;
+
+    while (batch.size() < batchSize) {
+
+      // Take whatever is already waiting before waiting for more.
+      queue.drainTo(batch, batchSize - batch.size());
+
+      final long remaining = deadline - System.currentTimeMillis();
+
+      if (batch.size() >= batchSize || remaining <= 0) {
+        break;
+      }
+
+      final Pending next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+
+      if (next == null) {
+        break;
+      }
+
+      batch.add(next);
+    }
+
+    return batch;
+  }
+
+  private void send(List<Pending> batch) throws InterruptedException {
+
+    long backoff = MIN_BACKOFF_MS;
+    int attempts = 0;
+
+    List<Relay.Bundle> remaining = new ArrayList<>(batch.size());
+    for (final Pending pending : batch) {
+      remaining.add(pending.bundle);
+    }
+
+    while (running) {
+
+      // The relay accepts a batch in order so anything it did take is the
+      // front of the batch.
+      final int written = Math.max(0, relay.write(team, secret, remaining));
+      sent.addAndGet(written);
+
+      if (written >= remaining.size()) {
+        LOG.info("Sent batch to relay (size=%d depth=%d traces=%s)",
+                 batch.size(),
+                 queue.size(),
+                 traces(batch));
+        return;
+      }
+
+      remaining = new ArrayList<>(remaining.subList(written, remaining.size()));
+
+      // Only sends that get nowhere count towards giving up.
+      attempts = written > 0 ? 0 : attempts + 1;
+
+      if (attempts >= maxAttempts) {
+        giveUp(batch.subList(batch.size() - remaining.size(), batch.size()), attempts);
+        return;
+      }
+
+      retries.incrementAndGet();
+
+      LOG.warning(
+          "Relay took %d of %d bundles, trying again in %d ms (depth=%d traces=%s)",
+          written,
+          written + remaining.size(),
+          backoff,
+          queue.size(),
+          traces(batch.subList(batch.size() - remaining.size(), batch.size())));
+
+      Thread.sleep(backoff);
+      backoff = Math.min(backoff * 2, maxBackoffMs);
+    }
+  }
+
+  // The ids of the traces in a batch, or "-" if none of it was traced.
+  private static String traces(List<Pending> batch) {
+
+    final StringBuilder ids = new StringBuilder();
+
+    for (final Pending pending : batch) {
+      if (pending.trace != null) {
+        ids.append(ids.length() == 0 ? "" : ",").append(pending.trace.label());
+      }
+    }
+
+    return ids.length() == 0 ? "-" : ids.toString();
+  }
+
+  // Write every bundle the relay would not take to the log so that it can be
+  // found and sent again by hand.
+  private void giveUp(List<Pending> rest, int attempts) {
+
+    undelivered.addAndGet(rest.size());
+
+    LOG.error("Relay refused %d bundles %d times in a row, giving up on them (traces=%s)",
+              rest.size(),
+              attempts,
+              traces(rest));
+
+    for (final Pending pending : rest) {
+      LOG.error("Undelivered bundle user=%s conversation=%s message=%s",
+                pending.bundle.user().id(),
+                pending.bundle.conversation().id(),
+                pending.bundle.message().id());
+    }
+  }
+}
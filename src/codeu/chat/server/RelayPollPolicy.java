@@ -0,0 +1,84 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+// RELAY POLL POLICY
+//
+// Decides how many bundles to ask the relay for and how long to wait before
+// asking again.
+//
+//   - A full page means the relay has more so ask again right away with twice
+//     the batch (up to "maxBatch") to catch up quickly.
+//   - A partial page means this server has caught up so go back to the
+//     smallest batch and the shortest delay.
+//   - An empty page (or a failed read) doubles the delay (up to "maxDelayMs")
+//     so an idle relay is asked less and less often.
+final class RelayPollPolicy {
+
+  private final int minBatch;
+  private final int maxBatch;
+  private final long minDelayMs;
+  private final long maxDelayMs;
+
+  private int batch;
+  private long delay;
+
+  RelayPollPolicy(int minBatch, int maxBatch, long minDelayMs, long maxDelayMs) {
+    this.minBatch = minBatch;
+    this.maxBatch = maxBatch;
+    this.minDelayMs = minDelayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.batch = minBatch;
+    this.delay = minDelayMs;
+  }
+
+  // BATCH
+  //
+  // How many bundles to ask for in the next read.
+  int batch() {
+    return batch;
+  }
+
+  // RECEIVED
+  //
+  // Record how many bundles the last read returned and get how long to wait
+  // before the next read.
+  long received(int count) {
+
+    if (count >= batch) {
+      batch = Math.min(batch * 2, maxBatch);
+      delay = minDelayMs;
+      return 0;
+    }
+
+    batch = minBatch;
+
+    if (count > 0) {
+      delay = minDelayMs;
+    } else {
+      delay = Math.min(delay * 2, maxDelayMs);
+    }
+
+    return delay;
+  }
+
+  // FAILED
+  //
+  // Record that the last read failed and get how long to wait before trying
+  // again.
+  long failed() {
+    return received(0);
+  }
+}
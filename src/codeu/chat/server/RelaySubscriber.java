@@ -0,0 +1,186 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Uuid;
+
+// RELAY SUBSCRIBER
+//
+// Keeps a subscription to the relay open on its own thread and hands every
+// batch of new bundles to "target". When the subscription breaks it subscribes
+// again from the last bundle it received, waiting longer after each failure
+// (up to "maxBackoffMs") so that a relay that is down is not hammered.
+//
+// If the relay can not push bundles at all, "fallback" is run once and the
+// subscriber stops so that the server can poll instead. A relay from before
+// subscriptions either answers with a different response, or reads the
+// request and hangs up, which looks just like a broken connection. So a relay
+// that hangs up MAX_UNANSWERED times in a row without ever answering is
+// treated as not supporting subscriptions too.
+public final class RelaySubscriber {
+
+  private final static Logger.Log LOG = Logger.newLog(RelaySubscriber.class);
+
+  private static final long MIN_BACKOFF_MS = 250;
+
+  private static final int MAX_UNANSWERED = 3;
+
+  private final Relay relay;
+  private final Uuid team;
+  private final Secret secret;
+  private final RelayFilter filter;
+  private final Relay.Subscriber target;
+  private final Runnable fallback;
+  private final long maxBackoffMs;
+
+  private volatile Uuid cursor;
+  private volatile boolean running = true;
+  private long backoff = MIN_BACKOFF_MS;
+
+  // Whether the relay has answered the current subscription, and how many
+  // subscriptions in a row broke before it did.
+  private volatile boolean answered;
+  private int unanswered = 0;
+
+  private final Thread thread = new Thread() {
+    @Override
+    public void run() {
+      while (running) {
+
+        try {
+
+          LOG.info("Subscribing to relay from %s", cursor);
+
+          answered = false;
+
+          if (!relay.subscribe(team, secret, cursor, filter, forward)) {
+            LOG.error("Relay rejected the subscription for team %s", team);
+          }
+
+          unanswered = 0;
+
+        } catch (UnsupportedOperationException ex) {
+          LOG.info("Relay does not support subscriptions, falling back to polling");
+          fallback.run();
+          return;
+        } catch (IOException ex) {
+          LOG.warning("Relay subscription broke (%s)", ex.toString());
+          unanswered = answered ? 0 : unanswered + 1;
+          if (unanswered >= MAX_UNANSWERED) {
+            LOG.info("Relay never answered a subscription, falling back to polling");
+            fallback.run();
+            return;
+          }
+        } catch (Exception ex) {
+          LOG.error(ex, "Unexpected error in relay subscription");
+        }
+
+        if (!running) {
+          break;
+        }
+
+        LOG.info("Subscribing to relay again in %d ms", backoff);
+
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ex) {
+          // Woken up to stop. The loop will check "running".
+        }
+
+        backoff = Math.min(backoff * 2, maxBackoffMs);
+      }
+    }
+  };
+
+  // Runs on the subscriber thread. Tracks the cursor so that a new
+  // subscription can pick up where the last one broke.
+  private final Relay.Subscriber forward = new Relay.Subscriber() {
+    @Override
+    public boolean onBundles(Collection<Relay.Bundle> bundles) throws IOException {
+
+      // Anything from the relay, even a heartbeat, means the connection works.
+      backoff = MIN_BACKOFF_MS;
+      answered = true;
+
+      if (!running) {
+        return false;
+      }
+
+      if (!bundles.isEmpty()) {
+        for (final Relay.Bundle bundle : bundles) {
+          cursor = bundle.id();
+        }
+        target.onBundles(bundles);
+      }
+
+      return running;
+    }
+  };
+
+  public RelaySubscriber(Relay relay,
+                         Uuid team,
+                         Secret secret,
+                         Uuid start,
+                         RelayFilter filter,
+                         Relay.Subscriber target,
+                         Runnable fallback,
+                         long maxBackoffMs) {
+
+    this.relay = relay;
+    this.team = team;
+    this.secret = secret;
+    this.cursor = start;
+    this.filter = filter;
+    this.target = target;
+    this.fallback = fallback;
+    this.maxBackoffMs = maxBackoffMs;
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  // START
+  //
+  // Start subscribing from the bundle after "from" rather than where the
+  // subscriber was created with.
+  public void start(Uuid from) {
+    cursor = from;
+    thread.start();
+  }
+
+  // CURSOR
+  //
+  // The id of the last bundle received from the relay.
+  public Uuid cursor() {
+    return cursor;
+  }
+
+  // STOP
+  //
+  // Stop subscribing. The subscription ends the next time the relay sends
+  // something (at most one heartbeat later).
+  public void stop() {
+    running = false;
+    thread.interrupt();
+  }
+}
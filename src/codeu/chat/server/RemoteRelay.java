@@ -17,11 +17,14 @@ package codeu.chat.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayDictionary;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
@@ -57,6 +60,41 @@ public final class RemoteRelay implements Relay {
     public String text() { return text; }
   }
 
+  private static final class Bundle implements Relay.Bundle {
+
+    private final Relay.Bundle.Component user;
+    private final Relay.Bundle.Component conversation;
+    private final Relay.Bundle.Component message;
+
+    public Bundle(Relay.Bundle.Component user,
+                  Relay.Bundle.Component conversation,
+                  Relay.Bundle.Component message) {
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    // The relay fills these in when the bundle is written.
+
+    @Override
+    public Uuid id() { return null; }
+
+    @Override
+    public Time time() { return null; }
+
+    @Override
+    public Uuid team() { return null; }
+
+    @Override
+    public Relay.Bundle.Component user() { return user; }
+
+    @Override
+    public Relay.Bundle.Component conversation() { return conversation; }
+
+    @Override
+    public Relay.Bundle.Component message() { return message; }
+  }
+
   private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
       new Serializer<Relay.Bundle.Component>() {
 
@@ -78,50 +116,72 @@ public final class RemoteRelay implements Relay {
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
-
-    @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
+  // The user and conversation of a bundle repeat far more often than its
+  // message so streams of bundles send those two through a dictionary.
+  private static final int DICTIONARY_SIZE = 4096;
+
+  private static Serializer<Relay.Bundle> bundles(
+      final Serializer<Relay.Bundle.Component> components) {
+
+    return new Serializer<Relay.Bundle>() {
+
+      @Override
+      public Relay.Bundle read(InputStream in) throws IOException {
+
+        final Uuid id = Uuid.SERIALIZER.read(in);
+        final Time time = Time.SERIALIZER.read(in);
+        final Uuid team = Uuid.SERIALIZER.read(in);
+        final Relay.Bundle.Component user = components.read(in);
+        final Relay.Bundle.Component conversation = components.read(in);
+        final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
+
+        return new Relay.Bundle() {
+          @Override
+          public Uuid id() { return id; }
+          @Override
+          public Time time() { return time; }
+          @Override
+          public Uuid team() { return team; }
+          @Override
+          public Relay.Bundle.Component user() { return user; }
+          @Override
+          public Relay.Bundle.Component conversation() { return conversation; }
+          @Override
+          public Relay.Bundle.Component message() { return message; }
+        };
+      }
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
-
-      return new Relay.Bundle() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public Time time() { return time; }
-        @Override
-        public Uuid team() { return team; }
-        @Override
-        public Relay.Bundle.Component user() { return user; }
-        @Override
-        public Relay.Bundle.Component conversation() { return conversation; }
-        @Override
-        public Relay.Bundle.Component message() { return message; }
-      };
-    }
+      @Override
+      public void write(OutputStream out, Relay.Bundle value) throws IOException {
+        Uuid.SERIALIZER.write(out, value.id());
+        Time.SERIALIZER.write(out, value.time());
+        Uuid.SERIALIZER.write(out, value.team());
+        components.write(out, value.user());
+        components.write(out, value.conversation());
+        COMPONENT_SERIALIZER.write(out, value.message());
+      }
+    };
+  }
 
-    @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
-    }
-  };
+  // The relay sends a heartbeat on an idle subscription every
+  // HEARTBEAT_MS. Going this long without hearing anything means the
+  // connection is gone even if the socket does not know it yet.
+  public static final int SUBSCRIPTION_TIMEOUT_MS =
+      (int) (3 * codeu.chat.relay.Server.HEARTBEAT_MS);
 
   private final ConnectionSource source;
+  private final ConnectionSource subscriptions;
 
   public RemoteRelay(ConnectionSource source) {
+    this(source, source);
+  }
+
+  // Use "subscriptions" for subscriptions only. Its connections should time
+  // out reads after SUBSCRIPTION_TIMEOUT_MS so that a subscription that has
+  // silently died is noticed.
+  public RemoteRelay(ConnectionSource source, ConnectionSource subscriptions) {
     this.source = source;
+    this.subscriptions = subscriptions;
   }
 
   @Override
@@ -129,6 +189,13 @@ public final class RemoteRelay implements Relay {
     return new Component(id, time, text);
   }
 
+  @Override
+  public Relay.Bundle pack(Relay.Bundle.Component user,
+                           Relay.Bundle.Component conversation,
+                           Relay.Bundle.Component message) {
+    return new Bundle(user, conversation, message);
+  }
+
   @Override
   public boolean write(Uuid teamId,
                        Secret teamSecret,
@@ -159,28 +226,120 @@ public final class RemoteRelay implements Relay {
     return result;
   }
 
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+
+    int result = 0;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+
+      final RelayDictionary dictionary = new RelayDictionary(COMPONENT_SERIALIZER, DICTIONARY_SIZE);
+
+      Serializers.INTEGER.write(connection.out(), bundles.size());
+      for (final Relay.Bundle bundle : bundles) {
+        dictionary.write(connection.out(), bundle.user());
+        dictionary.write(connection.out(), bundle.conversation());
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.message());
+      }
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_WRITE_BATCH_RESPONSE) {
+        result = Serializers.INTEGER.read(connection.in());
+      } else {
+        LOG.error("Server did not handle RELAY_WRITE_BATCH_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_WRITE_BATCH_REQUEST");
+    }
+
+    return result;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+    return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+  }
+
+  // READ
+  //
+  // Uses the batch read so that the relay can send more than one page of
+  // history over the connection.
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       RelayFilter filter) {
 
     final Collection<Relay.Bundle> result = new ArrayList<>();
 
     try (final Connection connection = source.connect()) {
 
-      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_REQUEST);
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_BATCH_REQUEST);
       Uuid.SERIALIZER.write(connection.out(), teamId);
       Secret.SERIALIZER.write(connection.out(), teamSecret);
       Uuid.SERIALIZER.write(connection.out(), root);
       Serializers.INTEGER.write(connection.out(), range);
+      RelayFilter.SERIALIZER.write(connection.out(), filter);
 
-      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_RESPONSE) {
-        result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_BATCH_RESPONSE) {
+        final RelayDictionary dictionary =
+            new RelayDictionary(COMPONENT_SERIALIZER, DICTIONARY_SIZE);
+        result.addAll(Serializers.collection(bundles(dictionary)).read(connection.in()));
       } else {
-        LOG.error("Server did not handle RELAY_READ_REQUEST");
+        LOG.error("Server did not handle RELAY_READ_BATCH_REQUEST");
       }
     } catch (Exception ex) {
-      LOG.error(ex, "Unexpected error when sending RELAY_READ_REQUEST");
+      LOG.error(ex, "Unexpected error when sending RELAY_READ_BATCH_REQUEST");
     }
 
     return result;
   }
+
+  @Override
+  public boolean subscribe(Uuid teamId,
+                           Secret teamSecret,
+                           Uuid root,
+                           RelayFilter filter,
+                           Subscriber subscriber) throws IOException {
+
+    try (final Connection connection = subscriptions.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), root);
+      RelayFilter.SERIALIZER.write(connection.out(), filter);
+
+      // A relay from before subscriptions answers with some other response
+      // (or hangs up, which looks like any other broken connection).
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.RELAY_SUBSCRIBE_RESPONSE) {
+        throw new UnsupportedOperationException("Server did not handle RELAY_SUBSCRIBE_REQUEST");
+      }
+
+      if (!Serializers.BOOLEAN.read(connection.in())) {
+        return false;
+      }
+
+      // The relay uses one dictionary for the whole subscription so this side
+      // must too.
+      final Serializer<Collection<Relay.Bundle>> frames = Serializers.collection(
+          bundles(new RelayDictionary(COMPONENT_SERIALIZER, DICTIONARY_SIZE)));
+
+      // The relay sends batches (or empty heartbeats) until one side hangs up.
+      while (subscriber.onBundles(frames.read(connection.in()))) {
+        // Keep reading.
+      }
+
+      return true;
+
+    } catch (SocketTimeoutException ex) {
+      // No heartbeat so the subscription is broken. The caller subscribes
+      // again the same way it would after any other broken connection.
+      throw new IOException("No heartbeat from relay", ex);
+    }
+  }
 }
@@ -15,6 +15,8 @@
 
 package codeu.chat.server;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,10 +25,13 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 
@@ -36,6 +41,7 @@ import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.common.ServerInfo;
 import codeu.chat.common.User;
@@ -44,6 +50,7 @@ import codeu.chat.util.PersistentLog;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Timeline;
+import codeu.chat.util.Tracer;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
 
@@ -55,35 +62,138 @@ public final class Server {
     void onMessage(InputStream in, OutputStream out) throws IOException;
   }
 
+  // A command about one conversation. Its request is read on the connection's
+  // lane and then handled on the conversation's lane, so that requests and
+  // relay bundles for the same conversation are applied in the order they
+  // arrived while other conversations are handled on other workers.
+  private interface ConversationCommand {
+    ConversationRequest read(InputStream in) throws IOException;
+  }
+
+  private static abstract class ConversationRequest {
+
+    final Uuid conversation;
+
+    ConversationRequest(Uuid conversation) {
+      this.conversation = conversation;
+    }
+
+    abstract void respond(OutputStream out) throws IOException;
+  }
+
+  // A batch from the relay that is applied one conversation at a time. The
+  // server's cursor only moves past a batch once every conversation in it,
+  // and in every batch before it, has been applied.
+  private static final class Batch {
+
+    final Uuid last;
+    int remaining;
+
+    Batch(Uuid last, int remaining) {
+      this.last = last;
+      this.remaining = remaining;
+    }
+  }
+
   
   private static final Logger.Log LOG = Logger.newLog(Server.class);
 
-  private static final int RELAY_REFRESH_MS = 5000;  // 5 seconds
+  // The relay is read back-to-back with growing batches (up to 1024) while it
+  // has more to send, and is read less often (down to once every 30 seconds)
+  // while it has nothing new.
+  private static final int RELAY_MIN_BATCH = 32;
+  private static final int RELAY_MAX_BATCH = 1024;
+
+  // How many message ids from the relay to remember so that bundles sent again
+  // are dropped without a lookup.
+  private static final int RELAY_RECENT = 65536;
+
+  private static final long RELAY_MIN_POLL_MS = 250;
+  private static final long RELAY_MAX_POLL_MS = 30000;  // 30 seconds
+
+  private static final long TIERING_REFRESH_MS = 60000;  // 1 minute
+
+  // Messages waiting to go to the relay are sent in batches of up to 64, or
+  // after 200 ms, whichever comes first. Failed sends back off up to 30 seconds
+  // and at most 4096 messages are held while the relay is unreachable. A batch
+  // the relay refuses 10 times in a row (a little over a minute) is written to
+  // the log as undelivered and dropped.
+  private static final int OUTBOX_CAPACITY = 4096;
+  private static final int OUTBOX_BATCH = 64;
+  private static final long OUTBOX_DELAY_MS = 200;
+  private static final long OUTBOX_MAX_BACKOFF_MS = 30000;
+  private static final int OUTBOX_MAX_ATTEMPTS = 10;
 
 private static final long LOG_REFRESH_MS = 20000;
 
-  private final Timeline timeline = new Timeline();
+  // Requests are read and answered on as many workers as there are
+  // processors (at least two) so that one slow client does not hold up the
+  // rest. The model is only changed by one worker at a time: everything that
+  // reads or writes it holds the model's lock.
+  private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private final Timeline timeline = new Timeline(WORKERS);
 
   private final Map<Integer, Command> commands = new HashMap<>();
+  private final Map<Integer, ConversationCommand> conversationCommands = new HashMap<>();
 
   private final Uuid id;
   private final Secret secret;
 
-  private final Model model = new Model();
-  private final View view = new View(model);
+  private final Model model;
+  private final View view;
   private final Controller controller;
+  private final ConversationHydrator hydrator;
+  private final ConversationTiering tiering;
+  private final RelayIngest ingest;
 
   private final Relay relay;
-  private Uuid lastSeen = Uuid.NULL;
+  private final RelayOutbox outbox;
+  private volatile Uuid lastSeen = Uuid.NULL;
+  private final Queue<Batch> batches = new ArrayDeque<>();
+  private final RelaySubscriber relaySubscriber;
+
+  // This server already has everything it wrote to the relay so only ask for
+  // what other teams wrote.
+  private static final RelayFilter RELAY_FILTER = new RelayFilter(
+      true,
+      Collections.<Uuid>emptySet(),
+      Collections.<Uuid>emptySet());
+  private final RelayPollPolicy relayPoll =
+      new RelayPollPolicy(RELAY_MIN_BATCH, RELAY_MAX_BATCH, RELAY_MIN_POLL_MS, RELAY_MAX_POLL_MS);
 
   private String persistentFile;
 
+  // Set by "enableTracing", null while tracing is off.
+  private Tracer tracer;
+
   public Server(final Uuid id, final Secret secret, final Relay relay, final String persistentFile) {
+    this(id, secret, relay, persistentFile, new HeapMessageStore());
+  }
+
+  public Server(final Uuid id,
+                final Secret secret,
+                final Relay relay,
+                final String persistentFile,
+                final MessageStore messages) {
 
     this.id = id;
     this.secret = secret;
+    this.model = new Model(messages);
+    this.view = new View(model);
     this.controller = new Controller(id, model);
+    this.hydrator = new ConversationHydrator(model);
+    this.tiering = new ConversationTiering(model);
+    this.ingest = new RelayIngest(model, controller, RELAY_RECENT);
     this.relay = relay;
+    this.outbox = new RelayOutbox(relay,
+                                  id,
+                                  secret,
+                                  OUTBOX_CAPACITY,
+                                  OUTBOX_BATCH,
+                                  OUTBOX_DELAY_MS,
+                                  OUTBOX_MAX_BACKOFF_MS,
+                                  OUTBOX_MAX_ATTEMPTS);
     
     //store persistent file
     this.persistentFile = persistentFile;
@@ -99,41 +209,51 @@ private static final long LOG_REFRESH_MS = 20000;
 
 
     // New Message - A client wants to add a new message to the back end.
-    this.commands.put(NetworkCode.NEW_MESSAGE_REQUEST, new Command() {
+    this.conversationCommands.put(NetworkCode.NEW_MESSAGE_REQUEST, new ConversationCommand() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public ConversationRequest read(InputStream in) throws IOException {
 
         final Uuid author = Uuid.SERIALIZER.read(in);
         final Uuid conversation = Uuid.SERIALIZER.read(in);
         final String content = Serializers.STRING.read(in);
 
-        final Message message = controller.newMessage(author, conversation, content);
-        
-        //if message does not exist
-        //create new message
-        if (message != null) {
-         	String messageAddCommand = "M-ADD " + 
-         			message.id.toString() + " " + 
-         			author.toString() + " " +
-         			conversation.toString() + " " +
-         			message.creation.inMs() + " " +
-         			content;     
+        return new ConversationRequest(conversation) {
+          @Override
+          void respond(OutputStream out) throws IOException {
 
-            //add command to queue
-            PersistentLog.writeQueue(messageAddCommand);
-         } else {
-        	 
-        	LOG.info("unable to create message " + content);
-        }
-        
-        Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
-        Serializers.nullable(Message.SERIALIZER).write(out, message);
+            final Message message;
 
-        timeline.scheduleNow(createSendToRelayEvent(
-            author,
-            conversation,
-            message.id));
-        
+            synchronized (model) {
+
+              touch(conversation);
+
+              message = controller.newMessage(author, conversation, content);
+              tiering.grew(conversation, message);
+
+              //if message does not exist
+              //create new message
+              if (message != null) {
+                String messageAddCommand = "M-ADD " +
+                    message.id.toString() + " " +
+                    author.toString() + " " +
+                    conversation.toString() + " " +
+                    message.creation.inMs() + " " +
+                    content;
+
+                //add command to queue
+                PersistentLog.writeQueue(messageAddCommand);
+
+                sendToRelay(message, author, conversation);
+              } else {
+
+                LOG.info("unable to create message " + content);
+              }
+            }
+
+            Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
+            Serializers.nullable(Message.SERIALIZER).write(out, message);
+          }
+        };
       }
     });
 
@@ -143,24 +263,29 @@ private static final long LOG_REFRESH_MS = 20000;
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
         final String name = Serializers.STRING.read(in);
-        final User user = controller.newUser(name);
-        
-        //if a user can be created
-        //then we will add the command to the queue
-        if(user != null){
-        	String userAddCommand = "U-ADD "
-                 + user.id.toString() + " "
-                 + user.creation.inMs() + " "
-                 + user.name;
-            
+        final User user;
 
-            //add command to queue
-            PersistentLog.writeQueue(userAddCommand);
-            
-        }
-        else{
-        	
-        	LOG.info("unable to create user " + name);
+        synchronized (model) {
+
+          user = controller.newUser(name);
+
+          //if a user can be created
+          //then we will add the command to the queue
+          if(user != null){
+          	String userAddCommand = "U-ADD "
+                   + user.id.toString() + " "
+                   + user.creation.inMs() + " "
+                   + user.name;
+
+
+              //add command to queue
+              PersistentLog.writeQueue(userAddCommand);
+
+          }
+          else{
+
+          	LOG.info("unable to create user " + name);
+          }
         }
         
         
@@ -178,22 +303,27 @@ private static final long LOG_REFRESH_MS = 20000;
 
         final String title = Serializers.STRING.read(in);
         final Uuid owner = Uuid.SERIALIZER.read(in);
-        final ConversationHeader conversation = controller.newConversation(title, owner);
+        final ConversationHeader conversation;
 
-        if(conversation != null){
-          String conversationAddCommand = "C-ADD "
-                  + conversation.id.toString() + " "
-                  + conversation.owner.toString() + " "
-                  + conversation.creation.inMs() + " "
-                  + conversation.title;
+        synchronized (model) {
 
-          //add command to queue
-          PersistentLog.writeQueue(conversationAddCommand);
+          conversation = controller.newConversation(title, owner);
 
-        }
-        else{
+          if(conversation != null){
+            String conversationAddCommand = "C-ADD "
+                    + conversation.id.toString() + " "
+                    + conversation.owner.toString() + " "
+                    + conversation.creation.inMs() + " "
+                    + conversation.title;
+
+            //add command to queue
+            PersistentLog.writeQueue(conversationAddCommand);
+
+          }
+          else{
 
-          LOG.info("unable to create conversation " + title);
+            LOG.info("unable to create conversation " + title);
+          }
         }
 
         Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
@@ -206,7 +336,10 @@ private static final long LOG_REFRESH_MS = 20000;
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
-        final Collection<User> users = view.getUsers();
+        final Collection<User> users;
+        synchronized (model) {
+          users = view.getUsers();
+        }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_USERS_RESPONSE);
         Serializers.collection(User.SERIALIZER).write(out, users);
@@ -218,7 +351,10 @@ private static final long LOG_REFRESH_MS = 20000;
       @Override
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
-        final Collection<ConversationHeader> conversations = view.getConversations();
+        final Collection<ConversationHeader> conversations;
+        synchronized (model) {
+          conversations = view.getConversations();
+        }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
         Serializers.collection(ConversationHeader.SERIALIZER).write(out, conversations);
@@ -234,7 +370,17 @@ private static final long LOG_REFRESH_MS = 20000;
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
         final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
-        final Collection<ConversationPayload> conversations = view.getConversationPayloads(ids);
+
+        final Collection<ConversationPayload> conversations;
+
+        synchronized (model) {
+
+          for (final Uuid conversation : ids) {
+            touch(conversation);
+          }
+
+          conversations = view.getConversationPayloads(ids);
+        }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
         Serializers.collection(ConversationPayload.SERIALIZER).write(out, conversations);
@@ -247,61 +393,120 @@ private static final long LOG_REFRESH_MS = 20000;
       public void onMessage(InputStream in, OutputStream out) throws IOException {
 
         final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
-        final Collection<Message> messages = view.getMessages(ids);
+
+        // Clients normally get a conversation's payload before asking for its
+        // messages, which hydrates it. If they didn't, look for the message in
+        // the archives and if it is not there, there is no way to know which
+        // conversation the message is in so load everything.
+        final Collection<Message> messages;
+
+        synchronized (model) {
+
+          for (final Uuid message : ids) {
+            if (view.findMessage(message) == null &&
+                !tiering.locate(message) &&
+                hydrator.isPending()) {
+              hydrator.hydrateAll();
+              tiering.admitAll();
+            }
+          }
+
+          messages = view.getMessages(ids);
+        }
 
         Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
         Serializers.collection(Message.SERIALIZER).write(out, messages);
       }
     });
     
-    this.timeline.scheduleNow(new Runnable() {
+    // Polling is only used when the relay can not push bundles to a
+    // subscription.
+    final Runnable poll = new Runnable() {
+
+        // Where the last read ended. This runs ahead of "lastSeen" while the
+        // bundles that were read are still being applied.
+        private Uuid cursor;
+
         @Override
         public void run() {
+
+          long delay;
+
           try {
 
         	  LOG.info("Reading update from relay...");
 
-              for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
-                onBundle(bundle);
-                lastSeen = bundle.id();
+              if (cursor == null) {
+                cursor = lastSeen;
               }
-            
-            try{
-            	
-            	// if queue has 5 or more commands, write to file
-          	  if (PersistentLog.persistentQueue.size() >= 5) {
-          		  LOG.info("Writing commands to transaction log.");
-          	  
-          		  
-          		  PersistentLog.writeFile(persistentFile);
-          		  
-            }
-            }
-            catch(Exception e){
-          	  LOG.error(e, "Unable to read from file");
-            }
-            
-            
-            
+
+              final Collection<Relay.Bundle> bundles = relay.read(id, secret, cursor, relayPoll.batch(), RELAY_FILTER);
+              final RelayIngest.Group group = new RelayIngest.Group(bundles);
+
+              ingest(group);
+
+              if (group.last != null) {
+                cursor = group.last;
+              }
+
+              delay = relayPoll.received(bundles.size());
 
           } catch (Exception ex) {
 
             LOG.error(ex, "Failed to read update from relay.");
 
+            delay = relayPoll.failed();
           }
 
-          timeline.scheduleIn(RELAY_REFRESH_MS, this);
+          timeline.scheduleIn(Timeline.Priority.BACKGROUND, delay, this);
         }
-      });
+      };
+
+    // Bundles arrive on the subscriber's thread and are applied on the timeline
+    // like everything else that touches the model, each conversation on its
+    // own lane.
+    this.relaySubscriber = new RelaySubscriber(
+        relay,
+        id,
+        secret,
+        lastSeen,
+        RELAY_FILTER,
+        new Relay.Subscriber() {
+          @Override
+          public boolean onBundles(Collection<Relay.Bundle> bundles) {
+
+            // Grouping does not touch the model so it is done here rather
+            // than on the timeline.
+            ingest(new RelayIngest.Group(bundles));
+            return true;
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            timeline.scheduleNow(Timeline.Priority.BACKGROUND, poll);
+          }
+        },
+        RELAY_MAX_POLL_MS);
     
 
-    this.timeline.scheduleIn(LOG_REFRESH_MS, new Runnable() {
+    this.timeline.scheduleIn(Timeline.Priority.BACKGROUND, LOG_REFRESH_MS, new Runnable() {
         @Override
         public void run() {
           try {
           	  
             //writes to file every twenty seconds regardless of size of queue 
         	  
+        	LOG.info(
+        	    "Relay outbox depth=%d sent=%d dropped=%d retries=%d undelivered=%d",
+        	    outbox.depth(),
+        	    outbox.sent(),
+        	    outbox.dropped(),
+        	    outbox.retries(),
+        	    outbox.undelivered());
+
+        	LOG.info("Timeline %s", timeline);
+
         	LOG.info("Writing commands to transaction log.");
           	PersistentLog.writeFile(persistentFile);
            
@@ -312,102 +517,152 @@ private static final long LOG_REFRESH_MS = 20000;
 
           }
 
-          timeline.scheduleIn(LOG_REFRESH_MS, this);
+          // Trace lines are only written after the transaction log so that a
+          // problem with the trace file never holds back the log.
+          if (tracer != null) {
+            try {
+              tracer.flush();
+            } catch (Exception ex) {
+              LOG.error(ex, "Unable to write trace file.");
+            }
+          }
+
+          timeline.scheduleIn(Timeline.Priority.BACKGROUND, LOG_REFRESH_MS, this);
         }
       });
   }
   
 
-//adds new user at the start
-public void addNewUser(String id, String time, String name){
-	  
-	  //converts strings to necessary objects
-	  Uuid userid;
-	try {
-		userid = Uuid.parse(id);
-		Time usercreation = Time.fromMs(Long.parseLong(time));
-		  
-		//adds user
-		controller.newUser(userid, name, usercreation);
-	} catch (IOException e) {
-		LOG.info("Could not read in users from persistent log");
-		e.printStackTrace();
-	}	  
-	  
-	  
-}
-
-//adds new conversation at the start
-  public void addNewConversation(String c_id, String c_owner, String creation, String title){
-
-    //converts strings to necessary objects
-    Uuid id;
-    Uuid owner;
-    try {
-      id = Uuid.parse(c_id);
-      owner = Uuid.parse(c_owner);
-      Time creationTime = Time.fromMs(Long.parseLong(creation));
+  // REPLAY
+  //
+  // Rebuild this server's model from its transaction log. This should be called
+  // before the server starts handling connections.
+  public void replay(File file) throws IOException {
+    synchronized (model) {
+      final LogReplay replay = new LogReplay(model);
+      replay.replay(file);
+      resume(replay.cursor());
+      tiering.admitAll();
+    }
+  }
 
-      //adds conversation
-      controller.newConversation(id, title, owner, creationTime);
-    } catch (IOException e) {
+  // REPLAY LAZILY
+  //
+  // Rebuild the users and conversations from the transaction log now and load
+  // each conversation's messages from the log when it is first used.
+  public void replayLazily(File file) throws IOException {
+    synchronized (model) {
+      resume(hydrator.load(file));
+      tiering.admitAll();
+    }
+  }
 
-      LOG.info("Could not read in conversation from persistent log");
-      e.printStackTrace();
+  // START RELAY
+  //
+  // Start taking bundles from the relay and sending new messages to it. This
+  // should be called after the log is replayed so that the server picks up
+  // from the last bundle it applied before it stopped rather than from the
+  // oldest bundle the relay has.
+  public void startRelay() {
+    LOG.info("Starting relay subscription from %s", lastSeen);
+    relaySubscriber.start(lastSeen);
+    outbox.start();
+  }
 
+  private void resume(Uuid cursor) {
+    if (cursor != null) {
+      lastSeen = cursor;
     }
   }
-    
-    //adds new message to conversation
-    public void addNewMessage(String messageIdString, String userIdString, String convoIdString, String timeString, String content){
-    	
-    	LOG.info("import message (messageId=%s userId=%s convoId=%s time=%s message=%s)",
-    	          messageIdString,
-    	          userIdString,
-    	          convoIdString,
-    	          timeString,
-    	          content);
-    	
-    	//converts strings
-    	Uuid messageId;
-    	Uuid userId;
-    	Uuid convoId;
 
-        try {
-          messageId = Uuid.parse(messageIdString);
-          userId = Uuid.parse(userIdString);
-          convoId = Uuid.parse(convoIdString);
-          Time time = Time.fromMs(Long.parseLong(timeString));
+  // ENABLE TIERING
+  //
+  // Archive the messages of conversations that go unused for "idle" ms, or that
+  // were used least recently when messages take more than "budget" bytes, to
+  // compressed files in the given directory. This should be called before the
+  // log is replayed.
+  public void enableTiering(File directory, long budget, long idle) throws IOException {
 
-          //adds message
-          controller.newMessage(messageId, userId, convoId, content, time);
-          
-        } catch (IOException e) {
+    tiering.enable(directory, budget, idle);
 
-          LOG.info("Could not read in conversation from persistent log");
-          e.printStackTrace();
+    timeline.scheduleIn(Timeline.Priority.BACKGROUND, TIERING_REFRESH_MS, new Runnable() {
+      @Override
+      public void run() {
+        synchronized (model) {
+          tiering.archiveIdle();
+        }
+        timeline.scheduleIn(Timeline.Priority.BACKGROUND, TIERING_REFRESH_MS, this);
+      }
+    });
+  }
 
-        } 
+  // ENABLE TRACING
+  //
+  // Time every client request through its stages and append the traces of
+  // "sampleRate" of them, plus every request that takes "slowMs" or more, to
+  // the given file. This should be called before the server starts handling
+  // connections.
+  public void enableTracing(File file, double sampleRate, long slowMs) throws IOException {
+    tracer = new Tracer(new BufferedWriter(new FileWriter(file, true)), sampleRate, slowMs);
+  }
+
+  // TOUCH
+  //
+  // Make sure a conversation's messages are in the model before it is used.
+  // Must be called while holding the model's lock.
+  private void touch(Uuid conversation) {
+    if (hydrator.hydrate(conversation)) {
+      tiering.remeasure(conversation);
+    }
+    tiering.touch(conversation);
   }
 
 
   public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(new Runnable() {
+
+    // The trace starts now so that it includes the time spent waiting on the
+    // timeline.
+    final Tracer tracer = this.tracer;
+    final Tracer.Trace trace = tracer == null ? null : tracer.begin("unknown");
+
+    // Until the request is read there is nothing to order it by, so it gets a
+    // lane of its own.
+    timeline.scheduleNow(connection, new Runnable() {
       @Override
       public void run() {
+
+        boolean handedOff = false;
+
         try {
 
           LOG.info("Handling connection...");
 
-          final int type = Serializers.INTEGER.read(connection.in());
+          InputStream in = connection.in();
+          OutputStream out = connection.out();
+
+          if (trace != null) {
+            Tracer.resume(trace, Tracer.Stage.MODEL);
+            in = Tracer.timeReads(in);
+            out = Tracer.timeWrites(out);
+          }
+
+          final int type = Serializers.INTEGER.read(in);
           final Command command = commands.get(type);
+          final ConversationCommand conversationCommand = conversationCommands.get(type);
+
+          if (trace != null) {
+            trace.name(Integer.toString(type));
+          }
 
-          if (command == null) {
+          if (conversationCommand != null) {
+            handOff(conversationCommand.read(in), out, connection, tracer, trace);
+            handedOff = true;
+          } else if (command == null) {
             // The message type cannot be handled so return a dummy message.
-            Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
+            Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
             LOG.info("Connection rejected");
           } else {
-            command.onMessage(connection.in(), connection.out());
+            command.onMessage(in, out);
             LOG.info("Connection accepted");
           }
 
@@ -415,68 +670,173 @@ public void addNewUser(String id, String time, String name){
 
           LOG.error(ex, "Exception while handling connection.");
 
+        } finally {
+          if (!handedOff) {
+            finish(connection, tracer, trace);
+          }
         }
+      }
+    });
+  }
+
+  // HAND OFF
+  //
+  // Answer a request on its conversation's lane. The trace goes back to
+  // waiting until the lane gets to it.
+  private void handOff(final ConversationRequest request,
+                       final OutputStream out,
+                       final Connection connection,
+                       final Tracer tracer,
+                       final Tracer.Trace trace) {
+
+    if (trace != null) {
+      Tracer.suspend(trace);
+    }
 
+    timeline.scheduleNow(request.conversation, new Runnable() {
+      @Override
+      public void run() {
         try {
-          connection.close();
+
+          if (trace != null) {
+            Tracer.resume(trace, Tracer.Stage.MODEL);
+          }
+
+          request.respond(out);
+          LOG.info("Connection accepted");
+
         } catch (Exception ex) {
-          LOG.error(ex, "Exception while closing connection.");
+
+          LOG.error(ex, "Exception while handling connection.");
+
+        } finally {
+          finish(connection, tracer, trace);
         }
       }
     });
   }
 
-  private void onBundle(Relay.Bundle bundle) {
+  private static void finish(Connection connection, Tracer tracer, Tracer.Trace trace) {
 
-    final Relay.Bundle.Component relayUser = bundle.user();
-    final Relay.Bundle.Component relayConversation = bundle.conversation();
-    final Relay.Bundle.Component relayMessage = bundle.user();
+    if (trace != null) {
+      tracer.end(trace);
+    }
 
-    User user = model.userById().first(relayUser.id());
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
 
-    if (user == null) {
-      user = controller.newUser(relayUser.id(), relayUser.text(), relayUser.time());
+  // INGEST
+  //
+  // Apply a batch from the relay with each conversation's bundles on that
+  // conversation's lane.
+  private void ingest(RelayIngest.Group group) {
+
+    if (group.conversations.isEmpty()) {
+      return;
     }
 
-    ConversationHeader conversation = model.conversationById().first(relayConversation.id());
+    // Batches are queued and their parts scheduled together so that the
+    // lanes get the parts in the same order as the batches are queued.
+    synchronized (batches) {
+
+      final Batch batch = new Batch(group.last, group.conversations.size());
+      batches.add(batch);
+
+      for (final Map.Entry<Uuid, List<Relay.Bundle>> entry : group.conversations.entrySet()) {
 
-    if (conversation == null) {
+        final RelayIngest.Group part = new RelayIngest.Group(entry.getValue());
 
-      // As the relay does not tell us who made the conversation - the first person who
-      // has a message in the conversation will get ownership over this server's copy
-      // of the conversation.
-      conversation = controller.newConversation(relayConversation.id(),
-                                                relayConversation.text(),
-                                                user.id,
-                                                relayConversation.time());
+        timeline.scheduleNow(Timeline.Priority.BACKGROUND, entry.getKey(), new Runnable() {
+          @Override
+          public void run() {
+            try {
+              onBundles(part, batch);
+            } catch (Exception ex) {
+              LOG.error(ex, "Failed to apply update from relay.");
+            }
+          }
+        });
+      }
     }
+  }
+
+  // ON BUNDLES
+  //
+  // Apply part of a batch from the relay. Every conversation in the part is
+  // loaded before any of its messages are added.
+  private void onBundles(RelayIngest.Group group, Batch batch) {
 
-    Message message = model.messageById().first(relayMessage.id());
+    synchronized (model) {
+      try {
 
-    if (message == null) {
-      message = controller.newMessage(relayMessage.id(),
-                                      user.id,
-                                      conversation.id,
-                                      relayMessage.text(),
-                                      relayMessage.time());
+        for (final Uuid conversation : group.conversations.keySet()) {
+          touch(conversation);
+        }
+
+        for (final Map.Entry<Uuid, List<Message>> added : ingest.apply(group).entrySet()) {
+          for (final Message message : added.getValue()) {
+            tiering.grew(added.getKey(), message);
+          }
+        }
+
+      } finally {
+        settle(batch);
+      }
+    }
+
+    try{
+    	
+    	// if queue has 5 or more commands, write to file
+  	  if (PersistentLog.size() >= 5) {
+  		  LOG.info("Writing commands to transaction log.");
+  	  
+  		  
+  		  PersistentLog.writeFile(persistentFile);
+  		  
+    }
+    }
+    catch(Exception e){
+  	  LOG.error(e, "Unable to read from file");
     }
   }
 
-  private Runnable createSendToRelayEvent(final Uuid userId,
-                                          final Uuid conversationId,
-                                          final Uuid messageId) {
-    return new Runnable() {
-      @Override
-      public void run() {
-        final User user = view.findUser(userId);
-        final ConversationHeader conversation = view.findConversation(conversationId);
-        final Message message = view.findMessage(messageId);
-        relay.write(id,
-                    secret,
-                    relay.pack(user.id, user.name, user.creation),
-                    relay.pack(conversation.id, conversation.title, conversation.creation),
-                    relay.pack(message.id, message.content, message.creation));
+  // SETTLE
+  //
+  // Mark one part of a batch as applied and move the cursor past every batch
+  // that has been applied in full. The cursor is logged after the batch's own
+  // entries so that after a restart the server never skips bundles it had not
+  // saved yet. Must be called while holding the model's lock.
+  private void settle(Batch batch) {
+    synchronized (batches) {
+
+      batch.remaining--;
+
+      while (!batches.isEmpty() && batches.peek().remaining == 0) {
+        final Batch done = batches.remove();
+        lastSeen = done.last;
+        PersistentLog.writeQueue("R-SEEN " + lastSeen);
       }
-    };
+    }
+  }
+
+  // SEND TO RELAY
+  //
+  // Pack a new message for the relay while everything about it is at hand and
+  // queue it in the outbox. Must be called while holding the model's lock.
+  private void sendToRelay(Message message, Uuid author, Uuid conversationId) {
+    Tracer.enter(Tracer.Stage.RELAY);
+    try {
+      final User user = model.userById().first(author);
+      final ConversationHeader conversation = model.conversationById().first(conversationId);
+      outbox.offer(relay.pack(relay.pack(user.id, user.name, user.creation),
+                              relay.pack(conversation.id, conversation.title, conversation.creation),
+                              relay.pack(message.id, message.content, message.creation)));
+    } finally {
+      Tracer.exit();
+    }
   }
 }
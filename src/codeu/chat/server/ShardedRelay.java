@@ -0,0 +1,349 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// SHARDED RELAY
+//
+// Spreads bundles over a cluster of relay nodes. Each conversation belongs to
+// one node, picked by consistent hashing, so that a conversation's bundles
+// stay in order on one node and adding a node only moves a share of the
+// conversations.
+//
+// Reads ask every node and merge the results by bundle time. Each node has its
+// own cursor so the id of a bundle from this relay is a cursor for the whole
+// cluster: a chain with the id of the last bundle read from each node, the
+// first node at the root. With a single node this is the same as that node's
+// own bundle id.
+public final class ShardedRelay implements Relay {
+
+  private final static Logger.Log LOG = Logger.newLog(ShardedRelay.class);
+
+  // Each node is placed on the ring this many times so that conversations are
+  // spread evenly even with only a few nodes.
+  private static final int POINTS_PER_NODE = 64;
+
+  private final List<Relay> nodes;
+  private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+  public ShardedRelay(List<Relay> nodes) {
+
+    this.nodes = new ArrayList<>(nodes);
+
+    for (int node = 0; node < this.nodes.size(); node++) {
+      for (int point = 0; point < POINTS_PER_NODE; point++) {
+        ring.put(mix(node * POINTS_PER_NODE + point), node);
+      }
+    }
+  }
+
+  // NODE
+  //
+  // Get the index of the node that owns a conversation.
+  public int node(Uuid conversation) {
+    final Map.Entry<Integer, Integer> entry = ring.ceilingEntry(mix(conversation.hashCode()));
+    return (entry == null ? ring.firstEntry() : entry).getValue();
+  }
+
+  @Override
+  public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+    return nodes.get(0).pack(id, text, time);
+  }
+
+  @Override
+  public Relay.Bundle pack(Relay.Bundle.Component user,
+                           Relay.Bundle.Component conversation,
+                           Relay.Bundle.Component message) {
+    return nodes.get(0).pack(user, conversation, message);
+  }
+
+  @Override
+  public boolean write(Uuid teamId,
+                       Secret teamSecret,
+                       Relay.Bundle.Component user,
+                       Relay.Bundle.Component conversation,
+                       Relay.Bundle.Component message) {
+    return nodes.get(node(conversation.id())).write(teamId,
+                                                    teamSecret,
+                                                    user,
+                                                    conversation,
+                                                    message);
+  }
+
+  // WRITE
+  //
+  // Split the batch by node and write each part. A node takes its part in order
+  // so the result is how many bundles from the front of the batch were taken
+  // by their node. Anything after that will be sent again by the caller, which
+  // can repeat bundles a node already took but never loses one.
+  @Override
+  public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+
+    final List<List<Relay.Bundle>> parts = new ArrayList<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      parts.add(new ArrayList<Relay.Bundle>());
+    }
+
+    for (final Relay.Bundle bundle : bundles) {
+      parts.get(node(bundle.conversation().id())).add(bundle);
+    }
+
+    final int[] taken = new int[nodes.size()];
+    for (int node = 0; node < nodes.size(); node++) {
+      if (!parts.get(node).isEmpty()) {
+        taken[node] = nodes.get(node).write(teamId, teamSecret, parts.get(node));
+      }
+    }
+
+    final int[] seen = new int[nodes.size()];
+    int written = 0;
+
+    for (final Relay.Bundle bundle : bundles) {
+      final int node = node(bundle.conversation().id());
+      if (seen[node]++ >= taken[node]) {
+        break;
+      }
+      written++;
+    }
+
+    if (written < bundles.size()) {
+      LOG.warning("Sharded write took %d of %d bundles", written, bundles.size());
+    }
+
+    return written;
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+    return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+  }
+
+  // READ
+  //
+  // Read up to "range" bundles from every node after its cursor in "root" and
+  // return the oldest "range" of them. Each node's bundles are kept in the
+  // order the node gave them and time only decides between the nodes' next
+  // bundles, so a node's cursor never moves back or past a bundle that was not
+  // returned even when its clock is off. Bundles that did not make the cut are
+  // read again next time.
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       RelayFilter filter) {
+
+    final int[] cursors = cursors(root);
+    final List<List<Relay.Bundle>> reads = new ArrayList<>();
+
+    for (int node = 0; node < nodes.size(); node++) {
+      final Uuid cursor = new Uuid(cursors[node]);
+      reads.add(new ArrayList<>(nodes.get(node).read(teamId, teamSecret, cursor, range, filter)));
+    }
+
+    final int[] heads = new int[reads.size()];
+    final List<Relay.Bundle> result = new ArrayList<>();
+
+    while (result.size() < range) {
+
+      final int node = earliest(reads, heads);
+      if (node < 0) {
+        break;
+      }
+
+      result.add(advance(cursors, node, reads.get(node).get(heads[node]++)));
+    }
+
+    return result;
+  }
+
+  // Get the node whose next bundle is the oldest, or -1 when every node's
+  // bundles have been taken. Ties go to the lower node.
+  private static int earliest(List<List<Relay.Bundle>> reads, int[] heads) {
+
+    int earliest = -1;
+    Time time = null;
+
+    for (int node = 0; node < reads.size(); node++) {
+      if (heads[node] < reads.get(node).size()) {
+        final Time head = reads.get(node).get(heads[node]).time();
+        if (time == null || head.compareTo(time) < 0) {
+          earliest = node;
+          time = head;
+        }
+      }
+    }
+
+    return earliest;
+  }
+
+  // SUBSCRIBE
+  //
+  // Subscribe to every node, each on its own thread, and pass their bundles on
+  // one batch at a time. When one subscription ends the rest are stopped the
+  // next time their node sends something so the caller can subscribe again
+  // from the last cursor it saw.
+  @Override
+  public boolean subscribe(final Uuid teamId,
+                           final Secret teamSecret,
+                           final Uuid root,
+                           final RelayFilter filter,
+                           final Subscriber subscriber) throws IOException {
+
+    final int[] cursors = cursors(root);
+    final boolean[] open = { true };
+    final boolean[] accepted = new boolean[nodes.size()];
+    final Exception[] failure = { null };
+
+    final List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < nodes.size(); i++) {
+
+      final int node = i;
+      final Uuid cursor = new Uuid(cursors[node]);
+
+      final Subscriber forward = new Subscriber() {
+        @Override
+        public boolean onBundles(Collection<Relay.Bundle> bundles) throws IOException {
+          synchronized (cursors) {
+
+            if (!open[0]) {
+              return false;
+            }
+
+            final List<Relay.Bundle> merged = new ArrayList<>(bundles.size());
+            for (final Relay.Bundle bundle : bundles) {
+              merged.add(advance(cursors, node, bundle));
+            }
+
+            open[0] = subscriber.onBundles(merged);
+            return open[0];
+          }
+        }
+      };
+
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            accepted[node] = nodes.get(node).subscribe(teamId, teamSecret, cursor, filter, forward);
+          } catch (Exception ex) {
+            synchronized (cursors) {
+              if (failure[0] == null) {
+                failure[0] = ex;
+              }
+            }
+          }
+
+          synchronized (cursors) {
+            open[0] = false;
+          }
+        }
+      };
+
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (final Thread thread : threads) {
+      while (true) {
+        try {
+          thread.join();
+          break;
+        } catch (InterruptedException ex) {
+          synchronized (cursors) {
+            open[0] = false;
+          }
+        }
+      }
+    }
+
+    if (failure[0] instanceof IOException) {
+      throw (IOException) failure[0];
+    }
+    if (failure[0] instanceof RuntimeException) {
+      throw (RuntimeException) failure[0];
+    }
+    if (failure[0] != null) {
+      throw new IOException(failure[0]);
+    }
+
+    boolean all = true;
+    for (final boolean node : accepted) {
+      all &= node;
+    }
+
+    return all;
+  }
+
+  // Move the cursor for "node" past "bundle" and give the bundle the cursor of
+  // the whole cluster as its id.
+  private Relay.Bundle advance(int[] cursors, int node, Relay.Bundle bundle) {
+
+    cursors[node] = bundle.id().id();
+
+    Uuid id = null;
+    for (final int cursor : cursors) {
+      id = new Uuid(id, cursor);
+    }
+
+    return new CursorBundle(id, bundle);
+  }
+
+  // Split a cluster cursor into the cursor for each node. Anything that is not
+  // a cursor for this many nodes (e.g. NULL) starts every node from its oldest
+  // bundle.
+  private int[] cursors(Uuid root) {
+
+    final int[] cursors = new int[nodes.size()];
+
+    int length = 0;
+    for (Uuid current = root; current != null; current = current.root()) {
+      length++;
+    }
+
+    if (length == nodes.size()) {
+      int node = nodes.size() - 1;
+      for (Uuid current = root; current != null; current = current.root()) {
+        cursors[node--] = current.id();
+      }
+    }
+
+    return cursors;
+  }
+
+  // Spread out hash codes so that nearby ids do not land next to each other
+  // on the ring.
+  private static int mix(int value) {
+    int h = value * 0x9E3779B9;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    return h;
+  }
+}
@@ -97,21 +97,26 @@ public final class View implements BasicView, SinglesView {
   
   private static <T> Collection<T> intersect(StoreAccessor<Uuid, T> store, Collection<Uuid> ids) {
 
-    // Use a set to hold the found users as this will prevent duplicate ids from
-    // yielding duplicates in the result.
+    // Use a set to track the ids that were found as this will prevent duplicate ids
+    // from yielding duplicates in the result. The ids are tracked rather than the
+    // values as some stores return a new copy on every lookup.
 
-    final Collection<T> found = new HashSet<>();
+    final Collection<T> found = new ArrayList<>();
+    final Set<Uuid> seen = new HashSet<>();
 
     for (final Uuid id : ids) {
 
+      if (!seen.add(id)) {
+        LOG.warning("Duplicate id %s", id);
+        continue;
+      }
+
       final T t = store.first(id);
 
       if (t == null) {
         LOG.warning("Unmapped id %s", id);
-      } else if (found.add(t)) {
-        // do nothing
       } else {
-        LOG.warning("Duplicate id %s", id);
+        found.add(t);
       }
     }
 
@@ -0,0 +1,80 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.BitSet;
+
+// BLOOM FILTER
+//
+// A set of Uuids that can say for certain that an id was never added but can
+// only say that an id was "maybe" added. It is used to skip work (like reading
+// a file) when an id is definitely not there.
+public final class BloomFilter {
+
+  private final BitSet bits;
+  private final int size;
+  private final int hashes;
+
+  // BLOOM FILTER
+  //
+  // Create a filter sized for "expected" ids with roughly one percent false
+  // positives (ten bits and seven hashes per id).
+  public BloomFilter(int expected) {
+    this.size = Math.max(64, expected * 10);
+    this.hashes = 7;
+    this.bits = new BitSet(size);
+  }
+
+  public void add(Uuid id) {
+    final long hash = hash(id);
+    final int a = (int) hash;
+    final int b = (int) (hash >>> 32);
+    for (int i = 0; i < hashes; i++) {
+      bits.set(index(a + i * b));
+    }
+  }
+
+  public boolean mightContain(Uuid id) {
+    final long hash = hash(id);
+    final int a = (int) hash;
+    final int b = (int) (hash >>> 32);
+    for (int i = 0; i < hashes; i++) {
+      if (!bits.get(index(a + i * b))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int index(int hash) {
+    return (hash & Integer.MAX_VALUE) % size;
+  }
+
+  // Uuid.hashCode is too weak for this (it xors the ids together) so mix every
+  // link of the chain into a 64 bit value.
+  private static long hash(Uuid id) {
+    long hash = 0x9E3779B97F4A7C15L;
+    for (Uuid current = id; current != null; current = current.root()) {
+      hash = mix(hash ^ (current.id() & 0xFFFFFFFFL));
+    }
+    return hash;
+  }
+
+  private static long mix(long value) {
+    value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+    value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return value ^ (value >>> 33);
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// HISTOGRAM
+//
+// Counts non-negative values in power of two buckets: bucket 0 holds 0 and
+// bucket i holds values from 2^(i-1) up to 2^i - 1. Adding a value is a few
+// atomic increments so it can be done from any thread on every event, and a
+// percentile is only known to within a factor of two, which is enough to tell
+// a slow run from a normal one.
+public final class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void add(long value) {
+
+    final long clamped = Math.max(0, value);
+
+    counts.incrementAndGet(bucket(clamped));
+    count.incrementAndGet();
+    sum.addAndGet(clamped);
+
+    long current = max.get();
+    while (clamped > current && !max.compareAndSet(current, clamped)) {
+      current = max.get();
+    }
+  }
+
+  public long count() { return count.get(); }
+
+  public long max() { return max.get(); }
+
+  public double mean() {
+    final long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  // PERCENTILE
+  //
+  // Get the largest value that could be in the bucket where the given fraction
+  // (e.g. 0.99) of the values have been counted. This is never more than the
+  // largest value seen.
+  public long percentile(double fraction) {
+
+    final long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+
+    final long target = Math.max(1, (long) Math.ceil(n * fraction));
+
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts.get(bucket);
+      if (seen >= target) {
+        return Math.min(max.get(), upper(bucket));
+      }
+    }
+
+    return max.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("n=%d mean=%.1f p50=%d p99=%d max=%d",
+                         count(),
+                         mean(),
+                         percentile(0.5),
+                         percentile(0.99),
+                         max());
+  }
+
+  private static int bucket(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+
+  private static long upper(int bucket) {
+    return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+}
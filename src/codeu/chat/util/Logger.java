@@ -15,8 +15,34 @@
 package codeu.chat.util;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 
+// LOGGER
+//
+// Logs go through java.util.logging but none of its work is done on the
+// thread that logs. A call first checks the level so a disabled call costs
+// nothing more than the check. An enabled call fills in a slot of a ring
+// buffer with the message and its parameters, and a background writer formats
+// the message and hands it to the handlers. Records keep the time and thread
+// of the call that logged them, not of the writer.
+//
+// When the ring is full new verbose and info records are dropped and the
+// writer reports how many were lost. Warnings and errors are never dropped:
+// they are written on the thread that logged them instead, ahead of whatever
+// is still in the ring.
+//
+// Every record names the class its log was made for. Finding the method that
+// logged needs a stack trace. Call sites are on by default so records name the
+// method as they always have, but the trace is only read on the writer's
+// thread. Turning them off saves taking a trace on every enabled call.
+//
+// As formatting is deferred, parameters should not be changed after they are
+// logged.
 public final class Logger {
 
   public interface Log {
@@ -35,12 +61,26 @@ public final class Logger {
   private static final java.util.logging.Logger logger =
       java.util.logging.Logger.getLogger("codeu.chat");
 
+  private static final int RING_SIZE = 8192;
+
+  private static final Ring ring = new Ring(RING_SIZE);
+
+  private static volatile boolean callSites = true;
+
   static {
     logger.setLevel(java.util.logging.Level.INFO);
 
     // Stop this logger from sending its messages up to the root. This will
     // make our logger the new root logger.
     logger.setUseParentHandlers(false);
+
+    // Write whatever is still in the ring when the process exits.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        flush(1000);
+      }
+    });
   }
 
   public static void enableFileOutput(String file) throws IOException {
@@ -59,55 +99,302 @@ public final class Logger {
     logger.addHandler(handler);
   }
 
-  public static Log newLog(Class<?> c) {
+  // ENABLE CALL SITES
+  //
+  // Include the method that logged in every record. This takes a stack trace
+  // on every enabled log call. It is on by default and can be turned off where
+  // logging is hot enough for that to matter.
+  public static void enableCallSites(boolean enabled) {
+    callSites = enabled;
+  }
+
+  // FLUSH
+  //
+  // Wait up to "timeoutMs" for every record logged before this call to be
+  // given to the handlers. Returns false if the writer did not catch up in
+  // time.
+  public static boolean flush(long timeoutMs) {
+    return ring.flush(timeoutMs);
+  }
+
+  // DROPPED
+  //
+  // How many verbose and info records have been dropped because the ring was
+  // full.
+  public static long dropped() {
+    return ring.dropped.get();
+  }
+
+  public static Log newLog(final Class<?> c) {
 
     final java.util.logging.Logger log =
         java.util.logging.Logger.getLogger(c.getName());
 
-    // Note: This Logger calls the standard java Logger, so the class/method lookup
-    // needs to go one level deeper.  Otherwise it will appear that all the log
-    // calls are coming from this object. Use logp() (log precise) to do this.
     return new Log() {
 
       @Override
       public void verbose(String message, Object... params) {
-        log.logp(java.util.logging.Level.FINE,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+        if (log.isLoggable(Level.FINE)) {
+          ring.offer(log, Level.FINE, c, site(), message, params, null);
+        }
       }
 
       @Override
       public void info(String message, Object... params) {
-        log.logp(java.util.logging.Level.INFO,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+        if (log.isLoggable(Level.INFO)) {
+          ring.offer(log, Level.INFO, c, site(), message, params, null);
+        }
       }
 
       @Override
       public void warning(String message, Object... params) {
-        log.logp(java.util.logging.Level.WARNING,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+        if (log.isLoggable(Level.WARNING)) {
+          ring.offer(log, Level.WARNING, c, site(), message, params, null);
+        }
       }
 
       @Override
       public void error(String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+        if (log.isLoggable(Level.SEVERE)) {
+          ring.offer(log, Level.SEVERE, c, site(), message, params, null);
+        }
       }
 
       @Override
       public void error(Throwable error, String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params), error);
+        if (log.isLoggable(Level.SEVERE)) {
+          ring.offer(log, Level.SEVERE, c, site(), message, params, error);
+        }
+      }
+    };
+  }
+
+  // Filling in a throwable's stack is the cheap half of getting a stack trace.
+  // Turning it into stack trace elements is left to the writer.
+  private static Throwable site() {
+    return callSites ? new Throwable() : null;
+  }
+
+  // RECORD
+  //
+  // One slot of the ring. Slots are made once and reused so logging does not
+  // allocate anything beyond the parameters.
+  private static final class Record {
+
+    java.util.logging.Logger log;
+    Level level;
+    Class<?> source;
+    Throwable site;
+    String message;
+    Object[] params;
+    Throwable error;
+    long millis;
+    int thread;
+
+    void clear() {
+      log = null;
+      level = null;
+      source = null;
+      site = null;
+      message = null;
+      params = null;
+      error = null;
+    }
+  }
+
+  // RING
+  //
+  // A bounded ring of records with many writers and one reader. A writer
+  // claims a sequence number with a compare and set, fills in the slot and
+  // then publishes it by setting the slot's sequence. The reader takes slots
+  // in sequence order once they are published. The reader parks when the ring
+  // is empty and writers only unpark it when it says it is idle.
+  private static final class Ring {
+
+    private final Record[] records;
+    private final AtomicLongArray published;
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean idle;
+
+    private final Thread writer = new Thread("log-writer") {
+      @Override
+      public void run() {
+        drain();
       }
     };
+
+    Ring(int size) {
+
+      records = new Record[size];
+      published = new AtomicLongArray(size);
+      mask = size - 1;
+
+      for (int i = 0; i < size; i++) {
+        records[i] = new Record();
+        published.set(i, -1);
+      }
+
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    void offer(java.util.logging.Logger log,
+               Level level,
+               Class<?> source,
+               Throwable site,
+               String message,
+               Object[] params,
+               Throwable error) {
+
+      final long millis = System.currentTimeMillis();
+      final int thread = (int) Thread.currentThread().getId();
+
+      long sequence;
+      do {
+        sequence = claimed.get();
+        if (sequence - consumed.get() >= records.length) {
+          if (level.intValue() >= Level.WARNING.intValue()) {
+            write(log, level, source, site, message, params, error, millis, thread);
+          } else {
+            dropped.incrementAndGet();
+          }
+          return;
+        }
+      } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+      final int slot = (int) (sequence & mask);
+      final Record record = records[slot];
+
+      record.log = log;
+      record.level = level;
+      record.source = source;
+      record.site = site;
+      record.message = message;
+      record.params = params;
+      record.error = error;
+      record.millis = millis;
+      record.thread = thread;
+
+      published.set(slot, sequence);
+
+      if (idle) {
+        LockSupport.unpark(writer);
+      }
+    }
+
+    boolean flush(long timeoutMs) {
+
+      final long target = claimed.get();
+      final long deadline = System.currentTimeMillis() + timeoutMs;
+
+      while (consumed.get() < target) {
+        if (System.currentTimeMillis() >= deadline) {
+          return false;
+        }
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+
+      return true;
+    }
+
+    private void drain() {
+
+      long reported = 0;
+
+      while (true) {
+
+        final long sequence = consumed.get();
+        final int slot = (int) (sequence & mask);
+
+        if (published.get(slot) != sequence) {
+
+          // "idle" is set before the last look so that a record published
+          // after that look is sure to unpark this thread.
+          idle = true;
+          if (published.get(slot) != sequence) {
+            LockSupport.park(this);
+          }
+          idle = false;
+          continue;
+        }
+
+        final Record record = records[slot];
+        write(record.log,
+              record.level,
+              record.source,
+              record.site,
+              record.message,
+              record.params,
+              record.error,
+              record.millis,
+              record.thread);
+        record.clear();
+
+        consumed.set(sequence + 1);
+
+        final long lost = dropped.get();
+        if (lost != reported && sequence + 1 == claimed.get()) {
+          logger.logp(Level.WARNING,
+                      Logger.class.getName(),
+                      null,
+                      String.format("%d log records were dropped", lost - reported));
+          reported = lost;
+        }
+      }
+    }
+
+    // Format a record and give it to the handlers. This runs on the writer
+    // and, for warnings and errors that do not fit in the ring, on the thread
+    // that logged.
+    private static void write(java.util.logging.Logger log,
+                              Level level,
+                              Class<?> source,
+                              Throwable site,
+                              String message,
+                              Object[] params,
+                              Throwable error,
+                              long millis,
+                              int thread) {
+
+      String method = null;
+      if (site != null) {
+        // The first frame outside of this class is the code that logged.
+        for (final StackTraceElement frame : site.getStackTrace()) {
+          final String name = frame.getClassName();
+          if (!name.equals(Logger.class.getName()) &&
+              !name.startsWith(Logger.class.getName() + "$")) {
+            method = frame.getMethodName();
+            break;
+          }
+        }
+      }
+
+      String text;
+      try {
+        text = String.format(message, params);
+      } catch (Exception ex) {
+        text = message;
+      }
+
+      final LogRecord record = new LogRecord(level, text);
+      record.setLoggerName(log.getName());
+      record.setSourceClassName(source.getName());
+      record.setSourceMethodName(method);
+      record.setThrown(error);
+      record.setMillis(millis);
+      record.setThreadID(thread);
+
+      try {
+        log.log(record);
+      } catch (Exception ex) {
+        // A broken handler must not stop the writer.
+      }
+    }
   }
 }
@@ -1,15 +1,11 @@
 package codeu.chat.util;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.LinkedList;
-import java.util.Scanner;
 
-import codeu.chat.server.Controller;
 import codeu.chat.server.Server;
 
 public class PersistentLog {
@@ -22,32 +18,19 @@ public class PersistentLog {
 
     //method to read from the file
     public static void read(File persistentFile, Server server){
+        read(persistentFile, server, false);
+    }
+
+    //method to read from the file, when lazy only users and conversations are
+    //read now and messages are read when their conversation is first used
+    public static void read(File persistentFile, Server server, boolean lazy){
         try{
             //reads from file if it hasn't been created yet
             if(!persistentFile.createNewFile()){
-                BufferedReader reader = new BufferedReader(new FileReader(persistentFile));
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    String[] command = line.split("\\s+");
-
-                    //checks each command and calls appropriate action
-                    switch(command[0]){
-                        //user should be added
-                        case "U-ADD":
-                            server.addNewUser(command[1], command[2], command[3]);
-                            break;
-
-                        //conversation should be added
-                        case "C-ADD":
-                            server.addNewConversation(command[1], command[2], command[3], command[4]);
-                            break;
-
-                        //message should be added
-                        case "M-ADD":
-                            server.addNewMessage(command[1], command[2], command[3], command[4],command[5]);
-                            break;
-                    }
+                if(lazy){
+                    server.replayLazily(persistentFile);
+                }else{
+                    server.replay(persistentFile);
                 }
             }
         }catch (IOException e) {
@@ -56,13 +39,23 @@ public class PersistentLog {
         }
     }
 
-    //adds command to queue
-    public static void writeQueue(String command){
-        persistentQueue.add(command);
+    //adds command to queue, the queue is shared by all of the server's workers
+    public static synchronized void writeQueue(String command){
+        Tracer.enter(Tracer.Stage.LOG);
+        try{
+            persistentQueue.add(command);
+        }finally{
+            Tracer.exit();
+        }
+    }
+
+    //how many commands are waiting to be written
+    public static synchronized int size(){
+        return persistentQueue.size();
     }
 
     //writes the queue to the file
-    public static void writeFile(String persistentFile) throws IOException{
+    public static synchronized void writeFile(String persistentFile) throws IOException{
 
         persistentDataWriter = new PrintWriter(new FileWriter(persistentFile, true));
 
@@ -14,9 +14,20 @@
 
 package codeu.chat.util;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 // TIMELINE
 //
@@ -24,117 +35,313 @@ import java.util.concurrent.PriorityBlockingQueue;
 // when work needs to be ordered by time. The timeline manages its own threads
 // and there is no way to know outside of the code that is executed when the
 // code has been executed.
+//
+// Future events are kept in a hashed timing wheel: a ring of "WHEEL_SIZE"
+// buckets that the scheduler thread steps through one every "TICK_MS". An
+// event goes in the bucket for the tick it is due on, with a count of how many
+// more turns of the wheel to wait, so adding an event is O(1) no matter how
+// many are waiting. New events are handed to the scheduler through a lock-free
+// queue and it is never interrupted to look at them. Events that are already
+// due skip the wheel and go straight to the executor.
+//
+// A timeline can have more than one worker. Every event has an ordering key
+// (e.g. a conversation id) and events with the same key run one at a time in
+// the order they became due, while events with different keys can run at the
+// same time on different workers. Events scheduled without a key all share
+// one key so they keep running one at a time, as they do on a timeline with a
+// single worker.
+//
+// Every event also has a priority. Each priority has its own queue of due
+// events and the workers share their time between the queues by weight, so
+// background work that is due (e.g. writing the transaction log) waits behind
+// interactive work rather than in front of it, but still gets a turn when
+// interactive work never lets up. Ordering only holds between events with the
+// same key and the same priority.
+//
+// The timeline keeps its own metrics: how late each event started compared to
+// when it was due, how long each event ran, and how many events are waiting.
+// A watchdog looks at the workers and when one has been running the same
+// event for longer than the stall threshold it logs the worker's stack so a
+// stall can be tracked down from the log alone.
 public final class Timeline {
 
+  // PRIORITY
+  //
+  // When more than one priority has events waiting, a worker takes up to
+  // "weight" events from a priority before giving the next one a turn.
+  public enum Priority {
+
+    INTERACTIVE(16),
+    BACKGROUND(1);
+
+    private final int weight;
+
+    Priority(int weight) {
+      this.weight = weight;
+    }
+  }
+
   private final static Logger.Log LOG = Logger.newLog(Timeline.class);
 
-  private static final class Event implements Comparable<Event> {
+  // Events run at most one tick late. With 512 buckets one turn of the wheel
+  // is a little over 5 seconds.
+  private static final long TICK_MS = 10;
+  private static final int WHEEL_SIZE = 512;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+  private static final Object NO_KEY = new Object();
+
+  private static final long DEFAULT_STALL_MS = 2000;
+
+  private static final class Event {
 
     public final long time;
+    public final Priority priority;
+    public final Object key;
     public final Runnable callback;
 
-    public Event(long time, Runnable callback) {
+    // Only used by the scheduler thread once the event is in the wheel.
+    long rounds;
+    Event next;
+
+    public Event(long time, Priority priority, Object key, Runnable callback) {
       this.time = time;
+      this.priority = priority;
+      this.key = key;
       this.callback = callback;
     }
+  }
 
+  private static final Comparator<Event> BY_TIME = new Comparator<Event>() {
     @Override
-    public int compareTo(Event other) {
-      return Long.compare(time, other.time);
+    public int compare(Event a, Event b) {
+      return Long.compare(a.time, b.time);
+    }
+  };
+
+  // LANE
+  //
+  // The due events for one key and priority. A lane is in its priority's
+  // "todo" queue while it has events and no worker is running one of them, so
+  // at most one worker is ever in a lane. A worker runs one event and then
+  // puts the lane at the back of the queue so that a busy key can not keep the
+  // others waiting.
+  private static final class Lane {
+
+    final Priority priority;
+    final Object key;
+    final Queue<Event> events = new ArrayDeque<>();
+
+    Lane(Priority priority, Object key) {
+      this.priority = priority;
+      this.key = key;
     }
   }
 
-  private final BlockingQueue<Event> backlog = new PriorityBlockingQueue<>();
-  private final BlockingQueue<Runnable> todo = new LinkedBlockingQueue<>();
+  private static final Priority[] PRIORITIES = Priority.values();
+
+  private final Queue<Event> incoming = new ConcurrentLinkedQueue<>();
+
+  // Lanes that have events, by priority and key. This also guards "todo" and
+  // "credits", and the workers wait on it when there is nothing to do.
+  private final Map<Priority, Map<Object, Lane>> lanes = new EnumMap<>(Priority.class);
+  private final Map<Priority, Queue<Lane>> todo = new EnumMap<>(Priority.class);
+  private final int[] credits = new int[PRIORITIES.length];
+  private final int[] depths = new int[PRIORITIES.length];
+
+  // The buckets are linked lists of events so that adding one never
+  // allocates anything beyond the event. They are only touched by the
+  // scheduler thread.
+  private final Event[] heads = new Event[WHEEL_SIZE];
+  private final Event[] tails = new Event[WHEEL_SIZE];
+  private int waiting;
 
-  private boolean running = true;
+  // Events that are not due yet, both in "incoming" and in the wheel.
+  private final AtomicInteger scheduled = new AtomicInteger();
 
-  // This thread is used to track the time of events and moves events from the
-  // "backlog" queue to the "todo" queue when it is time to execute. They are
-  // separated to allow this thread to be safely interrupted.
+  private final long start = System.currentTimeMillis();
+  private long tick;
+
+  // Set while the scheduler has nothing in the wheel and is parked until an
+  // event is added.
+  private volatile boolean idle;
+
+  private volatile boolean running = true;
+
+  // This thread turns the wheel and moves events to the "todo" queues when it
+  // is time to execute them.
   private final Thread scheduler = new Thread() {
     @Override
     public void run() {
       while (running) {
 
-        Event next;
-
-        try {
-          next = backlog.take();
-        } catch (InterruptedException ex) {
-          // Rather than try to handle the exception here, set "next"
-          // to null and let the normal flow handle the case.
-          next = null;
+        if (waiting == 0 && incoming.isEmpty()) {
+          park();
+          // Nothing was waiting so there is nothing to catch up on.
+          tick = Math.max(tick, (System.currentTimeMillis() - start) / TICK_MS);
+          continue;
         }
 
-        long sleep = 0;
-
-        if (next != null) {
-
-          final long now = System.currentTimeMillis();
-
-          // Check which queue the event should be added to. If it
-          // is time to execute, it should be added to the "todo"
-          // queue. If it is not time, it should be added back to the
-          // "backlog".
-          // If the item is added back to the backlog, we know how long
-          // it will be until it will be executed. That means we can sleep
-          // until then.
-          if (next.time <= now) {
-            forceAdd(todo, next.callback);
-            sleep = 0;
-          } else {
-            // Put it back (it's not time).
-            forceAdd(backlog, next);
-            sleep = next.time - now;
-          }
-        }
+        final long deadline = start + tick * TICK_MS;
+        final long now = System.currentTimeMillis();
 
-        if (sleep > 0) {
+        if (deadline > now) {
           try {
-            Thread.sleep(sleep);
+            Thread.sleep(deadline - now);
           } catch (InterruptedException ex) {
-            // There are two cases this will happen:
-            //  1. A new item was added and we are being woken to
-            //     check if we need to update the time.
-            //  2. It is time to exit and we need to wake-up so that
-            //     we can check that "running" is "false".
+            // It is time to exit. The loop will check "running".
           }
+          continue;
         }
+
+        transfer();
+        expire(tick & WHEEL_MASK);
+        tick++;
       }
     }
   };
 
-  // This thread is used to run the code that was given to the time line. This
-  // worker does not need to know anything about the time. Once an event gets to
-  // here - it is considered "on time" and will be executed.
-  private final Thread executor = new Thread() {
-    @Override
-    public void run() {
-      while (running) {
-        try {
-          todo.take().run();
-        } catch (Exception ex) {
-          // Catch all exceptions here to stop any rogue action from
-          // take down the timeline.
-          LOG.warning(
-              "An exception was seen on the timeline (%s)",
-              ex.toString());
+  // When each worker started the event it is running (0 when it is waiting)
+  // and how many events it has started, which the watchdog uses to only log a
+  // stall once per event.
+  private final AtomicLongArray started;
+  private final AtomicLongArray runs;
+
+  private final Histogram lag = new Histogram();
+  private final Histogram runTime = new Histogram();
+  private final AtomicLong stalls = new AtomicLong();
+
+  private final long stallMs;
+
+  private final Thread[] executors;
+  private final Thread watchdog;
+
+  public Timeline() {
+    this(1);
+  }
+
+  public Timeline(int workers) {
+    this(workers, DEFAULT_STALL_MS);
+  }
+
+  // A stall threshold of zero or less turns off the watchdog.
+  public Timeline(int workers, long stallMs) {
+
+    for (final Priority priority : PRIORITIES) {
+      lanes.put(priority, new HashMap<Object, Lane>());
+      todo.put(priority, new ArrayDeque<Lane>());
+      credits[priority.ordinal()] = priority.weight;
+    }
+
+    this.stallMs = stallMs;
+
+    executors = new Thread[Math.max(1, workers)];
+    started = new AtomicLongArray(executors.length);
+    runs = new AtomicLongArray(executors.length);
+
+    for (int i = 0; i < executors.length; i++) {
+      final int index = i;
+      executors[i] = new Thread() {
+        @Override
+        public void run() {
+          work(index);
         }
-      }
+      };
     }
-  };
 
-  public Timeline() {
+    watchdog = stallMs > 0 ? new Thread() {
+      @Override
+      public void run() {
+        watch();
+      }
+    } : null;
+
     scheduler.start();
-    executor.start();
+    for (final Thread executor : executors) {
+      executor.start();
+    }
+    if (watchdog != null) {
+      watchdog.setDaemon(true);
+      watchdog.start();
+    }
+  }
+
+  // LAG
+  //
+  // How many ms after they were due events started running.
+  public Histogram lag() {
+    return lag;
+  }
+
+  // RUN TIME
+  //
+  // How many microseconds events ran for.
+  public Histogram runTime() {
+    return runTime;
+  }
+
+  // STALLS
+  //
+  // How many events have run for longer than the stall threshold.
+  public long stalls() {
+    return stalls.get();
+  }
+
+  // SCHEDULED
+  //
+  // How many events are waiting for their time to come.
+  public int scheduled() {
+    return scheduled.get();
+  }
+
+  // DUE
+  //
+  // How many events of a priority are due and waiting for a worker.
+  public int due(Priority priority) {
+    synchronized (lanes) {
+      return depths[priority.ordinal()];
+    }
+  }
+
+  @Override
+  public String toString() {
+
+    final StringBuilder queues = new StringBuilder();
+    for (final Priority priority : PRIORITIES) {
+      queues.append(String.format(" %s=%d", priority.name().toLowerCase(), due(priority)));
+    }
+
+    return String.format("scheduled=%d%s stalls=%d lag-ms={%s} run-us={%s}",
+                         scheduled(),
+                         queues,
+                         stalls(),
+                         lag,
+                         runTime);
   }
 
   // SCHEDULE NOW
   //
   // Add an event to the timeline so that it will occur as soon as possible.
+  // Events without a priority are interactive.
   public void scheduleNow(Runnable callback) {
-    scheduleAt(System.currentTimeMillis(), callback);
+    scheduleNow(Priority.INTERACTIVE, NO_KEY, callback);
+  }
+
+  public void scheduleNow(Priority priority, Runnable callback) {
+    scheduleNow(priority, NO_KEY, callback);
+  }
+
+  // Add an event to the timeline so that it will occur as soon as possible
+  // after all the events with the same priority already due for "key".
+  public void scheduleNow(Object key, Runnable callback) {
+    scheduleNow(Priority.INTERACTIVE, key, callback);
+  }
+
+  public void scheduleNow(Priority priority, Object key, Runnable callback) {
+    final Event event = new Event(System.currentTimeMillis(), priority, key, callback);
+    synchronized (lanes) {
+      dispatch(event);
+    }
   }
 
   // SCHEDULE IN
@@ -142,7 +349,19 @@ public final class Timeline {
   // Add an event to the timeline so that it will occur in approximately in a
   // set amount of milliseconds.
   public void scheduleIn(long ms, Runnable callback) {
-    scheduleAt(System.currentTimeMillis() + ms, callback);
+    scheduleIn(Priority.INTERACTIVE, NO_KEY, ms, callback);
+  }
+
+  public void scheduleIn(Priority priority, long ms, Runnable callback) {
+    scheduleIn(priority, NO_KEY, ms, callback);
+  }
+
+  public void scheduleIn(Object key, long ms, Runnable callback) {
+    scheduleIn(Priority.INTERACTIVE, key, ms, callback);
+  }
+
+  public void scheduleIn(Priority priority, Object key, long ms, Runnable callback) {
+    scheduleAt(priority, key, System.currentTimeMillis() + ms, callback);
   }
 
   // SCHEDULE AT
@@ -150,9 +369,30 @@ public final class Timeline {
   // Add an event to the timeline so that will occur approximately at a fixed
   // point in time.
   public void scheduleAt(long timeMs, Runnable callback) {
-    final Event event = new Event(timeMs, callback);
-    forceAdd(backlog, event);
-    scheduler.interrupt();  // wake it up
+    scheduleAt(Priority.INTERACTIVE, NO_KEY, timeMs, callback);
+  }
+
+  public void scheduleAt(Priority priority, long timeMs, Runnable callback) {
+    scheduleAt(priority, NO_KEY, timeMs, callback);
+  }
+
+  public void scheduleAt(Object key, long timeMs, Runnable callback) {
+    scheduleAt(Priority.INTERACTIVE, key, timeMs, callback);
+  }
+
+  public void scheduleAt(Priority priority, Object key, long timeMs, Runnable callback) {
+
+    if (timeMs <= System.currentTimeMillis()) {
+      scheduleNow(priority, key, callback);
+      return;
+    }
+
+    scheduled.incrementAndGet();
+    incoming.offer(new Event(timeMs, priority, key, callback));
+
+    if (idle) {
+      LockSupport.unpark(scheduler);
+    }
   }
 
   // STOP
@@ -164,18 +404,261 @@ public final class Timeline {
     // Interrupt does not force a thread to exit. It signals the
     // thead that it is time to stop execution. As the threads may
     // be sleeping, this will force them awake.
-    executor.interrupt();
+    for (final Thread executor : executors) {
+      executor.interrupt();
+    }
     scheduler.interrupt();
+    LockSupport.unpark(scheduler);
+    if (watchdog != null) {
+      watchdog.interrupt();
+    }
   }
 
   // JOIN
   //
   // Wait for the timeline to shutdown. This is a blocking call.
   public void join() {
-    forceJoin(executor);
+    for (final Thread executor : executors) {
+      forceJoin(executor);
+    }
     forceJoin(scheduler);
   }
 
+  // Wait for an event to be added. "idle" is set before the last look at
+  // "incoming" so that an event added after that look is sure to unpark this
+  // thread.
+  private void park() {
+    idle = true;
+    if (incoming.isEmpty() && running) {
+      LockSupport.park(this);
+    }
+    idle = false;
+  }
+
+  // Put new events in the bucket for the tick they are due on. Events due on a
+  // tick that has already gone by go in the current bucket.
+  private void transfer() {
+    for (Event event = incoming.poll(); event != null; event = incoming.poll()) {
+
+      final long due = Math.max(tick, (event.time - start + TICK_MS - 1) / TICK_MS);
+      final int bucket = (int) (due & WHEEL_MASK);
+
+      event.rounds = (due - tick) / WHEEL_SIZE;
+      event.next = null;
+
+      if (tails[bucket] == null) {
+        heads[bucket] = event;
+      } else {
+        tails[bucket].next = event;
+      }
+      tails[bucket] = event;
+
+      waiting++;
+    }
+  }
+
+  // Move every event in the bucket that is due this turn to "todo", in time
+  // order, and count down the rest.
+  private void expire(long index) {
+
+    final int bucket = (int) index;
+    final List<Event> due = new ArrayList<>();
+
+    Event kept = null;
+    Event keptTail = null;
+
+    for (Event event = heads[bucket]; event != null; ) {
+
+      final Event next = event.next;
+      event.next = null;
+
+      if (event.rounds <= 0) {
+        due.add(event);
+        waiting--;
+      } else {
+        event.rounds--;
+        if (keptTail == null) {
+          kept = event;
+        } else {
+          keptTail.next = event;
+        }
+        keptTail = event;
+      }
+
+      event = next;
+    }
+
+    heads[bucket] = kept;
+    tails[bucket] = keptTail;
+
+    Collections.sort(due, BY_TIME);
+    synchronized (lanes) {
+      for (final Event event : due) {
+        dispatch(event);
+      }
+    }
+    scheduled.addAndGet(-due.size());
+  }
+
+  // Add a due event to the lane for its priority and key. A lane that was not
+  // already waiting or running is handed to the workers. Must be called while
+  // holding "lanes".
+  private void dispatch(Event event) {
+
+    final Priority lanePriority = event.priority == null ? Priority.INTERACTIVE : event.priority;
+    final Object laneKey = event.key == null ? NO_KEY : event.key;
+
+    final Map<Object, Lane> keys = lanes.get(lanePriority);
+
+    Lane lane = keys.get(laneKey);
+    if (lane == null) {
+      lane = new Lane(lanePriority, laneKey);
+      keys.put(laneKey, lane);
+      todo.get(lanePriority).add(lane);
+      lanes.notify();
+    }
+
+    lane.events.add(event);
+    depths[lanePriority.ordinal()]++;
+  }
+
+  // WORK
+  //
+  // Run due events until the timeline stops. Once an event gets to here - it
+  // is considered "on time" and will be executed.
+  private void work(int index) {
+    while (running) {
+
+      final Lane lane;
+      final Event event;
+
+      synchronized (lanes) {
+        Lane next = next();
+        while (next == null && running) {
+          try {
+            lanes.wait();
+          } catch (InterruptedException ex) {
+            // It is time to exit. The loop will check "running".
+          }
+          next = next();
+        }
+
+        if (next == null) {
+          continue;
+        }
+
+        lane = next;
+        event = lane.events.poll();
+        depths[lane.priority.ordinal()]--;
+      }
+
+      final long now = System.currentTimeMillis();
+      lag.add(now - event.time);
+
+      runs.incrementAndGet(index);
+      started.set(index, now);
+      final long begin = System.nanoTime();
+
+      try {
+        event.callback.run();
+      } catch (Exception ex) {
+        // Catch all exceptions here to stop any rogue action from
+        // take down the timeline.
+        LOG.warning(
+            "An exception was seen on the timeline (%s)",
+            ex.toString());
+      }
+
+      runTime.add((System.nanoTime() - begin) / 1000);
+      started.set(index, 0);
+
+      synchronized (lanes) {
+        if (lane.events.isEmpty()) {
+          lanes.get(lane.priority).remove(lane.key);
+        } else {
+          todo.get(lane.priority).add(lane);
+          lanes.notify();
+        }
+      }
+    }
+  }
+
+  // WATCH
+  //
+  // Check the workers a few times per stall threshold and log the stack of any
+  // that has been running one event for too long. Each stalled event is only
+  // logged once.
+  private void watch() {
+
+    final long[] reported = new long[executors.length];
+
+    while (running) {
+
+      try {
+        Thread.sleep(Math.max(1, stallMs / 4));
+      } catch (InterruptedException ex) {
+        // It is time to exit. The loop will check "running".
+        continue;
+      }
+
+      final long now = System.currentTimeMillis();
+
+      for (int i = 0; i < executors.length; i++) {
+
+        final long run = runs.get(i);
+        final long since = started.get(i);
+
+        if (since == 0 || now - since < stallMs || reported[i] == run) {
+          continue;
+        }
+
+        final StackTraceElement[] stack = executors[i].getStackTrace();
+
+        // The event may have finished while the stack was being taken, in
+        // which case the stack is of something else.
+        if (runs.get(i) != run || started.get(i) != since) {
+          continue;
+        }
+
+        reported[i] = run;
+        stalls.incrementAndGet();
+
+        final StringBuilder trace = new StringBuilder();
+        for (final StackTraceElement frame : stack) {
+          trace.append("\n    at ").append(frame);
+        }
+
+        LOG.warning("Timeline worker %d has been running one event for %d ms%s",
+                    i,
+                    now - since,
+                    trace);
+      }
+    }
+  }
+
+  // Pick the lane a worker should run next, or null when nothing is due. The
+  // first priority that has lanes waiting and credit left goes next. When
+  // every priority that has lanes waiting is out of credit, all the credit is
+  // given back. Must be called while holding "lanes".
+  private Lane next() {
+    for (int pass = 0; pass < 2; pass++) {
+
+      for (final Priority priority : PRIORITIES) {
+        final Queue<Lane> ready = todo.get(priority);
+        if (!ready.isEmpty() && credits[priority.ordinal()] > 0) {
+          credits[priority.ordinal()]--;
+          return ready.poll();
+        }
+      }
+
+      for (final Priority priority : PRIORITIES) {
+        credits[priority.ordinal()] = priority.weight;
+      }
+    }
+
+    return null;
+  }
+
   private static void forceJoin(Thread thread) {
     while (true) {
       try {
@@ -186,10 +669,4 @@ public final class Timeline {
       }
     }
   }
-
-  private static <T> void forceAdd(BlockingQueue<T> queue, T value) {
-    while (!queue.offer(value)) {
-      LOG.warning("Failed to add to queue, trying again...");
-    }
-  }
 }
@@ -0,0 +1,360 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Random;
+
+// TRACER
+//
+// Follows a request through the stages of handling it and writes where the
+// time went. A trace is begun when a request arrives and becomes the current
+// trace of the thread that handles it, so code further down (the controller,
+// the transaction log, the relay outbox) adds to it without it being passed
+// around. Code marks the stage it is in with "enter" and "exit"; when there is
+// no current trace these do nothing.
+//
+// Every request is timed but only some are written: a random share given by
+// the sample rate, and every request slower than the slow threshold. Each
+// written trace is one line:
+//
+//   <id> <start ms> <name> <total us> <stage>=<us>... <stage>@<offset us>+<us>...
+//
+// with the total time in each stage followed by the spans in the order they
+// happened.
+public final class Tracer {
+
+  public enum Stage {
+    QUEUE,
+    READ,
+    MODEL,
+    SERIALIZE,
+    LOG,
+    RELAY;
+
+    private final String label = name().toLowerCase();
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  // Only this many spans are kept per trace. Time spent after that still
+  // counts towards its stage.
+  private static final int MAX_SPANS = 64;
+
+  private static final int MAX_DEPTH = 8;
+
+  // TRACE
+  //
+  // One request. A trace is only touched by the thread it is current on.
+  public static final class Trace {
+
+    private final long id;
+    private String name;
+    private final long startMs;
+    private final long startNs;
+    private final boolean sampled;
+
+    private final long[] totals = new long[STAGES.length];
+
+    private final Stage[] stack = new Stage[MAX_DEPTH];
+    private int depth;
+    private int overflow;
+    private long since;
+
+    private final Stage[] spanStages = new Stage[MAX_SPANS];
+    private final long[] spanStarts = new long[MAX_SPANS];
+    private final long[] spanLengths = new long[MAX_SPANS];
+    private int spans;
+
+    private Trace(long id, String name, boolean sampled) {
+      this.id = id;
+      this.name = name;
+      this.startMs = System.currentTimeMillis();
+      this.startNs = System.nanoTime();
+      this.sampled = sampled;
+      this.stack[0] = Stage.QUEUE;
+      this.since = startNs;
+    }
+
+    public long id() { return id; }
+
+    // The id as it is written in the trace file.
+    public String label() { return Long.toHexString(id); }
+
+    // Name the request once it is known what it is.
+    public void name(String name) { this.name = name; }
+
+    private void enter(Stage stage, long now) {
+      close(now);
+      if (depth + 1 < MAX_DEPTH) {
+        stack[++depth] = stage;
+      } else {
+        // Too deep to keep track of - stay in the current stage.
+        overflow++;
+      }
+    }
+
+    private void exit(long now) {
+      close(now);
+      if (overflow > 0) {
+        overflow--;
+      } else if (depth > 0) {
+        depth--;
+      }
+    }
+
+    // Move from one stage to another at the same depth (e.g. from waiting in
+    // the queue to handling the request).
+    private void replace(Stage stage, long now) {
+      close(now);
+      stack[depth] = stage;
+    }
+
+    // Give the time since the last change to the current stage.
+    private void close(long now) {
+
+      final Stage stage = stack[depth];
+      final long length = now - since;
+      since = now;
+
+      if (length <= 0) {
+        return;
+      }
+
+      totals[stage.ordinal()] += length;
+
+      // Back to back time in one stage is one span.
+      if (spans > 0 &&
+          spanStages[spans - 1] == stage &&
+          spanStarts[spans - 1] + spanLengths[spans - 1] == now - length) {
+        spanLengths[spans - 1] += length;
+      } else if (spans < MAX_SPANS) {
+        spanStages[spans] = stage;
+        spanStarts[spans] = now - length;
+        spanLengths[spans] = length;
+        spans++;
+      }
+    }
+
+    private String format(long totalNs) {
+
+      final StringBuilder line = new StringBuilder();
+
+      line.append(label())
+          .append(' ').append(startMs)
+          .append(' ').append(name)
+          .append(' ').append(totalNs / 1000);
+
+      for (final Stage stage : STAGES) {
+        if (totals[stage.ordinal()] > 0) {
+          line.append(' ').append(stage.label)
+              .append('=').append(totals[stage.ordinal()] / 1000);
+        }
+      }
+
+      for (int i = 0; i < spans; i++) {
+        line.append(' ').append(spanStages[i].label)
+            .append('@').append((spanStarts[i] - startNs) / 1000)
+            .append('+').append(spanLengths[i] / 1000);
+      }
+
+      return line.toString();
+    }
+  }
+
+  private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+  private final Writer out;
+  private final double sampleRate;
+  private final long slowNs;
+  private final Random random = new Random();
+
+  private long written;
+
+  // Sample "sampleRate" (0 to 1) of requests and every request that takes at
+  // least "slowMs".
+  public Tracer(Writer out, double sampleRate, long slowMs) {
+    this.out = out;
+    this.sampleRate = sampleRate;
+    this.slowNs = slowMs * 1000000;
+  }
+
+  // BEGIN
+  //
+  // Start a trace for a request that has just arrived. It is in the QUEUE stage
+  // until "resume" is called on the thread that handles it.
+  public Trace begin(String name) {
+    final long id;
+    final boolean sampled;
+    synchronized (random) {
+      id = random.nextLong();
+      sampled = random.nextDouble() < sampleRate;
+    }
+    return new Trace(id, name, sampled);
+  }
+
+  // RESUME
+  //
+  // Make a trace the current trace of this thread and move it out of the QUEUE
+  // stage.
+  public static void resume(Trace trace, Stage stage) {
+    trace.replace(stage, System.nanoTime());
+    current.set(trace);
+  }
+
+  // SUSPEND
+  //
+  // Put a trace back in the QUEUE stage and take it off this thread while its
+  // request waits to be handed to another thread, which calls "resume".
+  public static void suspend(Trace trace) {
+    trace.replace(Stage.QUEUE, System.nanoTime());
+    if (current.get() == trace) {
+      current.remove();
+    }
+  }
+
+  // END
+  //
+  // Finish the current trace on this thread and write it if it was sampled or
+  // slow.
+  public void end(Trace trace) {
+
+    final long now = System.nanoTime();
+    trace.close(now);
+
+    if (current.get() == trace) {
+      current.remove();
+    }
+
+    final long total = now - trace.startNs;
+
+    if (trace.sampled || total >= slowNs) {
+      final String line = trace.format(total);
+      synchronized (out) {
+        try {
+          out.write(line);
+          out.write('\n');
+          written++;
+        } catch (IOException ex) {
+          // Tracing must never fail a request.
+        }
+      }
+    }
+  }
+
+  // FLUSH
+  //
+  // Write out anything still buffered. Returns how many traces have been
+  // written in all.
+  public long flush() throws IOException {
+    synchronized (out) {
+      out.flush();
+      return written;
+    }
+  }
+
+  // CURRENT
+  //
+  // The current trace of this thread, or null if there is none. Work handed to
+  // another thread can keep it to log which request the work came from.
+  public static Trace current() {
+    return current.get();
+  }
+
+  // ENTER
+  //
+  // Mark that the current thread has moved into a stage.
+  public static void enter(Stage stage) {
+    final Trace trace = current.get();
+    if (trace != null) {
+      trace.enter(stage, System.nanoTime());
+    }
+  }
+
+  // EXIT
+  //
+  // Mark that the current thread has gone back to the stage it was in before
+  // the last "enter".
+  public static void exit() {
+    final Trace trace = current.get();
+    if (trace != null) {
+      trace.exit(System.nanoTime());
+    }
+  }
+
+  // TIME READS
+  //
+  // Count the time spent waiting on the stream towards the READ stage.
+  public static InputStream timeReads(InputStream in) {
+    return new FilterInputStream(in) {
+
+      @Override
+      public int read() throws IOException {
+        enter(Stage.READ);
+        try {
+          return super.read();
+        } finally {
+          exit();
+        }
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        enter(Stage.READ);
+        try {
+          return super.read(buffer, offset, length);
+        } finally {
+          exit();
+        }
+      }
+    };
+  }
+
+  // TIME WRITES
+  //
+  // Count everything from the first write to the stream towards the SERIALIZE
+  // stage. Writing the response is the last thing a request does, so time
+  // between writes (turning values into bytes) is counted as well.
+  public static OutputStream timeWrites(OutputStream out) {
+    return new FilterOutputStream(out) {
+
+      private boolean started;
+
+      @Override
+      public void write(int b) throws IOException {
+        start();
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int length) throws IOException {
+        start();
+        out.write(buffer, offset, length);
+      }
+
+      private void start() {
+        if (!started) {
+          started = true;
+          enter(Stage.SERIALIZE);
+        }
+      }
+    };
+  }
+}
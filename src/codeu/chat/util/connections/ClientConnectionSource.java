@@ -28,15 +28,25 @@ public final class ClientConnectionSource implements ConnectionSource {
 
   private final String host;
   private final int port;
+  private final int readTimeoutMs;
 
   public ClientConnectionSource(String host, int port) {
+    this(host, port, 0);
+  }
+
+  // Reads on connections from this source fail with a SocketTimeoutException
+  // after waiting "readTimeoutMs" for data. Zero waits forever.
+  public ClientConnectionSource(String host, int port, int readTimeoutMs) {
     this.host = host;
     this.port = port;
+    this.readTimeoutMs = readTimeoutMs;
   }
 
   @Override
   public Connection connect() throws IOException {
-    return fromSocket(new Socket(host, port));
+    final Socket socket = new Socket(host, port);
+    socket.setSoTimeout(readTimeoutMs);
+    return fromSocket(socket);
   }
 
   @Override
@@ -32,7 +32,7 @@ final class LinkIterator<KEY, VALUE> implements Iterator<VALUE> {
 
   @Override
   public boolean hasNext() {
-    return current != null && comparator.compare(current.key, last.key) <= 0;
+    return current != null && last != null && comparator.compare(current.key, last.key) <= 0;
   }
 
   @Override
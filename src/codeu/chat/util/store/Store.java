@@ -67,6 +67,49 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     }
   }
 
+  // REMOVE
+  //
+  // Remove a single value that was inserted with the given key. Values are
+  // matched by reference so that other values with an equal key are kept.
+  // Returns false if the value was not found.
+  public boolean remove(KEY key, VALUE value) {
+
+    final Map.Entry<KEY, StoreLink<KEY, VALUE>> lower = index.lowerEntry(key);
+
+    // The link before the first link with an equal key is either in the run of
+    // the next smallest key or is the root.
+    StoreLink<KEY, VALUE> previous = (lower == null) ? (rootLink) : (lower.getValue());
+    while (previous.next != null && comparator.compare(previous.next.key, key) < 0) {
+      previous = previous.next;
+    }
+
+    while (previous.next != null &&
+           comparator.compare(previous.next.key, key) == 0 &&
+           previous.next.value != value) {
+      previous = previous.next;
+    }
+
+    final StoreLink<KEY, VALUE> target = previous.next;
+
+    if (target == null || comparator.compare(target.key, key) != 0) {
+      return false;
+    }
+
+    previous.next = target.next;
+
+    // If the index pointed to the removed link, point it at the next link with
+    // an equal key or drop the key if there are no more.
+    if (index.get(key) == target) {
+      if (target.next != null && comparator.compare(target.next.key, key) == 0) {
+        index.put(key, target.next);
+      } else {
+        index.remove(key);
+      }
+    }
+
+    return true;
+  }
+
   @Override
   public VALUE first(KEY key) {
     final StoreLink<KEY, VALUE> link = index.get(key);
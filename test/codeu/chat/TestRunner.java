@@ -22,11 +22,28 @@ public final class TestRunner {
   public static void main(String[] args) {
      final Result result =
          JUnitCore.runClasses(
+             codeu.chat.common.RelayDictionaryTest.class,
              codeu.chat.common.SecretTest.class,
+             codeu.chat.relay.BundleJournalTest.class,
              codeu.chat.relay.ServerTest.class,
              codeu.chat.server.BasicControllerTest.class,
+             codeu.chat.server.ConversationTieringTest.class,
+             codeu.chat.server.FederatedRelayTest.class,
+             codeu.chat.server.LogReplayTest.class,
+             codeu.chat.server.LsmMessageStoreTest.class,
+             codeu.chat.server.MappedMessageStoreTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.RelayIngestTest.class,
+             codeu.chat.server.RelayOutboxTest.class,
+             codeu.chat.server.RelayPollPolicyTest.class,
+             codeu.chat.server.RelaySubscriberTest.class,
+             codeu.chat.server.RemoteRelayTest.class,
+             codeu.chat.server.ShardedRelayTest.class,
+             codeu.chat.util.HistogramTest.class,
+             codeu.chat.util.LoggerTest.class,
+             codeu.chat.util.TimelineTest.class,
              codeu.chat.util.TimeTest.class,
+             codeu.chat.util.TracerTest.class,
              codeu.chat.util.UuidTest.class,
              codeu.chat.util.store.StoreTest.class,
              codeu.chat.util.TokenizerTest.class
@@ -0,0 +1,120 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayDictionaryTest {
+
+  private static final Serializer<Relay.Bundle.Component> COMPONENTS =
+      new Serializer<Relay.Bundle.Component>() {
+
+    @Override
+    public Relay.Bundle.Component read(InputStream in) throws IOException {
+      return component(Uuid.SERIALIZER.read(in),
+                       Serializers.STRING.read(in),
+                       Time.SERIALIZER.read(in));
+    }
+
+    @Override
+    public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
+      Uuid.SERIALIZER.write(out, value.id());
+      Serializers.STRING.write(out, value.text());
+      Time.SERIALIZER.write(out, value.time());
+    }
+  };
+
+  @Test
+  public void testRepeatsAreSentOnce() throws IOException {
+
+    final Relay.Bundle.Component user = component(new Uuid(4), "A User Name", Time.fromMs(1));
+
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    final RelayDictionary writer = new RelayDictionary(COMPONENTS, 8);
+
+    for (int i = 0; i < 10; i++) {
+      COMPONENTS.write(plain, user);
+      writer.write(encoded, user);
+    }
+
+    assertTrue(encoded.size() < plain.size() / 2);
+
+    final RelayDictionary reader = new RelayDictionary(COMPONENTS, 8);
+    final InputStream in = new ByteArrayInputStream(encoded.toByteArray());
+
+    for (int i = 0; i < 10; i++) {
+      final Relay.Bundle.Component read = reader.read(in);
+      assertTrue(Uuid.equals(user.id(), read.id()));
+      assertEquals(user.text(), read.text());
+    }
+  }
+
+  @Test
+  public void testChangedAndOverflow() throws IOException {
+
+    final Relay.Bundle.Component[] sent = {
+      component(new Uuid(4), "Before", Time.fromMs(1)),
+      component(new Uuid(5), "Other", Time.fromMs(1)),
+      component(new Uuid(4), "After", Time.fromMs(2)),
+      component(new Uuid(6), "No Room", Time.fromMs(1)),
+      component(new Uuid(4), "After", Time.fromMs(2)),
+      component(new Uuid(6), "No Room", Time.fromMs(1)),
+    };
+
+    // Room for three entries. The rename takes the third so the last new
+    // component has to be sent in full every time.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final RelayDictionary writer = new RelayDictionary(COMPONENTS, 3);
+    for (final Relay.Bundle.Component component : sent) {
+      writer.write(out, component);
+    }
+
+    final RelayDictionary reader = new RelayDictionary(COMPONENTS, 3);
+    final InputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (final Relay.Bundle.Component component : sent) {
+      final Relay.Bundle.Component read = reader.read(in);
+      assertTrue(Uuid.equals(component.id(), read.id()));
+      assertEquals(component.text(), read.text());
+    }
+
+    assertEquals(-1, in.read());
+  }
+
+  private static Relay.Bundle.Component component(final Uuid id,
+                                                  final String text,
+                                                  final Time time) {
+    return new Relay.Bundle.Component() {
+      @Override
+      public Uuid id() { return id; }
+      @Override
+      public String text() { return text; }
+      @Override
+      public Time time() { return time; }
+    };
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class BundleJournalTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private File directory;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = File.createTempFile("journal", "");
+    directory.delete();
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReadOlderThanMemory() throws IOException {
+
+    try (final BundleJournal journal = new BundleJournal(directory, 256, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      final Server relay = new Server(2, 16, journal);
+      write(relay, 10);
+
+      // Only two bundles are in memory, the rest must come from the journal.
+      assertMessages(relay.read(TEAM, SECRET, Uuid.NULL, 16), 100, 10);
+      assertMessages(relay.read(TEAM, SECRET, new Uuid(4), 16), 103, 7);
+    }
+  }
+
+  @Test
+  public void testRecoverAfterRestart() throws IOException {
+
+    try (final BundleJournal journal = new BundleJournal(directory, 256, Long.MAX_VALUE, Long.MAX_VALUE)) {
+      write(new Server(2, 16, journal), 5);
+    }
+
+    try (final BundleJournal journal = new BundleJournal(directory, 256, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      assertEquals(5, journal.next());
+
+      final Server relay = new Server(2, 16, journal);
+      write(relay, 1);
+
+      final Collection<Relay.Bundle> read = relay.read(TEAM, SECRET, new Uuid(6), 16);
+      assertEquals(1, read.size());
+
+      // The sequence carries on so the new bundle gets the next id.
+      assertTrue(Uuid.equals(read.iterator().next().id(), new Uuid(7)));
+    }
+  }
+
+  @Test
+  public void testRetainBySize() throws IOException {
+
+    try (final BundleJournal journal = new BundleJournal(directory, 256, 512, Long.MAX_VALUE)) {
+
+      write(new Server(2, 16, journal), 50);
+
+      assertTrue(journal.first() > 0);
+      assertNull(journal.read(0));
+      assertNotNull(journal.read(49));
+    }
+  }
+
+  @Test
+  public void testGapAfterFailedAppend() throws IOException {
+
+    try (final BundleJournal journal = new BundleJournal(directory, 4096, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      write(new Server(2, 16, journal), 3);
+
+      // Sequences 3 and 4 failed to be written. Later appends still go in.
+      journal.append(5, journal.read(0));
+
+      assertNotNull(journal.read(2));
+      assertNull(journal.read(3));
+      assertNull(journal.read(4));
+      assertNotNull(journal.read(5));
+      assertEquals(6, journal.next());
+    }
+
+    try (final BundleJournal journal = new BundleJournal(directory, 4096, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      // Both sides of the gap are kept.
+      assertEquals(0, journal.first());
+      assertEquals(6, journal.next());
+      assertNotNull(journal.read(0));
+      assertNull(journal.read(4));
+      assertNotNull(journal.read(5));
+    }
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+
+    try (final BundleJournal journal = new BundleJournal(directory, 4096, Long.MAX_VALUE, Long.MAX_VALUE, true)) {
+
+      final Server relay = new Server(4, 1024, journal);
+      relay.addTeam(TEAM, SECRET);
+
+      final Thread[] writers = new Thread[4];
+
+      for (int i = 0; i < writers.length; i++) {
+        writers[i] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = 0; j < 50; j++) {
+              relay.write(TEAM,
+                          SECRET,
+                          relay.pack(new Uuid(4), "User", Time.now()),
+                          relay.pack(new Uuid(5), "Conversation", Time.now()),
+                          relay.pack(new Uuid(6), "Hello World", Time.now()));
+            }
+          }
+        });
+        writers[i].start();
+      }
+
+      for (final Thread writer : writers) {
+        writer.join();
+      }
+
+      // Every bundle was journaled, in order, before its write returned.
+      assertEquals(200, journal.next());
+
+      final Collection<Relay.Bundle> read = relay.read(TEAM, SECRET, Uuid.NULL, 1024);
+      assertEquals(200, read.size());
+
+      int expected = 2;
+      for (final Relay.Bundle bundle : read) {
+        assertTrue(Uuid.equals(bundle.id(), new Uuid(expected++)));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteFailsWhenJournalFails() throws IOException {
+
+    final BundleJournal journal = new BundleJournal(directory, 4096, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    final Server relay = new Server(8, 16, journal);
+    write(relay, 1);
+
+    // Without its directory the journal can not start a new segment.
+    journal.close();
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+
+    try {
+      assertFalse(relay.write(TEAM,
+                              SECRET,
+                              relay.pack(new Uuid(4), "User", Time.now()),
+                              relay.pack(new Uuid(5), "Conversation", Time.now()),
+                              relay.pack(new Uuid(101), "Hello World", Time.now())));
+
+      // The failed bundle is not readable even though it was in memory.
+      assertMessages(relay.read(TEAM, SECRET, Uuid.NULL, 16), 100, 1);
+    } finally {
+      directory.mkdirs();
+    }
+  }
+
+  private static void write(Server relay, int count) {
+
+    relay.addTeam(TEAM, SECRET);
+
+    for (int i = 0; i < count; i++) {
+      assertTrue(relay.write(TEAM,
+                             SECRET,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(100 + i), "Hello World", Time.now())));
+    }
+  }
+
+  private static void assertMessages(Collection<Relay.Bundle> read, int first, int count) {
+
+    assertEquals(count, read.size());
+
+    int expected = first;
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(expected++)));
+    }
+  }
+}
@@ -14,13 +14,19 @@
 
 package codeu.chat.relay;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.junit.Before;
 
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
@@ -118,6 +124,49 @@ public final class ServerTest {
     }
   }
 
+  @Test(timeout = 5000)
+  public void testFailedWriteDoesNotBlockLaterWrites() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    // A component the relay did not pack and can not encode.
+    final Relay.Bundle.Component broken = new Relay.Bundle.Component() {
+      @Override
+      public Uuid id() { return new Uuid(6); }
+
+      @Override
+      public String text() { throw new IllegalStateException("broken"); }
+
+      @Override
+      public Time time() { return Time.now(); }
+    };
+
+    try {
+      relay.write(team,
+                  secret,
+                  relay.pack(new Uuid(4), "User", Time.now()),
+                  relay.pack(new Uuid(5), "Conversation", Time.now()),
+                  broken);
+    } catch (IllegalStateException ex) {
+      // Expected. What matters is that the next write still goes through.
+    }
+
+    assertTrue(relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(7), "Hello World", Time.now())));
+
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 8);
+    assertEquals(1, read.size());
+    assertTrue(Uuid.equals(read.iterator().next().message().id(), new Uuid(7)));
+  }
+
   @Test
   public void testReadFailWrongSecret() {
 
@@ -287,4 +336,224 @@ public final class ServerTest {
       assertTrue(Uuid.equals(bundle.id(), new Uuid(3)));
     }
   }
+
+  @Test
+  public void testReadAfterHistoryWraps() {
+
+    final Server relay = new Server(4, 2);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(100 + i), "Hello World", Time.now())));
+    }
+
+    // Only the last four bundles (messages 106 to 109) are still in the history.
+    final Collection<Relay.Bundle> first = relay.read(team, secret, Uuid.NULL, 8);
+    assertTrue(first.size() == 2);
+
+    Uuid last = Uuid.NULL;
+    int expected = 106;
+    for (final Relay.Bundle bundle : first) {
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(expected++)));
+      last = bundle.id();
+    }
+
+    final Collection<Relay.Bundle> second = relay.read(team, secret, last, 8);
+    assertTrue(second.size() == 2);
+
+    for (final Relay.Bundle bundle : second) {
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(expected++)));
+      last = bundle.id();
+    }
+
+    assertTrue(relay.read(team, secret, last, 8).isEmpty());
+  }
+
+  @Test
+  public void testConcurrentWrites() throws InterruptedException {
+
+    final Server relay = new Server(1024, 1024);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Thread[] writers = new Thread[4];
+
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100; j++) {
+            relay.write(team,
+                        secret,
+                        relay.pack(new Uuid(4), "User", Time.now()),
+                        relay.pack(new Uuid(5), "Conversation", Time.now()),
+                        relay.pack(new Uuid(6), "Hello World", Time.now()));
+          }
+        }
+      });
+      writers[i].start();
+    }
+
+    for (final Thread writer : writers) {
+      writer.join();
+    }
+
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 1024);
+    assertTrue(read.size() == 400);
+
+    // Every bundle should be there once and in id order.
+    int expected = 2;
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.id(), new Uuid(expected++)));
+    }
+  }
+
+  @Test
+  public void testBatchWrite() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Collection<Relay.Bundle> batch = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      batch.add(relay.pack(relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(10 + i), "Hello World", Time.now())));
+    }
+
+    assertEquals(0, relay.write(new Uuid(33), secret, batch));
+    assertEquals(3, relay.write(team, secret, batch));
+
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 8);
+    assertTrue(read.size() == 3);
+
+    int expected = 10;
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.team(), team));
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(expected++)));
+    }
+  }
+
+  @Test
+  public void testReadFiltered() {
+
+    final Server relay = new Server(16, 16);
+
+    final Uuid teamA = new Uuid(3);
+    final Uuid teamB = new Uuid(30);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(teamA, secret));
+    assertTrue(relay.addTeam(teamB, secret));
+
+    // Team A writes to conversation 5 and team B writes to conversations 5 and 8.
+    assertTrue(relay.write(teamA,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(10), "Hello World", Time.now())));
+    assertTrue(relay.write(teamB,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(11), "Hello World", Time.now())));
+    assertTrue(relay.write(teamB,
+                           secret,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(8), "Other", Time.now()),
+                           relay.pack(new Uuid(12), "Hello World", Time.now())));
+
+    final Collection<Uuid> none = new ArrayList<>();
+    final Collection<Uuid> conversation = new ArrayList<>();
+    conversation.add(new Uuid(5));
+    final Collection<Uuid> team = new ArrayList<>();
+    team.add(teamA);
+
+    final Collection<Relay.Bundle> others =
+        relay.read(teamA, secret, Uuid.NULL, 8, new RelayFilter(true, none, none));
+    assertEquals(2, others.size());
+    for (final Relay.Bundle bundle : others) {
+      assertTrue(Uuid.equals(bundle.team(), teamB));
+    }
+
+    final Collection<Relay.Bundle> inConversation =
+        relay.read(teamB, secret, Uuid.NULL, 8, new RelayFilter(false, none, conversation));
+    assertEquals(2, inConversation.size());
+    for (final Relay.Bundle bundle : inConversation) {
+      assertTrue(Uuid.equals(bundle.conversation().id(), new Uuid(5)));
+    }
+
+    final Collection<Relay.Bundle> fromTeam =
+        relay.read(teamB, secret, Uuid.NULL, 8, new RelayFilter(false, team, none));
+    assertEquals(1, fromTeam.size());
+    for (final Relay.Bundle bundle : fromTeam) {
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(10)));
+    }
+
+    // The range counts bundles returned, not bundles scanned.
+    final Collection<Relay.Bundle> limited =
+        relay.read(teamA, secret, Uuid.NULL, 1, new RelayFilter(true, none, none));
+    assertEquals(1, limited.size());
+    for (final Relay.Bundle bundle : limited) {
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(11)));
+    }
+  }
+
+  @Test
+  public void testBundlesAreEncodedOnce() throws IOException {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Time joined = Time.now();
+
+    for (int i = 0; i < 2; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", joined),
+                             relay.pack(new Uuid(5), "Conversation", joined),
+                             relay.pack(new Uuid(10 + i), "Hello World", Time.now())));
+    }
+
+    final List<Relay.Bundle> read = new ArrayList<>(relay.read(team, secret, Uuid.NULL, 8));
+    assertEquals(2, read.size());
+
+    // Both bundles share one encoded copy of the same user.
+    assertSame(((ServerFrontEnd.Encoded) read.get(0).user()).encoded(),
+               ((ServerFrontEnd.Encoded) read.get(1).user()).encoded());
+
+    // Copying the encoded bytes must give the same wire format as serializing
+    // the fields.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ServerFrontEnd.BUNDLE_SERIALIZER.write(out, read.get(1));
+
+    final Relay.Bundle copy =
+        ServerFrontEnd.BUNDLE_SERIALIZER.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertTrue(Uuid.equals(read.get(1).id(), copy.id()));
+    assertTrue(Uuid.equals(team, copy.team()));
+    assertEquals("User", copy.user().text());
+    assertEquals("Conversation", copy.conversation().text());
+    assertTrue(Uuid.equals(new Uuid(11), copy.message().id()));
+    assertEquals("Hello World", copy.message().text());
+  }
 }
@@ -0,0 +1,183 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// Run against the heap, mapped and LSM stores as they put restored messages
+// back in their chains differently.
+@RunWith(Parameterized.class)
+public final class ConversationTieringTest {
+
+  @Parameterized.Parameters
+  public static Collection<Object[]> stores() {
+    return Arrays.asList(new Object[][] { { "heap" }, { "mapped" }, { "lsm" } });
+  }
+
+  private final String store;
+
+  private File directory;
+  private File storeDirectory;
+  private LsmMessageStore lsm;
+  private Model model;
+  private Controller controller;
+  private ConversationTiering tiering;
+
+  public ConversationTieringTest(String store) {
+    this.store = store;
+  }
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = File.createTempFile("tiering", "");
+    directory.delete();
+
+    storeDirectory = File.createTempFile("tiering-store", "");
+    storeDirectory.delete();
+
+    if ("mapped".equals(store)) {
+      model = new Model(new MappedMessageStore(storeDirectory, 1024));
+    } else if ("lsm".equals(store)) {
+      // A tiny memtable so that archived messages were already flushed.
+      lsm = new LsmMessageStore(storeDirectory, 4);
+      model = new Model(lsm);
+    } else {
+      model = new Model();
+    }
+    controller = new Controller(Uuid.NULL, model);
+    tiering = new ConversationTiering(model);
+
+    controller.newUser(new Uuid(1), "user", Time.fromMs(100));
+    controller.newConversation(new Uuid(2), "first", new Uuid(1), Time.fromMs(200));
+    controller.newConversation(new Uuid(3), "second", new Uuid(1), Time.fromMs(200));
+
+    for (int i = 0; i < 10; i++) {
+      controller.newMessage(new Uuid(10 + i), new Uuid(1), new Uuid(2), "first " + i, Time.fromMs(300 + i));
+      controller.newMessage(new Uuid(20 + i), new Uuid(1), new Uuid(3), "second " + i, Time.fromMs(400 + i));
+    }
+
+    // Leave room for one conversation.
+    tiering.enable(directory, 4000, Long.MAX_VALUE);
+    tiering.admitAll();
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    if (lsm != null) {
+      lsm.close();
+    }
+    delete(directory);
+    delete(storeDirectory);
+  }
+
+  @Test
+  public void testArchiveLeastRecentlyUsed() {
+
+    tiering.touch(new Uuid(2));
+
+    assertEquals(1, tiering.archived());
+    assertNotNull(model.messageById().first(new Uuid(10)));
+    assertNull(model.messageById().first(new Uuid(20)));
+    assertNull(model.messageByTime().first(Time.fromMs(400)));
+
+    tiering.touch(new Uuid(3));
+
+    assertEquals(1, tiering.archived());
+    assertNull(model.messageById().first(new Uuid(10)));
+    assertChain(new Uuid(3), "second ", 10);
+  }
+
+  @Test
+  public void testLocateArchivedMessage() {
+
+    tiering.touch(new Uuid(2));
+
+    assertTrue(tiering.locate(new Uuid(25)));
+    assertEquals("second 5", model.messageById().first(new Uuid(25)).content);
+    assertFalse(tiering.locate(new Uuid(99)));
+  }
+
+  @Test
+  public void testRestoreKeepsChain() {
+
+    tiering.touch(new Uuid(2));
+    tiering.touch(new Uuid(3));
+
+    // The first conversation went to the archive and came back.
+    tiering.touch(new Uuid(2));
+
+    assertChain(new Uuid(2), "first ", 10);
+  }
+
+  @Test
+  public void testAdmittedAreNotIdle() throws IOException {
+
+    final File other = new File(directory.getPath() + "-idle");
+    final ConversationTiering idle = new ConversationTiering(model);
+
+    try {
+      idle.enable(other, Long.MAX_VALUE, 60000);
+      idle.admitAll();
+
+      // Nothing has been used yet but nothing has been idle for a minute
+      // either.
+      idle.archiveIdle();
+
+      assertEquals(0, idle.archived());
+    } finally {
+      delete(other);
+    }
+  }
+
+  private static void delete(File directory) {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private void assertChain(Uuid conversation, String prefix, int expected) {
+
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation);
+
+    int count = 0;
+    for (Message current = model.messageById().first(payload.firstMessage);
+         current != null;
+         current = model.messageById().first(current.next)) {
+      assertEquals(prefix + count, current.content);
+      count++;
+    }
+
+    assertEquals(expected, count);
+  }
+}
@@ -0,0 +1,328 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class FederatedRelayTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  // A relay whose reads wait until they are let through.
+  private static final class SlowRelay implements Relay {
+
+    private final Relay relay;
+    final CountDownLatch release = new CountDownLatch(1);
+
+    SlowRelay(Relay relay) {
+      this.relay = relay;
+    }
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return relay.pack(id, text, time);
+    }
+
+    @Override
+    public Relay.Bundle pack(Relay.Bundle.Component user,
+                             Relay.Bundle.Component conversation,
+                             Relay.Bundle.Component message) {
+      return relay.pack(user, conversation, message);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      return relay.write(teamId, teamSecret, user, conversation, message);
+    }
+
+    @Override
+    public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+      return relay.write(teamId, teamSecret, bundles);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId,
+                                         Secret teamSecret,
+                                         Uuid root,
+                                         int range,
+                                         RelayFilter filter) {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        return new ArrayList<>();
+      }
+      return relay.read(teamId, teamSecret, root, range, filter);
+    }
+
+    @Override
+    public boolean subscribe(Uuid teamId,
+                             Secret teamSecret,
+                             Uuid root,
+                             RelayFilter filter,
+                             Subscriber subscriber) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  // A relay whose clock is off: each message's bundle is read back with the
+  // time it was given here instead of the time it was written.
+  private static final class SkewedRelay implements Relay {
+
+    private final Relay relay;
+    final Map<Uuid, Time> times = new HashMap<>();
+
+    SkewedRelay(Relay relay) {
+      this.relay = relay;
+    }
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return relay.pack(id, text, time);
+    }
+
+    @Override
+    public Relay.Bundle pack(Relay.Bundle.Component user,
+                             Relay.Bundle.Component conversation,
+                             Relay.Bundle.Component message) {
+      return relay.pack(user, conversation, message);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      return relay.write(teamId, teamSecret, user, conversation, message);
+    }
+
+    @Override
+    public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+      return relay.write(teamId, teamSecret, bundles);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId,
+                                         Secret teamSecret,
+                                         Uuid root,
+                                         int range,
+                                         RelayFilter filter) {
+      final List<Relay.Bundle> skewed = new ArrayList<>();
+      for (final Relay.Bundle bundle : relay.read(teamId, teamSecret, root, range, filter)) {
+        skewed.add(skew(bundle, times.get(bundle.message().id())));
+      }
+      return skewed;
+    }
+
+    @Override
+    public boolean subscribe(Uuid teamId,
+                             Secret teamSecret,
+                             Uuid root,
+                             RelayFilter filter,
+                             Subscriber subscriber) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    private static Relay.Bundle skew(final Relay.Bundle bundle, final Time time) {
+      return new Relay.Bundle() {
+        @Override
+        public Uuid id() { return bundle.id(); }
+
+        @Override
+        public Time time() { return time; }
+
+        @Override
+        public Uuid team() { return bundle.team(); }
+
+        @Override
+        public Relay.Bundle.Component user() { return bundle.user(); }
+
+        @Override
+        public Relay.Bundle.Component conversation() { return bundle.conversation(); }
+
+        @Override
+        public Relay.Bundle.Component message() { return bundle.message(); }
+      };
+    }
+  }
+
+  private codeu.chat.relay.Server home;
+  private codeu.chat.relay.Server away;
+
+  @Before
+  public void doBefore() {
+    home = new codeu.chat.relay.Server(64, 64);
+    away = new codeu.chat.relay.Server(64, 64);
+    home.addTeam(TEAM, SECRET);
+    away.addTeam(TEAM, SECRET);
+  }
+
+  @Test
+  public void testMergeAndResume() {
+
+    final List<Relay> relays = new ArrayList<>();
+    relays.add(home);
+    relays.add(away);
+    final FederatedRelay relay = new FederatedRelay(relays, 5000);
+
+    write(home, 100);
+    write(away, 200);
+    write(home, 101);
+    // Some team wrote the same message to both relays.
+    write(away, 101);
+
+    final Collection<Relay.Bundle> first = relay.read(TEAM, SECRET, Uuid.NULL, 16);
+    assertEquals(3, first.size());
+
+    final Set<Uuid> messages = new HashSet<>();
+    Uuid cursor = Uuid.NULL;
+    for (final Relay.Bundle bundle : first) {
+      assertTrue(messages.add(bundle.message().id()));
+      cursor = bundle.id();
+    }
+
+    // The cursor covers the duplicate too so nothing is read again.
+    assertTrue(relay.read(TEAM, SECRET, cursor, 16).isEmpty());
+
+    write(away, 201);
+
+    final Collection<Relay.Bundle> second = relay.read(TEAM, SECRET, cursor, 16);
+    assertEquals(1, second.size());
+    for (final Relay.Bundle bundle : second) {
+      assertTrue(Uuid.equals(new Uuid(201), bundle.message().id()));
+    }
+  }
+
+  @Test
+  public void testSlowRelayDoesNotHoldBackOthers() {
+
+    final SlowRelay slow = new SlowRelay(away);
+
+    final List<Relay> relays = new ArrayList<>();
+    relays.add(home);
+    relays.add(slow);
+    final FederatedRelay relay = new FederatedRelay(relays, 50);
+
+    write(home, 100);
+    write(away, 200);
+
+    final Collection<Relay.Bundle> first = relay.read(TEAM, SECRET, Uuid.NULL, 16);
+    assertEquals(1, first.size());
+
+    Uuid cursor = Uuid.NULL;
+    for (final Relay.Bundle bundle : first) {
+      assertTrue(Uuid.equals(new Uuid(100), bundle.message().id()));
+      cursor = bundle.id();
+    }
+
+    // Once the slow relay answers, its bundles come with the next read.
+    slow.release.countDown();
+
+    final Set<Uuid> messages = new HashSet<>();
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (messages.isEmpty() && System.currentTimeMillis() < deadline) {
+      for (final Relay.Bundle bundle : relay.read(TEAM, SECRET, cursor, 16)) {
+        messages.add(bundle.message().id());
+        cursor = bundle.id();
+      }
+    }
+
+    assertEquals(1, messages.size());
+    assertTrue(messages.contains(new Uuid(200)));
+  }
+
+  @Test
+  public void testMergeKeepsEachRelaysOrder() {
+
+    final SkewedRelay first = new SkewedRelay(home);
+    final SkewedRelay second = new SkewedRelay(away);
+
+    final List<Relay> relays = new ArrayList<>();
+    relays.add(first);
+    relays.add(second);
+    final FederatedRelay relay = new FederatedRelay(relays, 5000);
+
+    // The home relay's clock went back between its two bundles.
+    write(first, 100, 30);
+    write(first, 101, 10);
+    write(second, 200, 15);
+
+    final List<Relay.Bundle> read = new ArrayList<>(relay.read(TEAM, SECRET, Uuid.NULL, 16));
+    assertEquals(3, read.size());
+
+    // Resuming from any bundle reads exactly the bundles after it, so no
+    // relay's cursor went past a bundle that had not been passed on yet.
+    for (int i = 0; i < read.size(); i++) {
+
+      final Set<Uuid> expected = new HashSet<>();
+      for (final Relay.Bundle bundle : read.subList(i + 1, read.size())) {
+        expected.add(bundle.message().id());
+      }
+
+      final Set<Uuid> actual = new HashSet<>();
+      for (final Relay.Bundle bundle : relay.read(TEAM, SECRET, read.get(i).id(), 16)) {
+        actual.add(bundle.message().id());
+      }
+
+      assertEquals(expected, actual);
+    }
+  }
+
+  private static void write(SkewedRelay relay, int message, long timeMs) {
+    relay.times.put(new Uuid(message), Time.fromMs(timeMs));
+    write(relay, message);
+  }
+
+  private static void write(Relay relay, int message) {
+    assertTrue(relay.write(TEAM,
+                           SECRET,
+                           relay.pack(new Uuid(4), "User", Time.fromMs(1)),
+                           relay.pack(new Uuid(5), "Conversation", Time.fromMs(1)),
+                           relay.pack(new Uuid(message), "Hello World", Time.now())));
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class LogReplayTest {
+
+  private Model model;
+  private Controller controller;
+  private File file;
+
+  @Before
+  public void doBefore() throws IOException {
+    model = new Model();
+    controller = new Controller(Uuid.NULL, model);
+    file = File.createTempFile("replay", ".txt");
+  }
+
+  @After
+  public void doAfter() {
+    file.delete();
+  }
+
+  @Test
+  public void testReplayOrder() throws IOException {
+
+    write("U-ADD 1 100 user",
+          "C-ADD 2 1 200 first conversation",
+          "C-ADD 3 1 300 second conversation",
+          "M-ADD 10 1 2 400 hello world",
+          "M-ADD 20 1 3 500 other",
+          "M-ADD 11 1 2 600 second message");
+
+    final LogReplay replay = new LogReplay(model, 4);
+    replay.replay(file);
+
+    assertEquals(1, replay.users());
+    assertEquals(2, replay.conversations());
+    assertEquals(3, replay.messages());
+    assertEquals(0, replay.skipped());
+
+    final ConversationPayload payload = model.conversationPayloadById().first(new Uuid(2));
+    assertTrue(Uuid.equals(payload.firstMessage, new Uuid(10)));
+    assertTrue(Uuid.equals(payload.lastMessage, new Uuid(11)));
+
+    final Message first = model.messageById().first(new Uuid(10));
+    assertEquals("hello world", first.content);
+    assertTrue(Uuid.equals(first.next, new Uuid(11)));
+
+    assertEquals("first conversation", model.conversationById().first(new Uuid(2)).title);
+  }
+
+  @Test
+  public void testReplayCursor() throws IOException {
+
+    write("U-ADD 1 100 user",
+          "R-SEEN 5",
+          "C-ADD 2 1 200 conversation",
+          "R-SEEN 7.9");
+
+    final LogReplay replay = new LogReplay(model, 4);
+    replay.replay(file);
+
+    // Only the newest cursor is kept and cursors are not counted as skipped.
+    assertTrue(Uuid.equals(new Uuid(new Uuid(7), 9), replay.cursor()));
+    assertEquals(0, replay.skipped());
+  }
+
+  @Test
+  public void testReplaySkipsBadEntries() throws IOException {
+
+    write("U-ADD 1 100 user",
+          "C-ADD 2 1 200 conversation",
+          "M-ADD 10 1 2 300 good",
+          "M-ADD 10 1 2 400 duplicate id",
+          "M-ADD 11 5 2 500 missing author",
+          "M-ADD 12 1 9 600 missing conversation",
+          "M-ADD not-an-id",
+          "garbage");
+
+    final LogReplay replay = new LogReplay(model, 2);
+    replay.replay(file);
+
+    assertEquals(1, replay.messages());
+    assertEquals(5, replay.skipped());
+    assertNull(model.messageById().first(new Uuid(11)));
+  }
+
+  @Test
+  public void testLazyReplay() throws IOException {
+
+    write("U-ADD 1 100 user",
+          "C-ADD 2 1 200 first",
+          "C-ADD 3 1 300 second",
+          "M-ADD 10 1 2 400 hello",
+          "M-ADD 20 1 3 500 other",
+          "M-ADD 11 1 2 600 world");
+
+    final ConversationHydrator hydrator = new ConversationHydrator(model);
+    hydrator.load(file);
+
+    assertNotNull(model.conversationById().first(new Uuid(2)));
+    assertNull(model.messageById().first(new Uuid(10)));
+    assertTrue(hydrator.isPending());
+
+    hydrator.hydrate(new Uuid(2));
+
+    assertEquals("world", model.messageById().first(new Uuid(11)).content);
+    assertTrue(Uuid.equals(model.messageById().first(new Uuid(10)).next, new Uuid(11)));
+    assertNull(model.messageById().first(new Uuid(20)));
+
+    // A new message after hydration must go to the end of the chain.
+    final Message added = controller.newMessage(new Uuid(12), new Uuid(1), new Uuid(2), "new", Time.now());
+    assertTrue(Uuid.equals(model.messageById().first(new Uuid(11)).next, added.id));
+
+    hydrator.hydrateAll();
+
+    assertFalse(hydrator.isPending());
+    assertNotNull(model.messageById().first(new Uuid(20)));
+  }
+
+  @Test
+  public void testReplayAcrossBatches() throws IOException {
+
+    // Enough lines for more than one batch and many blocks of the log.
+    final int count = 40000;
+
+    try (final PrintWriter writer = new PrintWriter(file)) {
+      writer.println("U-ADD 1 100 user");
+      writer.println("C-ADD 2 1 200 conversation");
+      for (int i = 0; i < count; i++) {
+        writer.println("M-ADD " + (10 + i) + " 1 2 " + (300 + i) + " message " + i);
+      }
+      writer.println("M-ADD 10 1 2 400 duplicate of the first message");
+    }
+
+    final LogReplay replay = new LogReplay(model, 4);
+    replay.replay(file);
+
+    assertEquals(count, replay.messages());
+    assertEquals(1, replay.skipped());
+
+    // The chain carries on from one batch to the next.
+    Message message = model.messageById().first(new Uuid(10));
+    for (int i = 0; i < count - 1; i++) {
+      assertEquals("message " + i, message.content);
+      message = model.messageById().first(message.next);
+    }
+    assertTrue(Uuid.equals(model.conversationPayloadById().first(new Uuid(2)).lastMessage, message.id));
+
+    // The lazy replay's offsets are right all the way through the log.
+    final Model lazy = new Model();
+    final ConversationHydrator hydrator = new ConversationHydrator(lazy);
+    hydrator.load(file);
+    hydrator.hydrate(new Uuid(2));
+
+    assertEquals("message " + (count - 1), lazy.messageById().first(new Uuid(10 + count - 1)).content);
+    assertEquals("message 0", lazy.messageById().first(new Uuid(10)).content);
+  }
+
+  private void write(String... lines) throws IOException {
+    try (final PrintWriter writer = new PrintWriter(file)) {
+      for (final String line : lines) {
+        writer.println(line);
+      }
+    }
+  }
+}
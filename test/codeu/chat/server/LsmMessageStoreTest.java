@@ -0,0 +1,184 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class LsmMessageStoreTest {
+
+  private File directory;
+  private LsmMessageStore store;
+  private Model model;
+  private Controller controller;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = File.createTempFile("lsm", "");
+    directory.delete();
+
+    // Use a tiny memtable so that the tests flush and compact.
+    store = new LsmMessageStore(directory, 4);
+    model = new Model(store);
+    controller = new Controller(Uuid.NULL, model);
+
+    controller.newUser(new Uuid(1), "user", Time.fromMs(100));
+    controller.newConversation(new Uuid(2), "conversation", new Uuid(1), Time.fromMs(200));
+  }
+
+  @After
+  public void doAfter() throws IOException {
+    store.close();
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testFindAfterFlush() {
+
+    for (int i = 0; i < 10; i++) {
+      controller.newMessage(new Uuid(10 + i), new Uuid(1), new Uuid(2), "message " + i, Time.fromMs(300 + i));
+    }
+
+    assertTrue(store.runs()[0] > 0 || store.runs().length > 1);
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("message " + i, model.messageById().first(new Uuid(10 + i)).content);
+    }
+
+    assertNull(model.messageById().first(new Uuid(99)));
+  }
+
+  @Test
+  public void testChainAndTimeAfterCompaction() {
+
+    for (int i = 0; i < 100; i++) {
+      assertNotNull(controller.newMessage(
+          new Uuid(1000 - i), new Uuid(1), new Uuid(2), "message " + i, Time.fromMs(300 + i)));
+    }
+
+    final ConversationPayload payload = model.conversationPayloadById().first(new Uuid(2));
+
+    int count = 0;
+    for (Uuid current = payload.firstMessage;
+         !Uuid.equals(current, Uuid.NULL);
+         current = model.messageById().first(current).next) {
+      assertEquals("message " + count, model.messageById().first(current).content);
+      count++;
+    }
+
+    assertEquals(100, count);
+
+    int inTime = 0;
+    long last = 0;
+    for (final Message message : model.messageByTime().range(Time.fromMs(310), Time.fromMs(329))) {
+      assertTrue(message.creation.inMs() >= last);
+      last = message.creation.inMs();
+      inTime++;
+    }
+
+    assertEquals(20, inTime);
+  }
+
+  @Test
+  public void testRemoveFlushedAndInMemory() {
+
+    final Message[] messages = new Message[10];
+    for (int i = 0; i < 10; i++) {
+      messages[i] = controller.newMessage(
+          new Uuid(10 + i), new Uuid(1), new Uuid(2), "message " + i, Time.fromMs(300 + i));
+    }
+
+    // The first eight messages were flushed and the rest are still in the
+    // memtable. Leave the last one as it ends the conversation's chain.
+    store.remove(messages[1]);
+    store.remove(messages[8]);
+
+    assertNull(model.messageById().first(new Uuid(11)));
+    assertNull(model.messageById().first(new Uuid(18)));
+    assertEquals(8, count(model.messageById().all()));
+    assertEquals(8, count(model.messageByTime().all()));
+    assertNull(model.messageByTime().first(Time.fromMs(301)));
+
+    // Enough more messages to flush the tombstones and compact them.
+    for (int i = 0; i < 100; i++) {
+      controller.newMessage(new Uuid(100 + i), new Uuid(1), new Uuid(2), "more " + i, Time.fromMs(400 + i));
+    }
+
+    assertNull(model.messageById().first(new Uuid(11)));
+    assertEquals(108, count(model.messageById().all()));
+    assertEquals(108, count(model.messageByTime().all()));
+
+    // A removed message can be added again.
+    store.add(messages[1]);
+    assertEquals("message 1", model.messageById().first(new Uuid(11)).content);
+    assertEquals("message 1", model.messageByTime().first(Time.fromMs(301)).content);
+  }
+
+  @Test
+  public void testRangesAcrossRuns() {
+
+    // Add out of order so that every run covers many ids and times.
+    for (int i = 0; i < 100; i++) {
+      final int id = (i * 37) % 100;
+      controller.newMessage(
+          new Uuid(1000 + id), new Uuid(1), new Uuid(2), "message " + id, Time.fromMs(5000 - id));
+    }
+
+    Uuid last = null;
+    int inIds = 0;
+    for (final Message message : model.messageById().range(new Uuid(1020), new Uuid(1039))) {
+      assertTrue(last == null || Model.UUID_COMPARE.compare(last, message.id) < 0);
+      last = message.id;
+      inIds++;
+    }
+    assertEquals(20, inIds);
+
+    assertEquals(50, count(model.messageById().after(new Uuid(1050))));
+    assertEquals(11, count(model.messageById().before(new Uuid(1010))));
+
+    long time = 0;
+    int inTime = 0;
+    for (final Message message : model.messageByTime().range(Time.fromMs(4930), Time.fromMs(4959))) {
+      assertTrue(message.creation.inMs() >= time);
+      time = message.creation.inMs();
+      inTime++;
+    }
+    assertEquals(30, inTime);
+
+    assertEquals("message 10", model.messageByTime().first(Time.fromMs(4990)).content);
+    assertEquals(100, count(model.messageByTime().all()));
+  }
+
+  private static int count(Iterable<Message> messages) {
+    int count = 0;
+    for (final Message message : messages) {
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class MappedMessageStoreTest {
+
+  private File directory;
+  private Model model;
+  private Controller controller;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = File.createTempFile("mapped", "");
+    directory.delete();
+
+    // Use a tiny segment size so that the tests cross segment boundaries.
+    model = new Model(new MappedMessageStore(directory, 64));
+    controller = new Controller(Uuid.NULL, model);
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testAddAndFind() {
+
+    controller.newUser(new Uuid(1), "user", Time.fromMs(100));
+    controller.newConversation(new Uuid(2), "conversation", new Uuid(1), Time.fromMs(200));
+
+    final Message added =
+        controller.newMessage(new Uuid(3), new Uuid(1), new Uuid(2), "hello", Time.fromMs(300));
+
+    final Message found = model.messageById().first(added.id);
+
+    assertNotNull(found);
+    assertEquals("hello", found.content);
+    assertEquals(300, found.creation.inMs());
+    assertTrue(Uuid.equals(found.author, new Uuid(1)));
+    assertTrue(Uuid.equals(found.next, Uuid.NULL));
+  }
+
+  @Test
+  public void testChainAcrossSegments() {
+
+    controller.newUser(new Uuid(1), "user", Time.fromMs(100));
+    controller.newConversation(new Uuid(2), "conversation", new Uuid(1), Time.fromMs(200));
+
+    for (int i = 0; i < 20; i++) {
+      assertNotNull(controller.newMessage(
+          new Uuid(10 + i), new Uuid(1), new Uuid(2), "message " + i, Time.fromMs(300 + i)));
+    }
+
+    final ConversationPayload payload = model.conversationPayloadById().first(new Uuid(2));
+
+    int count = 0;
+    for (Uuid current = payload.firstMessage;
+         !Uuid.equals(current, Uuid.NULL);
+         current = model.messageById().first(current).next) {
+      assertEquals("message " + count, model.messageById().first(current).content);
+      count++;
+    }
+
+    assertEquals(20, count);
+
+    int inTime = 0;
+    for (final Message message : model.messageByTime().range(Time.fromMs(305), Time.fromMs(309))) {
+      inTime++;
+    }
+
+    assertEquals(5, inTime);
+  }
+
+  @Test
+  public void testIndexManyMessages() throws IOException {
+
+    final MappedMessageStore store = new MappedMessageStore(directory, 64 * 1024);
+
+    // Enough messages to split the index's blocks many times, added out of
+    // order, with every last link used by two ids from different roots.
+    final List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, new Random(7));
+
+    for (final int i : order) {
+      for (int root = 1; root <= 2; root++) {
+        store.add(new Message(new Uuid(new Uuid(root), i),
+                              Uuid.NULL,
+                              Uuid.NULL,
+                              Time.fromMs(1000 + i),
+                              new Uuid(1),
+                              root + "/" + i));
+      }
+    }
+
+    for (int i = 0; i < 3000; i++) {
+      assertEquals("1/" + i, store.byId().first(new Uuid(new Uuid(1), i)).content);
+      assertEquals("2/" + i, store.byId().first(new Uuid(new Uuid(2), i)).content);
+    }
+
+    assertNull(store.byId().first(new Uuid(new Uuid(3), 5)));
+
+    // Ids are in order of their last link.
+    int last = -1;
+    int count = 0;
+    for (final Message message : store.byId().all()) {
+      assertTrue(message.id.id() >= last);
+      last = message.id.id();
+      count++;
+    }
+    assertEquals(6000, count);
+
+    // Drop the first root's messages.
+    for (int i = 0; i < 3000; i++) {
+      store.remove(store.byId().first(new Uuid(new Uuid(1), i)));
+    }
+
+    assertNull(store.byId().first(new Uuid(new Uuid(1), 42)));
+    assertEquals("2/42", store.byId().first(new Uuid(new Uuid(2), 42)).content);
+
+    final List<String> inRange = new ArrayList<>();
+    for (final Message message : store.byTime().range(Time.fromMs(1500), Time.fromMs(1509))) {
+      inRange.add(message.content);
+    }
+
+    assertEquals(10, inRange.size());
+    assertEquals("2/500", inRange.get(0));
+    assertEquals("2/509", inRange.get(9));
+  }
+}
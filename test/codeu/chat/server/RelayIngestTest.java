@@ -0,0 +1,210 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.PersistentLog;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayIngestTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private Model model;
+  private RelayIngest ingest;
+  private codeu.chat.relay.Server relay;
+
+  @After
+  public void doAfter() {
+    PersistentLog.persistentQueue.clear();
+  }
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+    ingest = new RelayIngest(model, new Controller(Uuid.NULL, model), 64);
+    PersistentLog.persistentQueue.clear();
+    relay = new codeu.chat.relay.Server(64, 64);
+    relay.addTeam(TEAM, SECRET);
+  }
+
+  @Test
+  public void testApplyGroupsByConversation() {
+
+    // Two conversations with their messages interleaved. The second user
+    // writes first in conversation 21 so they own it.
+    write(10, 20, 100);
+    write(11, 21, 101);
+    write(10, 21, 102);
+    write(10, 20, 103);
+    write(11, 20, 104);
+
+    final RelayIngest.Group group = new RelayIngest.Group(read());
+    assertEquals(5, group.size);
+    assertEquals(2, group.conversations.size());
+
+    final Map<Uuid, List<Message>> added = ingest.apply(group);
+    assertEquals(3, added.get(new Uuid(20)).size());
+    assertEquals(2, added.get(new Uuid(21)).size());
+
+    final ConversationHeader owned = model.conversationById().first(new Uuid(21));
+    assertTrue(Uuid.equals(new Uuid(11), owned.owner));
+
+    assertChain(new Uuid(20), 100, 103, 104);
+    assertChain(new Uuid(21), 101, 102);
+
+    // Applying the same bundles again adds nothing.
+    final Map<Uuid, List<Message>> again = ingest.apply(new RelayIngest.Group(read()));
+    for (final List<Message> messages : again.values()) {
+      assertTrue(messages.isEmpty());
+    }
+    assertChain(new Uuid(20), 100, 103, 104);
+  }
+
+  @Test
+  public void testApplyManyConversations() {
+
+    // Twenty conversations, each with three messages sent round robin, so the
+    // chains are made on several threads.
+    for (int round = 0; round < 3; round++) {
+      for (int conversation = 0; conversation < 20; conversation++) {
+        write(10 + round, 100 + conversation, 1000 + conversation * 10 + round);
+      }
+    }
+
+    final Map<Uuid, List<Message>> added = ingest.apply(new RelayIngest.Group(read()));
+    assertEquals(20, added.size());
+
+    for (int conversation = 0; conversation < 20; conversation++) {
+      final int first = 1000 + conversation * 10;
+      assertChain(new Uuid(100 + conversation), first, first + 1, first + 2);
+    }
+  }
+
+  @Test
+  public void testAppliedBundlesAreLogged() throws IOException {
+
+    write(10, 20, 100);
+    write(11, 20, 101);
+
+    ingest.apply(new RelayIngest.Group(read()));
+
+    // Two users, one conversation and two messages.
+    assertEquals(5, PersistentLog.persistentQueue.size());
+
+    // Replaying what was logged gives a server the same conversation.
+    final File file = File.createTempFile("ingest", ".txt");
+    try {
+      try (final PrintWriter out = new PrintWriter(file)) {
+        for (final String line : PersistentLog.persistentQueue) {
+          out.println(line);
+        }
+      }
+
+      model = new Model();
+      new LogReplay(model, 1).replay(file);
+
+      assertChain(new Uuid(20), 100, 101);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testRecentBundlesAreDropped() {
+
+    write(10, 20, 100);
+
+    ingest.apply(new RelayIngest.Group(read()));
+    PersistentLog.persistentQueue.clear();
+
+    // Take the message out of the model. A bundle that was applied recently is
+    // dropped without being looked at so it is not added back.
+    model.remove(model.messageById().first(new Uuid(100)));
+
+    final Map<Uuid, List<Message>> again = ingest.apply(new RelayIngest.Group(read()));
+    assertTrue(again.isEmpty());
+    assertTrue(PersistentLog.persistentQueue.isEmpty());
+  }
+
+  @Test
+  public void testFailedBundleIsAppliedWhenSentAgain() {
+
+    // Something on this server already uses the conversation's id so the
+    // conversation can not be made and the bundle is not applied.
+    final Controller controller = new Controller(Uuid.NULL, model);
+    controller.newUser(new Uuid(90), "local", Time.fromMs(1));
+    controller.newConversation(new Uuid(91), "local", new Uuid(90), Time.fromMs(1));
+    final Message clash =
+        controller.newMessage(new Uuid(20), new Uuid(90), new Uuid(91), "clash", Time.fromMs(2));
+
+    write(10, 20, 100);
+
+    assertTrue(ingest.apply(new RelayIngest.Group(read())).isEmpty());
+    assertNull(model.messageById().first(new Uuid(100)));
+
+    // Once the id is free the same bundle sent again is applied.
+    model.remove(clash);
+
+    final Map<Uuid, List<Message>> again = ingest.apply(new RelayIngest.Group(read()));
+    assertEquals(1, again.get(new Uuid(20)).size());
+    assertChain(new Uuid(20), 100);
+  }
+
+  private void assertChain(Uuid conversation, int... ids) {
+
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation);
+
+    Uuid current = payload.firstMessage;
+    for (final int id : ids) {
+      assertTrue(Uuid.equals(new Uuid(id), current));
+      current = model.messageById().first(current).next;
+    }
+
+    assertTrue(Uuid.equals(Uuid.NULL, current));
+    assertTrue(Uuid.equals(new Uuid(ids[ids.length - 1]), payload.lastMessage));
+  }
+
+  private void write(int user, int conversation, int message) {
+    assertTrue(relay.write(TEAM,
+                           SECRET,
+                           relay.pack(new Uuid(user), "User " + user, Time.fromMs(1)),
+                           relay.pack(new Uuid(conversation), "Conversation", Time.fromMs(1)),
+                           relay.pack(new Uuid(message), "Hello World", Time.now())));
+  }
+
+  private Collection<Relay.Bundle> read() {
+    return relay.read(TEAM, SECRET, Uuid.NULL, 64);
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayOutboxTest {
+
+  // A relay that records every batch and refuses the first "failures" batches.
+  private static final class RecordingRelay implements Relay {
+
+    private final Relay packer = new NoOpRelay();
+    private final List<Integer> batches = new ArrayList<>();
+    private int failures;
+    private int written;
+
+    RecordingRelay(int failures) {
+      this.failures = failures;
+    }
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return packer.pack(id, text, time);
+    }
+
+    @Override
+    public Relay.Bundle pack(Relay.Bundle.Component user,
+                             Relay.Bundle.Component conversation,
+                             Relay.Bundle.Component message) {
+      return packer.pack(user, conversation, message);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+      batches.add(bundles.size());
+      if (failures > 0) {
+        failures--;
+        return 0;
+      }
+      written += bundles.size();
+      notifyAll();
+      return bundles.size();
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId,
+                                         Secret teamSecret,
+                                         Uuid root,
+                                         int range,
+                                         RelayFilter filter) {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public boolean subscribe(Uuid teamId,
+                             Secret teamSecret,
+                             Uuid root,
+                             RelayFilter filter,
+                             Subscriber subscriber) {
+      throw new UnsupportedOperationException();
+    }
+
+    synchronized void awaitWritten(int count) throws InterruptedException {
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (written < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+  }
+
+  @Test
+  public void testCoalesceIntoBatches() throws InterruptedException {
+
+    final RecordingRelay relay = new RecordingRelay(0);
+    final RelayOutbox outbox = new RelayOutbox(relay, new Uuid(1), null, 100, 10, 1000, 1000, 100);
+    outbox.start();
+
+    try {
+      for (int i = 0; i < 25; i++) {
+        assertTrue(outbox.offer(bundle(relay, i)));
+      }
+
+      relay.awaitWritten(25);
+
+      assertEquals(25, outbox.sent());
+      assertEquals(0, outbox.depth());
+
+      // Everything was queued at once so there should be far fewer batches
+      // than messages.
+      synchronized (relay) {
+        assertTrue(relay.batches.size() <= 4);
+      }
+    } finally {
+      outbox.stop();
+    }
+  }
+
+  @Test
+  public void testRetryAfterFailure() throws InterruptedException {
+
+    final RecordingRelay relay = new RecordingRelay(2);
+    final RelayOutbox outbox = new RelayOutbox(relay, new Uuid(1), null, 100, 10, 10, 1000, 100);
+    outbox.start();
+
+    try {
+      assertTrue(outbox.offer(bundle(relay, 0)));
+
+      relay.awaitWritten(1);
+
+      assertEquals(1, outbox.sent());
+      assertEquals(2, outbox.retries());
+    } finally {
+      outbox.stop();
+    }
+  }
+
+  @Test
+  public void testDropWhenFull() {
+
+    // The relay never accepts anything so the queue can only fill up.
+    final RecordingRelay relay = new RecordingRelay(Integer.MAX_VALUE);
+    final RelayOutbox outbox = new RelayOutbox(relay, new Uuid(1), null, 2, 1, 10, 1000, 100);
+    outbox.start();
+
+    try {
+      int accepted = 0;
+      for (int i = 0; i < 10; i++) {
+        if (outbox.offer(bundle(relay, i))) {
+          accepted++;
+        }
+      }
+
+      // At most one bundle is being sent and two are queued.
+      assertTrue(accepted <= 3);
+      assertEquals(10 - accepted, outbox.dropped());
+    } finally {
+      outbox.stop();
+    }
+  }
+
+  @Test
+  public void testGiveUpAfterMaxAttempts() throws InterruptedException {
+
+    // The relay refuses the first batch (of two) until it is given up on.
+    final RecordingRelay relay = new RecordingRelay(3);
+    final RelayOutbox outbox = new RelayOutbox(relay, new Uuid(1), null, 100, 2, 1000, 10, 3);
+    outbox.start();
+
+    try {
+      assertTrue(outbox.offer(bundle(relay, 0)));
+      assertTrue(outbox.offer(bundle(relay, 1)));
+
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (outbox.undelivered() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertEquals(2, outbox.undelivered());
+
+      assertTrue(outbox.offer(bundle(relay, 2)));
+      relay.awaitWritten(1);
+
+      assertEquals(1, outbox.sent());
+      assertEquals(2, outbox.retries());
+    } finally {
+      outbox.stop();
+    }
+  }
+
+  private static Relay.Bundle bundle(Relay relay, int i) {
+    return relay.pack(relay.pack(new Uuid(2), "User", Time.now()),
+                      relay.pack(new Uuid(3), "Conversation", Time.now()),
+                      relay.pack(new Uuid(100 + i), "Hello World", Time.now()));
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class RelayPollPolicyTest {
+
+  @Test
+  public void testGrowWhileFull() {
+
+    final RelayPollPolicy policy = new RelayPollPolicy(32, 128, 100, 1000);
+
+    assertEquals(32, policy.batch());
+    assertEquals(0, policy.received(32));
+    assertEquals(64, policy.batch());
+    assertEquals(0, policy.received(64));
+    assertEquals(128, policy.batch());
+    assertEquals(0, policy.received(128));
+    assertEquals(128, policy.batch());
+
+    // Caught up - back to the smallest batch and shortest delay.
+    assertEquals(100, policy.received(5));
+    assertEquals(32, policy.batch());
+  }
+
+  @Test
+  public void testBackOffWhileEmpty() {
+
+    final RelayPollPolicy policy = new RelayPollPolicy(32, 128, 100, 1000);
+
+    assertEquals(200, policy.received(0));
+    assertEquals(400, policy.received(0));
+    assertEquals(800, policy.failed());
+    assertEquals(1000, policy.received(0));
+    assertEquals(1000, policy.received(0));
+
+    // Anything new resets the delay.
+    assertEquals(100, policy.received(1));
+    assertEquals(200, policy.received(0));
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.ClientConnectionSource;
+
+public final class RelaySubscriberTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private static final class Collector implements Relay.Subscriber {
+
+    final List<Uuid> messages = new ArrayList<>();
+
+    @Override
+    public synchronized boolean onBundles(Collection<Relay.Bundle> bundles) {
+      for (final Relay.Bundle bundle : bundles) {
+        messages.add(bundle.message().id());
+      }
+      notifyAll();
+      return true;
+    }
+
+    synchronized void await(int count) throws InterruptedException {
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (messages.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+  }
+
+  @Test
+  public void testStreamNewBundles() throws InterruptedException {
+
+    final codeu.chat.relay.Server relay = new codeu.chat.relay.Server(64, 16);
+    relay.addTeam(TEAM, SECRET);
+
+    write(relay, 100);
+
+    final Collector collector = new Collector();
+    final RelaySubscriber subscriber =
+        new RelaySubscriber(relay, TEAM, SECRET, Uuid.NULL, RelayFilter.ALL, collector, null, 1000);
+
+    subscriber.start();
+
+    try {
+      collector.await(1);
+
+      // Written after the subscription started so it must be pushed.
+      write(relay, 101);
+      write(relay, 102);
+
+      collector.await(3);
+
+      synchronized (collector) {
+        assertEquals(3, collector.messages.size());
+        for (int i = 0; i < 3; i++) {
+          assertTrue(Uuid.equals(collector.messages.get(i), new Uuid(100 + i)));
+        }
+      }
+
+      assertTrue(Uuid.equals(subscriber.cursor(), new Uuid(4)));
+    } finally {
+      subscriber.stop();
+    }
+  }
+
+  @Test
+  public void testFallbackWhenUnsupported() throws InterruptedException {
+    assertFallsBack(new NoOpRelay());
+  }
+
+  @Test
+  public void testFallbackWhenSubscribeAnsweredWithNoMessage() throws Exception {
+    assertFallsBackFromOldRelay(true);
+  }
+
+  @Test
+  public void testFallbackWhenSubscribeHangsUp() throws Exception {
+    assertFallsBackFromOldRelay(false);
+  }
+
+  // Run against a relay from before subscriptions. It reads the request type
+  // and then either answers NO_MESSAGE or hangs up.
+  private static void assertFallsBackFromOldRelay(final boolean answer) throws Exception {
+
+    try (final ServerSocket listener = new ServerSocket(0)) {
+
+      final Thread relay = new Thread() {
+        @Override
+        public void run() {
+          while (true) {
+            try (final Socket socket = listener.accept()) {
+              new DataInputStream(socket.getInputStream()).readInt();
+              if (answer) {
+                Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.NO_MESSAGE);
+              }
+            } catch (Exception ex) {
+              // The test is over.
+              return;
+            }
+          }
+        }
+      };
+      relay.setDaemon(true);
+      relay.start();
+
+      assertFallsBack(new RemoteRelay(
+          new ClientConnectionSource("localhost", listener.getLocalPort()),
+          new ClientConnectionSource("localhost", listener.getLocalPort(), 1000)));
+    }
+  }
+
+  private static void assertFallsBack(Relay relay) throws InterruptedException {
+
+    final boolean[] fellBack = { false };
+
+    final RelaySubscriber subscriber = new RelaySubscriber(
+        relay, TEAM, SECRET, Uuid.NULL, RelayFilter.ALL, new Collector(), new Runnable() {
+          @Override
+          public void run() {
+            synchronized (fellBack) {
+              fellBack[0] = true;
+              fellBack.notifyAll();
+            }
+          }
+        }, 1000);
+
+    subscriber.start();
+
+    try {
+      synchronized (fellBack) {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!fellBack[0] && System.currentTimeMillis() < deadline) {
+          fellBack.wait(100);
+        }
+        assertTrue(fellBack[0]);
+      }
+    } finally {
+      subscriber.stop();
+    }
+  }
+
+  private static void write(Relay relay, int message) {
+    assertTrue(relay.write(TEAM,
+                           SECRET,
+                           relay.pack(new Uuid(4), "User", Time.now()),
+                           relay.pack(new Uuid(5), "Conversation", Time.now()),
+                           relay.pack(new Uuid(message), "Hello World", Time.now())));
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.ClientConnectionSource;
+
+public final class RemoteRelayTest {
+
+  @Test(timeout = 5000)
+  public void testSilentSubscriptionTimesOut() throws Exception {
+
+    try (final ServerSocket listener = new ServerSocket(0)) {
+
+      // A relay that accepts the subscription and then never sends anything,
+      // not even a heartbeat.
+      final Thread relay = new Thread() {
+        @Override
+        public void run() {
+          try (final Socket socket = listener.accept()) {
+            Serializers.INTEGER.write(socket.getOutputStream(), NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+            Serializers.BOOLEAN.write(socket.getOutputStream(), true);
+            Thread.sleep(4000);
+          } catch (Exception ex) {
+            // The test is over.
+          }
+        }
+      };
+      relay.setDaemon(true);
+      relay.start();
+
+      final RemoteRelay remote = new RemoteRelay(
+          new ClientConnectionSource("localhost", listener.getLocalPort()),
+          new ClientConnectionSource("localhost", listener.getLocalPort(), 200));
+
+      try {
+        remote.subscribe(new Uuid(1),
+                         new Secret((byte) 0x01),
+                         Uuid.NULL,
+                         RelayFilter.ALL,
+                         new Relay.Subscriber() {
+                           @Override
+                           public boolean onBundles(Collection<Relay.Bundle> bundles) {
+                             return true;
+                           }
+                         });
+        fail("A silent subscription should break");
+      } catch (IOException ex) {
+        // Expected - the subscriber will subscribe again.
+      }
+    }
+  }
+}
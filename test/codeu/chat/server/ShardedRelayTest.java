@@ -0,0 +1,249 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayFilter;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class ShardedRelayTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  // A relay whose clock is off: each message's bundle is read back with the
+  // time it was given here instead of the time it was written.
+  private static final class SkewedRelay implements Relay {
+
+    private final Relay relay;
+    final Map<Uuid, Time> times = new HashMap<>();
+
+    SkewedRelay(Relay relay) {
+      this.relay = relay;
+    }
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return relay.pack(id, text, time);
+    }
+
+    @Override
+    public Relay.Bundle pack(Relay.Bundle.Component user,
+                             Relay.Bundle.Component conversation,
+                             Relay.Bundle.Component message) {
+      return relay.pack(user, conversation, message);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         Secret teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      return relay.write(teamId, teamSecret, user, conversation, message);
+    }
+
+    @Override
+    public int write(Uuid teamId, Secret teamSecret, Collection<Relay.Bundle> bundles) {
+      return relay.write(teamId, teamSecret, bundles);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      return read(teamId, teamSecret, root, range, RelayFilter.ALL);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId,
+                                         Secret teamSecret,
+                                         Uuid root,
+                                         int range,
+                                         RelayFilter filter) {
+      final List<Relay.Bundle> skewed = new ArrayList<>();
+      for (final Relay.Bundle bundle : relay.read(teamId, teamSecret, root, range, filter)) {
+        skewed.add(skew(bundle, times.get(bundle.message().id())));
+      }
+      return skewed;
+    }
+
+    @Override
+    public boolean subscribe(Uuid teamId,
+                             Secret teamSecret,
+                             Uuid root,
+                             RelayFilter filter,
+                             Subscriber subscriber) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    private static Relay.Bundle skew(final Relay.Bundle bundle, final Time time) {
+      return new Relay.Bundle() {
+        @Override
+        public Uuid id() { return bundle.id(); }
+
+        @Override
+        public Time time() { return time; }
+
+        @Override
+        public Uuid team() { return bundle.team(); }
+
+        @Override
+        public Relay.Bundle.Component user() { return bundle.user(); }
+
+        @Override
+        public Relay.Bundle.Component conversation() { return bundle.conversation(); }
+
+        @Override
+        public Relay.Bundle.Component message() { return bundle.message(); }
+      };
+    }
+  }
+
+  private List<codeu.chat.relay.Server> nodes;
+  private ShardedRelay relay;
+
+  @Before
+  public void doBefore() {
+
+    nodes = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      final codeu.chat.relay.Server node = new codeu.chat.relay.Server(1024, 1024);
+      node.addTeam(TEAM, SECRET);
+      nodes.add(node);
+    }
+
+    relay = new ShardedRelay(new ArrayList<Relay>(nodes));
+  }
+
+  @Test
+  public void testWritesAreSpread() {
+
+    assertEquals(60, relay.write(TEAM, SECRET, bundles(0, 60)));
+
+    // Every node owns some of the conversations and each conversation is only
+    // on the node that owns it.
+    for (int node = 0; node < nodes.size(); node++) {
+      final Collection<Relay.Bundle> read = nodes.get(node).read(TEAM, SECRET, Uuid.NULL, 1024);
+      assertFalse(read.isEmpty());
+      for (final Relay.Bundle bundle : read) {
+        assertEquals(node, relay.node(bundle.conversation().id()));
+      }
+    }
+  }
+
+  @Test
+  public void testReadResumesFromCursor() {
+
+    assertEquals(30, relay.write(TEAM, SECRET, bundles(0, 30)));
+
+    final Set<Uuid> messages = new HashSet<>();
+    Uuid cursor = Uuid.NULL;
+
+    // Read in small pages so that every page cuts off some node's bundles.
+    while (true) {
+      final Collection<Relay.Bundle> page = relay.read(TEAM, SECRET, cursor, 4);
+      if (page.isEmpty()) {
+        break;
+      }
+      for (final Relay.Bundle bundle : page) {
+        assertTrue(messages.add(bundle.message().id()));
+        cursor = bundle.id();
+      }
+    }
+
+    assertEquals(30, messages.size());
+
+    assertEquals(5, relay.write(TEAM, SECRET, bundles(30, 5)));
+
+    final Collection<Relay.Bundle> after = relay.read(TEAM, SECRET, cursor, 1024);
+    assertEquals(5, after.size());
+    for (final Relay.Bundle bundle : after) {
+      assertTrue(messages.add(bundle.message().id()));
+    }
+  }
+
+  @Test
+  public void testReadKeepsEachNodesOrder() {
+
+    final SkewedRelay first = new SkewedRelay(nodes.get(0));
+    final SkewedRelay second = new SkewedRelay(nodes.get(1));
+
+    final List<Relay> skewed = new ArrayList<>();
+    skewed.add(first);
+    skewed.add(second);
+    final ShardedRelay relay = new ShardedRelay(skewed);
+
+    // The first node's clock went back between its first and second bundles.
+    write(first, 100, 30);
+    write(first, 101, 10);
+    write(first, 102, 20);
+    write(second, 200, 15);
+    write(second, 201, 25);
+
+    final List<Uuid> messages = new ArrayList<>();
+    Uuid cursor = Uuid.NULL;
+
+    while (true) {
+      final Collection<Relay.Bundle> page = relay.read(TEAM, SECRET, cursor, 2);
+      if (page.isEmpty()) {
+        break;
+      }
+      for (final Relay.Bundle bundle : page) {
+        messages.add(bundle.message().id());
+        cursor = bundle.id();
+      }
+    }
+
+    // Nothing is skipped or read twice and each node's bundles stay in the
+    // order the node wrote them.
+    assertEquals(5, messages.size());
+    assertTrue(messages.indexOf(new Uuid(100)) < messages.indexOf(new Uuid(101)));
+    assertTrue(messages.indexOf(new Uuid(101)) < messages.indexOf(new Uuid(102)));
+    assertTrue(messages.indexOf(new Uuid(200)) < messages.indexOf(new Uuid(201)));
+  }
+
+  private static void write(SkewedRelay relay, int message, long timeMs) {
+    relay.times.put(new Uuid(message), Time.fromMs(timeMs));
+    assertTrue(relay.write(TEAM,
+                           SECRET,
+                           relay.pack(new Uuid(4), "User", Time.fromMs(1)),
+                           relay.pack(new Uuid(5), "Conversation", Time.fromMs(1)),
+                           relay.pack(new Uuid(message), "Hello World", Time.now())));
+  }
+
+  private List<Relay.Bundle> bundles(int first, int count) {
+    final List<Relay.Bundle> bundles = new ArrayList<>();
+    for (int i = first; i < first + count; i++) {
+      bundles.add(relay.pack(relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(1000 + i), "Conversation", Time.now()),
+                             relay.pack(new Uuid(5000 + i), "Hello World", Time.now())));
+    }
+    return bundles;
+  }
+}
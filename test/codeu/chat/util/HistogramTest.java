@@ -0,0 +1,65 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+
+    final Histogram histogram = new Histogram();
+
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.percentile(0.99));
+  }
+
+  @Test
+  public void testPercentiles() {
+
+    final Histogram histogram = new Histogram();
+
+    for (int i = 0; i < 99; i++) {
+      histogram.add(3);
+    }
+    histogram.add(1000);
+
+    assertEquals(100, histogram.count());
+    assertEquals(1000, histogram.max());
+
+    // 3 is in the bucket that runs from 2 to 3.
+    assertEquals(3, histogram.percentile(0.5));
+    assertEquals(3, histogram.percentile(0.99));
+
+    // 1000 is in the bucket that runs up to 1023 but nothing larger than 1000
+    // was seen.
+    assertEquals(1000, histogram.percentile(1.0));
+  }
+
+  @Test
+  public void testNegativeCountsAsZero() {
+
+    final Histogram histogram = new Histogram();
+
+    histogram.add(-5);
+
+    assertEquals(1, histogram.count());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.percentile(1.0));
+  }
+}
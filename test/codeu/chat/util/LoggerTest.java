@@ -0,0 +1,198 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class LoggerTest {
+
+  private static final Logger.Log LOG = Logger.newLog(LoggerTest.class);
+
+  private final List<LogRecord> records = new ArrayList<>();
+
+  private final Handler handler = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      synchronized (records) {
+        records.add(record);
+      }
+    }
+
+    @Override
+    public void flush() { }
+
+    @Override
+    public void close() { }
+  };
+
+  @Before
+  public void doBefore() {
+    java.util.logging.Logger.getLogger("codeu.chat").addHandler(handler);
+  }
+
+  @After
+  public void doAfter() {
+    java.util.logging.Logger.getLogger("codeu.chat").removeHandler(handler);
+    Logger.enableCallSites(true);
+  }
+
+  @Test
+  public void testFormattedOnWriter() {
+
+    LOG.info("Hello %s %d", "World", 7);
+
+    assertTrue(Logger.flush(1000));
+
+    final LogRecord record = find("Hello World 7");
+    assertEquals("Hello World 7", record.getMessage());
+    assertEquals(LoggerTest.class.getName(), record.getSourceClassName());
+  }
+
+  @Test
+  public void testDisabledLevelDoesNoWork() {
+
+    final int[] formatted = { 0 };
+    final Object param = new Object() {
+      @Override
+      public String toString() {
+        formatted[0]++;
+        return "param";
+      }
+    };
+
+    // Verbose is below the default level.
+    LOG.verbose("Never seen %s", param);
+
+    assertTrue(Logger.flush(1000));
+
+    assertEquals(0, formatted[0]);
+    synchronized (records) {
+      for (final LogRecord record : records) {
+        assertFalse(record.getMessage().startsWith("Never seen"));
+      }
+    }
+  }
+
+  @Test
+  public void testCallSites() {
+
+    Logger.enableCallSites(false);
+
+    LOG.info("Without call site");
+    assertTrue(Logger.flush(1000));
+    assertNull(find("Without call site").getSourceMethodName());
+
+    Logger.enableCallSites(true);
+
+    LOG.info("With call site");
+    assertTrue(Logger.flush(1000));
+    assertEquals("testCallSites", find("With call site").getSourceMethodName());
+  }
+
+  @Test
+  public void testTimeAndThreadOfCaller() throws InterruptedException {
+
+    final long start = System.currentTimeMillis();
+
+    final Thread caller = new Thread() {
+      @Override
+      public void run() {
+        LOG.info("From caller");
+      }
+    };
+    caller.start();
+    caller.join();
+
+    final long end = System.currentTimeMillis();
+
+    assertTrue(Logger.flush(1000));
+
+    final LogRecord record = find("From caller");
+    assertEquals((int) caller.getId(), record.getThreadID());
+    assertTrue(record.getMillis() >= start && record.getMillis() <= end);
+  }
+
+  @Test
+  public void testFullRingKeepsWarnings() throws InterruptedException {
+
+    final CountDownLatch release = new CountDownLatch(1);
+
+    // Hold the writer in a handler so that the ring fills up.
+    final Handler blocking = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        if ("log-writer".equals(Thread.currentThread().getName())) {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+
+      @Override
+      public void flush() { }
+
+      @Override
+      public void close() { }
+    };
+
+    java.util.logging.Logger.getLogger("codeu.chat").addHandler(blocking);
+
+    try {
+
+      final long dropped = Logger.dropped();
+
+      for (int i = 0; i < 10000; i++) {
+        LOG.info("Filling %d", i);
+      }
+
+      assertTrue(Logger.dropped() > dropped);
+
+      // Written by this thread while the writer is still held.
+      LOG.warning("Warning in a full ring");
+      find("Warning in a full ring");
+
+    } finally {
+      release.countDown();
+      java.util.logging.Logger.getLogger("codeu.chat").removeHandler(blocking);
+    }
+
+    assertTrue(Logger.flush(5000));
+  }
+
+  // Threads left over from other tests may still be logging so look for the
+  // record rather than taking the last one.
+  private LogRecord find(String message) {
+    synchronized (records) {
+      for (int i = records.size() - 1; i >= 0; i--) {
+        if (message.equals(records.get(i).getMessage())) {
+          return records.get(i);
+        }
+      }
+    }
+    fail("No record for " + message);
+    return null;
+  }
+}
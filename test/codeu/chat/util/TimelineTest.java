@@ -0,0 +1,387 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TimelineTest {
+
+  private Timeline timeline;
+
+  @Before
+  public void doBefore() {
+    timeline = new Timeline();
+  }
+
+  @After
+  public void doAfter() {
+    timeline.stop();
+    timeline.join();
+  }
+
+  @Test
+  public void testScheduleNow() throws InterruptedException {
+
+    final CountDownLatch done = new CountDownLatch(1);
+
+    timeline.scheduleNow(new Runnable() {
+      @Override
+      public void run() { done.countDown(); }
+    });
+
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testScheduleInOrder() throws InterruptedException {
+
+    final List<Integer> order = new ArrayList<>();
+    final CountDownLatch done = new CountDownLatch(3);
+
+    // Added out of order and far enough apart to land in different buckets.
+    final int[] delays = { 120, 40, 80 };
+
+    for (final int delay : delays) {
+      timeline.scheduleIn(delay, new Runnable() {
+        @Override
+        public void run() {
+          order.add(delay);
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+
+    assertEquals(3, order.size());
+    assertEquals(40, (int) order.get(0));
+    assertEquals(80, (int) order.get(1));
+    assertEquals(120, (int) order.get(2));
+  }
+
+  @Test
+  public void testNotEarly() throws InterruptedException {
+
+    final long[] ran = { 0 };
+    final CountDownLatch done = new CountDownLatch(1);
+
+    final long due = System.currentTimeMillis() + 50;
+
+    timeline.scheduleAt(due, new Runnable() {
+      @Override
+      public void run() {
+        ran[0] = System.currentTimeMillis();
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertTrue(ran[0] >= due);
+  }
+
+  @Test
+  public void testPastAFullTurn() throws InterruptedException {
+
+    // Far enough out that the event has to wait for the wheel to come around
+    // more than once. Delays a little longer than a turn land in the same
+    // bucket as a short one and must not run with it.
+    final AtomicInteger ran = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    timeline.scheduleIn(5160, new Runnable() {
+      @Override
+      public void run() { ran.incrementAndGet(); }
+    });
+
+    timeline.scheduleIn(40, new Runnable() {
+      @Override
+      public void run() { done.countDown(); }
+    });
+
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    assertEquals(0, ran.get());
+  }
+
+  @Test
+  public void testManyTimeouts() throws InterruptedException {
+
+    final int count = 100000;
+    final CountDownLatch done = new CountDownLatch(count);
+
+    final Runnable callback = new Runnable() {
+      @Override
+      public void run() { done.countDown(); }
+    };
+
+    for (int i = 0; i < count; i++) {
+      timeline.scheduleIn(10 + (i % 500), callback);
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSameKeyInOrder() throws InterruptedException {
+
+    final Timeline workers = new Timeline(4);
+
+    try {
+      final int count = 1000;
+      final List<List<Integer>> seen = new ArrayList<>();
+      final CountDownLatch done = new CountDownLatch(count * 4);
+
+      for (int key = 0; key < 4; key++) {
+        seen.add(new ArrayList<Integer>());
+      }
+
+      for (int i = 0; i < count; i++) {
+        for (int key = 0; key < 4; key++) {
+
+          final List<Integer> order = seen.get(key);
+          final int value = i;
+
+          workers.scheduleNow(key, new Runnable() {
+            @Override
+            public void run() {
+              // Only one worker is ever in a key so this needs no lock.
+              order.add(value);
+              done.countDown();
+            }
+          });
+        }
+      }
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      for (final List<Integer> order : seen) {
+        assertEquals(count, order.size());
+        for (int i = 0; i < count; i++) {
+          assertEquals(i, (int) order.get(i));
+        }
+      }
+    } finally {
+      workers.stop();
+      workers.join();
+    }
+  }
+
+  @Test
+  public void testDifferentKeysInParallel() throws InterruptedException {
+
+    final Timeline workers = new Timeline(2);
+
+    try {
+      // Each event waits for the other so they can only both finish if they
+      // run at the same time.
+      final CountDownLatch started = new CountDownLatch(2);
+      final CountDownLatch done = new CountDownLatch(2);
+
+      final Runnable meet = new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            if (started.await(1, TimeUnit.SECONDS)) {
+              done.countDown();
+            }
+          } catch (InterruptedException ex) {
+            // The test will fail on "done".
+          }
+        }
+      };
+
+      workers.scheduleNow(new Uuid(1), meet);
+      workers.scheduleNow(new Uuid(2), meet);
+
+      assertTrue(done.await(2, TimeUnit.SECONDS));
+    } finally {
+      workers.stop();
+      workers.join();
+    }
+  }
+
+  @Test
+  public void testInteractiveBeforeBackground() throws InterruptedException {
+
+    final List<String> order = new ArrayList<>();
+    final CountDownLatch done = new CountDownLatch(5);
+
+    hold(timeline);
+
+    for (int i = 0; i < 3; i++) {
+      timeline.scheduleNow(Timeline.Priority.BACKGROUND, record(order, "background", done));
+    }
+    timeline.scheduleNow(record(order, "interactive", done));
+    timeline.scheduleNow(record(order, "interactive", done));
+
+    release();
+
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+
+    assertEquals("interactive", order.get(0));
+    assertEquals("interactive", order.get(1));
+    assertEquals("background", order.get(2));
+  }
+
+  @Test
+  public void testBackgroundNotStarved() throws InterruptedException {
+
+    final int count = 100;
+    final List<String> order = new ArrayList<>();
+    final CountDownLatch done = new CountDownLatch(count + 1);
+
+    hold(timeline);
+
+    timeline.scheduleNow(Timeline.Priority.BACKGROUND, record(order, "background", done));
+    for (int i = 0; i < count; i++) {
+      timeline.scheduleNow(record(order, "interactive", done));
+    }
+
+    release();
+
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+
+    final int position = order.indexOf("background");
+    assertTrue(position > 0);
+    assertTrue(position < count);
+  }
+
+  @Test
+  public void testMetrics() throws InterruptedException {
+
+    final CountDownLatch done = new CountDownLatch(10);
+
+    for (int i = 0; i < 10; i++) {
+      timeline.scheduleIn(20, new Runnable() {
+        @Override
+        public void run() { done.countDown(); }
+      });
+    }
+
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+
+    // A worker records an event's metrics after running it, so wait for the
+    // workers to exit to know the last run has been recorded.
+    timeline.stop();
+    timeline.join();
+
+    assertEquals(10, timeline.lag().count());
+    assertEquals(10, timeline.runTime().count());
+    assertEquals(0, timeline.scheduled());
+    assertEquals(0, timeline.due(Timeline.Priority.INTERACTIVE));
+    assertEquals(0, timeline.stalls());
+  }
+
+  @Test
+  public void testQueueDepth() throws InterruptedException {
+
+    hold(timeline);
+
+    timeline.scheduleNow(Timeline.Priority.BACKGROUND, new Runnable() {
+      @Override
+      public void run() { }
+    });
+    timeline.scheduleIn(60000, new Runnable() {
+      @Override
+      public void run() { }
+    });
+
+    assertEquals(1, timeline.due(Timeline.Priority.BACKGROUND));
+    assertEquals(0, timeline.due(Timeline.Priority.INTERACTIVE));
+    assertEquals(1, timeline.scheduled());
+
+    release();
+  }
+
+  @Test
+  public void testStallDetected() throws InterruptedException {
+
+    final Timeline watched = new Timeline(1, 50);
+
+    try {
+      final CountDownLatch done = new CountDownLatch(1);
+
+      watched.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(300);
+          } catch (InterruptedException ex) {
+            // The test will fail on the stall count.
+          }
+          done.countDown();
+        }
+      });
+
+      assertTrue(done.await(1, TimeUnit.SECONDS));
+
+      // One long event is one stall no matter how many times the watchdog
+      // saw it.
+      assertEquals(1, watched.stalls());
+    } finally {
+      watched.stop();
+      watched.join();
+    }
+  }
+
+  private final CountDownLatch held = new CountDownLatch(1);
+
+  // Keep the timeline's only worker busy until "release" so that everything
+  // scheduled before then is waiting at the same time.
+  private void hold(Timeline target) throws InterruptedException {
+
+    final CountDownLatch running = new CountDownLatch(1);
+
+    target.scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        running.countDown();
+        try {
+          held.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          // The test will fail on its order.
+        }
+      }
+    });
+
+    assertTrue(running.await(1, TimeUnit.SECONDS));
+  }
+
+  private void release() {
+    held.countDown();
+  }
+
+  private static Runnable record(final List<String> order,
+                                 final String name,
+                                 final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+        done.countDown();
+      }
+    };
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class TracerTest {
+
+  @Test
+  public void testSampledTraceIsWritten() throws IOException {
+
+    final StringWriter out = new StringWriter();
+    final Tracer tracer = new Tracer(out, 1.0, Long.MAX_VALUE / 1000000);
+
+    final Tracer.Trace trace = tracer.begin("request");
+    Tracer.resume(trace, Tracer.Stage.MODEL);
+
+    final InputStream in = Tracer.timeReads(new ByteArrayInputStream(new byte[] { 1, 2 }));
+    final OutputStream response = Tracer.timeWrites(new ByteArrayOutputStream());
+
+    in.read();
+    in.read();
+
+    Tracer.enter(Tracer.Stage.LOG);
+    Tracer.exit();
+
+    response.write(3);
+
+    Tracer.enter(Tracer.Stage.RELAY);
+    Tracer.exit();
+
+    tracer.end(trace);
+
+    assertEquals(1, tracer.flush());
+
+    final String[] fields = out.toString().trim().split(" ");
+
+    assertEquals(Long.toHexString(trace.id()), fields[0]);
+    assertEquals("request", fields[2]);
+
+    // The spans are in the order the stages were entered.
+    final StringBuilder stages = new StringBuilder();
+    for (final String field : fields) {
+      final int at = field.indexOf('@');
+      if (at > 0) {
+        stages.append(field.substring(0, at)).append(' ');
+      }
+    }
+    final String order = stages.toString();
+    assertTrue(order, order.contains("read "));
+    assertTrue(order, order.contains("serialize "));
+    assertTrue(order, order.indexOf("read ") < order.indexOf("serialize "));
+  }
+
+  @Test
+  public void testCurrentTrace() {
+
+    final Tracer tracer = new Tracer(new StringWriter(), 0.0, 60000);
+
+    assertNull(Tracer.current());
+
+    final Tracer.Trace trace = tracer.begin("request");
+    Tracer.resume(trace, Tracer.Stage.MODEL);
+
+    // Work handed off to another thread keeps the trace to name it.
+    assertSame(trace, Tracer.current());
+    assertEquals(Long.toHexString(trace.id()), trace.label());
+
+    tracer.end(trace);
+
+    assertNull(Tracer.current());
+  }
+
+  @Test
+  public void testSuspendAndResumeOnAnotherThread() throws Exception {
+
+    final StringWriter out = new StringWriter();
+    final Tracer tracer = new Tracer(out, 1.0, Long.MAX_VALUE / 1000000);
+
+    final Tracer.Trace trace = tracer.begin("request");
+    Tracer.resume(trace, Tracer.Stage.MODEL);
+
+    // Handing the request to another thread takes the trace off this one.
+    Tracer.suspend(trace);
+    assertNull(Tracer.current());
+
+    final Tracer.Trace[] resumed = new Tracer.Trace[1];
+    final Thread other = new Thread() {
+      @Override
+      public void run() {
+        Tracer.resume(trace, Tracer.Stage.MODEL);
+        resumed[0] = Tracer.current();
+        tracer.end(trace);
+      }
+    };
+    other.start();
+    other.join();
+
+    assertSame(trace, resumed[0]);
+    assertNull(Tracer.current());
+    assertEquals(1, tracer.flush());
+  }
+
+  @Test
+  public void testUnsampledFastTraceIsNotWritten() throws IOException {
+
+    final StringWriter out = new StringWriter();
+    final Tracer tracer = new Tracer(out, 0.0, 60000);
+
+    final Tracer.Trace trace = tracer.begin("request");
+    Tracer.resume(trace, Tracer.Stage.MODEL);
+    tracer.end(trace);
+
+    assertEquals(0, tracer.flush());
+    assertEquals("", out.toString());
+  }
+
+  @Test
+  public void testSlowTraceIsAlwaysWritten() throws Exception {
+
+    final StringWriter out = new StringWriter();
+    final Tracer tracer = new Tracer(out, 0.0, 10);
+
+    final Tracer.Trace trace = tracer.begin("request");
+    Tracer.resume(trace, Tracer.Stage.MODEL);
+    Thread.sleep(20);
+    tracer.end(trace);
+
+    assertEquals(1, tracer.flush());
+    assertTrue(out.toString().contains(" model="));
+  }
+
+  @Test
+  public void testNoCurrentTrace() {
+
+    // Without a current trace marking stages does nothing.
+    Tracer.enter(Tracer.Stage.LOG);
+    Tracer.exit();
+  }
+}
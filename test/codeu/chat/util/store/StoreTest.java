@@ -147,6 +147,42 @@ public final class StoreTest {
     assertTrue(store.first(4) == 40);
   }
 
+  @Test
+  public void testRangeBeforeAllKeys() {
+
+    store.insert(5, 50);
+    store.insert(6, 60);
+
+    final int[] order = { };
+    assertOrder(store.range(1, 2), order);
+    assertOrder(store.before(2), order);
+  }
+
+  @Test
+  public void testRemove() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(3, 30);
+
+    final Integer second = store.first(2);
+
+    assertTrue(store.remove(2, second));
+    assertFalse(store.remove(2, second));
+
+    final int[] afterFirst = { 10, 21, 30 };
+    assertOrder(store.all(), afterFirst);
+    assertTrue(store.first(2) == 21);
+
+    assertTrue(store.remove(1, store.first(1)));
+    assertTrue(store.remove(2, store.first(2)));
+
+    final int[] afterAll = { 30 };
+    assertOrder(store.all(), afterAll);
+    assertNull(store.first(2));
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;